@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+#attach to a running daemon (see daemon.sh); no compile or driver needed
+java ${DAEMON_PORT:+-Dmessenger.daemon.port=$DAEMON_PORT} \
+     ${DAEMON_TOKEN:+-Dmessenger.daemon.token=$DAEMON_TOKEN} \
+     -cp $DIR/../classes MessengerClient
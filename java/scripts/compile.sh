@@ -5,9 +5,26 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
+#Set METRICS_FILE to get a Prometheus text dump of the query metrics
+#Set SLOW_QUERY_MS / SLOW_QUERY_LOG to tune the slow query log (default 200ms, slow_query.log)
+#Set CHAT_SHARDS to spread chats over several databases, e.g. localhost:5433/chats0,localhost:5434/chats1
+#(set each up with sql/scripts/create_shard.sh)
+#Set REPLICAS to send reads to streaming standbys of the database, e.g. localhost:5433/$DB_NAME
+#(PostgreSQL 10 or later; a session still reads its own writes)
+#Set ARCHIVE_DIR to the directory retention.sh moves old messages to (default ./archive)
+#Set CLUSTER=true when servers or other clients share the database, so their changes reach this one's caches
+#and CLUSTER_POLL to how many milliseconds it waits between checks for them (default 500)
+java ${METRICS_FILE:+-Dmessenger.metrics.file=$METRICS_FILE} \
+     ${ARCHIVE_DIR:+-Dmessenger.archive.dir=$ARCHIVE_DIR} \
+     ${CHAT_SHARDS:+-Dmessenger.shards=$CHAT_SHARDS} \
+     ${REPLICAS:+-Dmessenger.replicas=$REPLICAS} \
+     ${CLUSTER:+-Dmessenger.cluster=$CLUSTER} \
+     ${CLUSTER_POLL:+-Dmessenger.cluster.poll=$CLUSTER_POLL} \
+     ${SLOW_QUERY_MS:+-Dmessenger.slowquery.ms=$SLOW_QUERY_MS} \
+     ${SLOW_QUERY_LOG:+-Dmessenger.slowquery.file=$SLOW_QUERY_LOG} \
+     -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
 
@@ -0,0 +1,26 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#start the resident daemon; connect to it with client.sh
+#Use your database name, port number and login
+#Set DAEMON_PORT / DAEMON_SESSIONS to tune it (default 7350, 4 sessions)
+#Clients authenticate with the token written to DAEMON_TOKEN (default ~/.messenger_daemon_token)
+#With CLUSTER=true every session polls for other processes' changes each CLUSTER_POLL ms (default 500)
+java ${DAEMON_PORT:+-Dmessenger.daemon.port=$DAEMON_PORT} \
+     ${DAEMON_SESSIONS:+-Dmessenger.daemon.sessions=$DAEMON_SESSIONS} \
+     ${DAEMON_TOKEN:+-Dmessenger.daemon.token=$DAEMON_TOKEN} \
+     ${CLUSTER:+-Dmessenger.cluster=$CLUSTER} \
+     ${CLUSTER_POLL:+-Dmessenger.cluster.poll=$CLUSTER_POLL} \
+     ${ARCHIVE_DIR:+-Dmessenger.archive.dir=$ARCHIVE_DIR} \
+     ${CHAT_SHARDS:+-Dmessenger.shards=$CHAT_SHARDS} \
+     ${REPLICAS:+-Dmessenger.replicas=$REPLICAS} \
+     ${METRICS_FILE:+-Dmessenger.metrics.file=$METRICS_FILE} \
+     ${SLOW_QUERY_MS:+-Dmessenger.slowquery.ms=$SLOW_QUERY_MS} \
+     ${SLOW_QUERY_LOG:+-Dmessenger.slowquery.file=$SLOW_QUERY_LOG} \
+     -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerDaemon $DB_NAME $PGPORT $USER
@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#move messages past their chat's retention period to the archive (see MessageRetention.java)
+#Use your database name, port number and login; run it from cron, e.g. nightly
+#Set RETENTION_DAYS for chats without their own CHAT.retention_days (default 365)
+#Set ARCHIVE_DIR to where the archive lives (default ./archive); the clients,
+#daemon and server must be started with the same ARCHIVE_DIR
+java ${RETENTION_DAYS:+-Dmessenger.retention.days=$RETENTION_DAYS} \
+     ${ARCHIVE_DIR:+-Dmessenger.archive.dir=$ARCHIVE_DIR} \
+     ${CHAT_SHARDS:+-Dmessenger.shards=$CHAT_SHARDS} \
+     ${METRICS_FILE:+-Dmessenger.metrics.file=$METRICS_FILE} \
+     -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessageRetention $DB_NAME $PGPORT $USER
@@ -0,0 +1,27 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#start the network server (binary protocol, see ServerProtocol.java)
+#Use your database name, port number and login
+#Set SERVER_PORT to change its port (default 7351) and SERVER_THREADS for
+#the number of workers and database connections shared by all clients (default 4)
+#To run several servers against one database, start each with CLUSTER=true
+#and its own SERVER_PORT; clients can then connect to any of them
+#CLUSTER_POLL sets how many milliseconds each waits between checks for the others' changes (default 500)
+java ${SERVER_PORT:+-Dmessenger.server.port=$SERVER_PORT} \
+     ${CLUSTER:+-Dmessenger.cluster=$CLUSTER} \
+     ${CLUSTER_POLL:+-Dmessenger.cluster.poll=$CLUSTER_POLL} \
+     ${ARCHIVE_DIR:+-Dmessenger.archive.dir=$ARCHIVE_DIR} \
+     ${CHAT_SHARDS:+-Dmessenger.shards=$CHAT_SHARDS} \
+     ${REPLICAS:+-Dmessenger.replicas=$REPLICAS} \
+     ${SERVER_THREADS:+-Dmessenger.async.threads=$SERVER_THREADS} \
+     ${METRICS_FILE:+-Dmessenger.metrics.file=$METRICS_FILE} \
+     ${SLOW_QUERY_MS:+-Dmessenger.slowquery.ms=$SLOW_QUERY_MS} \
+     ${SLOW_QUERY_LOG:+-Dmessenger.slowquery.file=$SLOW_QUERY_LOG} \
+     -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerServer $DB_NAME $PGPORT $USER
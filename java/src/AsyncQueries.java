@@ -0,0 +1,113 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs reads off the calling thread so several can be in flight at once.
+ *
+ * A JDBC connection runs one statement at a time, so each worker thread
+ * (messenger.async.threads, default 4) opens a connection of its own the
+ * first time it needs one. Messenger sends statements issued on a worker
+ * to that worker's connection, so work submitted here can call the usual
+ * caches and execute methods unchanged.
+ *
+ * Worker connections autocommit and are meant for reads: inTransaction
+ * refuses to run on a worker, and work that writes is better done on the
+ * caller's thread.
+ */
+public class AsyncQueries {
+
+   /**
+    * A pool thread and its connection.
+    */
+   private static class Worker extends Thread {
+      Connection connection = null;
+
+      Worker (Runnable r, String name) {
+         super(r, name);
+         setDaemon(true);
+      }
+   }//end Worker
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final ExecutorService _workers;
+
+   // every worker connection opened, for close()
+   private final List<Connection> _opened = new ArrayList<Connection>();
+
+   public AsyncQueries (String url, String user, String passwd) {
+      _url = url;
+      _user = user;
+      _passwd = passwd;
+
+      final int threads = Integer.getInteger("messenger.async.threads", 4);
+      _workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+         private int _next = 0;
+
+         public synchronized Thread newThread (Runnable r) {
+            return new Worker(r, "messenger-async-" + _next++);
+         }
+      });
+   }//end AsyncQueries
+
+   public <T> Future<T> submit (Callable<T> work) {
+      return _workers.submit(work);
+   }
+
+   /**
+    * @return true if the current thread is one of the workers
+    */
+   public boolean onWorker () {
+      return Thread.currentThread() instanceof Worker;
+   }
+
+   /**
+    * @return the current worker's connection, opened on first use, or null
+    *         when not called on a worker
+    */
+   public Connection connection () throws SQLException {
+      if (!onWorker())
+         return null;
+      Worker w = (Worker) Thread.currentThread();
+      if (w.connection == null || w.connection.isClosed()) {
+         w.connection = DriverManager.getConnection(_url, _user, _passwd);
+         synchronized (_opened) {
+            _opened.add(w.connection);
+         }
+      }
+      return w.connection;
+   }//end connection
+
+   /**
+    * Stops the workers and closes their connections.
+    */
+   public void close () {
+      _workers.shutdown();
+      try {
+         _workers.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      synchronized (_opened) {
+         for (Connection c : _opened) {
+            try {
+               c.close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+         _opened.clear();
+      }
+   }//end close
+
+}//end AsyncQueries
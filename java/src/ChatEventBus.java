@@ -0,0 +1,112 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process publish/subscribe for chat changes. The data layer publishes
+ * after a write has succeeded and the caches subscribe, so a cache never has
+ * to know which menu or service made the change.
+ *
+ * Events published inside Messenger.inTransaction are held back until the
+ * transaction commits and dropped if it rolls back, so listeners only ever
+ * see changes that are in the database.
+ *
+ * Listeners run synchronously on the publishing thread and must be quick;
+ * an exception in one listener does not stop the others.
+ */
+public class ChatEventBus {
+
+   private final Messenger _esql;
+   private final List<ChatEventListener> _listeners = new CopyOnWriteArrayList<ChatEventListener>();
+
+   /**
+    * One published event, delivered to each listener in turn.
+    */
+   private abstract static class Event {
+      abstract void deliver (ChatEventListener l);
+   }
+
+   public ChatEventBus (Messenger esql) {
+      _esql = esql;
+   }
+
+   public void subscribe (ChatEventListener listener) {
+      _listeners.add(listener);
+   }
+
+   public void unsubscribe (ChatEventListener listener) {
+      _listeners.remove(listener);
+   }
+
+   public void messageSent (final int chatId, final ChatMessage message) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.messageSent(chatId, message); }
+      });
+   }
+
+   public void messageEdited (final int chatId, final int msgId, final String text) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.messageEdited(chatId, msgId, text); }
+      });
+   }
+
+   public void messageDeleted (final int chatId, final int msgId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.messageDeleted(chatId, msgId); }
+      });
+   }
+
+   public void memberAdded (final int chatId, final int userId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.memberAdded(chatId, userId); }
+      });
+   }
+
+   public void memberRemoved (final int chatId, final int userId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.memberRemoved(chatId, userId); }
+      });
+   }
+
+   public void chatDeleted (final int chatId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.chatDeleted(chatId); }
+      });
+   }
+
+   public void chatRead (final int chatId, final int userId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.chatRead(chatId, userId); }
+      });
+   }
+
+   public void listsChanged (final int userId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.listsChanged(userId); }
+      });
+   }
+
+   public void userDeleted (final int userId) {
+      publish(new Event() {
+         void deliver (ChatEventListener l) { l.userDeleted(userId); }
+      });
+   }
+
+   private void publish (final Event event) {
+      _esql.afterCommit(new Runnable() {
+         public void run () {
+            for (ChatEventListener l : _listeners) {
+               try {
+                  event.deliver(l);
+               }catch (RuntimeException e) {
+                  report(e);
+               }
+            }
+         }
+      });
+   }//end publish
+
+   private static void report (RuntimeException e) {
+      System.err.println("\tChat event listener failed: " + e);
+   }
+
+}//end ChatEventBus
@@ -0,0 +1,49 @@
+/**
+ * Receives chat changes published on a ChatEventBus. Extend
+ * ChatEventListener.Adapter to handle only some of them.
+ */
+public interface ChatEventListener {
+
+   void messageSent (int chatId, ChatMessage message);
+
+   void messageEdited (int chatId, int msgId, String text);
+
+   void messageDeleted (int chatId, int msgId);
+
+   void memberAdded (int chatId, int userId);
+
+   void memberRemoved (int chatId, int userId);
+
+   void chatDeleted (int chatId);
+
+   /**
+    * userId has read chatId up to its newest message.
+    */
+   void chatRead (int chatId, int userId);
+
+   /**
+    * userId's contact or block list changed (SocialGraph).
+    */
+   void listsChanged (int userId);
+
+   /**
+    * userId's account was deleted.
+    */
+   void userDeleted (int userId);
+
+   /**
+    * Ignores every event.
+    */
+   public static class Adapter implements ChatEventListener {
+      public void messageSent (int chatId, ChatMessage message) {}
+      public void messageEdited (int chatId, int msgId, String text) {}
+      public void messageDeleted (int chatId, int msgId) {}
+      public void memberAdded (int chatId, int userId) {}
+      public void memberRemoved (int chatId, int userId) {}
+      public void chatDeleted (int chatId) {}
+      public void chatRead (int chatId, int userId) {}
+      public void listsChanged (int userId) {}
+      public void userDeleted (int userId) {}
+   }//end Adapter
+
+}//end ChatEventListener
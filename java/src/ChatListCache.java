@@ -0,0 +1,210 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches each user's chat list, newest activity first.
+ *
+ * The list is read once with the ListChats query and afterwards kept current
+ * from the ChatEventBus: a new message moves its chat to the top of every
+ * cached list that contains it, edits and deletes of the latest message are
+ * applied in place, and membership changes drop the lists they affect.
+ * Unread counts are the chat's last seq less the user's read cursor, worked
+ * out in the same query (a deleted message still counts until the chat is
+ * read), and are bumped by new messages and cleared by chatRead. At most messenger.cache.chatlists users
+ * (default 256) are cached.
+ *
+ * Other processes' changes reach the events through ClusterSync
+ * (messenger.cluster), which drops every cached list when it can't tell
+ * which ones changed. A list read while an event came in is not cached, as
+ * it may be older than the event.
+ *
+ * With chats sharded the query runs on every shard at once and the rows are
+ * merged newest first.
+ */
+public class ChatListCache extends ChatEventListener.Adapter {
+
+   private static final String LIST_CHATS_QUERY =
+      "SELECT C.chat_id, C.chat_type, C.init_sender_id, M.msg_id, M.msg_text, M.msg_timestamp, " +
+      "GREATEST(C.last_seq - CL.last_read_seq, 0) " +
+      "FROM CHAT_LIST CL, CHAT C, MESSAGE M " +
+      "WHERE M.seq = (SELECT MAX(M1.seq) FROM MESSAGE M1 WHERE M1.chat_id = C.chat_id) " +
+      "AND C.chat_id = M.chat_id " +
+      "AND C.chat_id = CL.chat_id AND CL.member_id = ? " +
+      "ORDER BY M.msg_timestamp DESC, M.msg_id DESC";
+
+   // the query's order, for merging the rows of several shards
+   private static final Comparator<List<String>> NEWEST_FIRST = new Comparator<List<String>>() {
+      public int compare (List<String> a, List<String> b) {
+         int byTime = b.get(5).trim().compareTo(a.get(5).trim());
+         if (byTime != 0)
+            return byTime;
+         return Integer.valueOf(b.get(3).trim()).compareTo(Integer.valueOf(a.get(3).trim()));
+      }
+   };
+
+   private final Messenger _esql;
+
+   // user id -> chats ordered by last activity, least recently used users evicted first
+   private final Map<Integer, List<ChatSummary>> _lists;
+
+   // bumped by every change to _lists, so a load that an event overtook
+   // isn't cached; guarded by _lists
+   private long _stamp = 0;
+
+   public ChatListCache (Messenger esql) {
+      _esql = esql;
+      final int capacity = Integer.getInteger("messenger.cache.chatlists", 256);
+      _lists = new LinkedHashMap<Integer, List<ChatSummary>>(64, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<Integer, List<ChatSummary>> eldest) {
+            return size() > capacity;
+         }
+      };
+      esql.getEvents().subscribe(this);
+   }//end ChatListCache
+
+   /**
+    * @return the user's chats that have at least one message, most recent first
+    */
+   public List<ChatSummary> chatsOf (int userId) throws SQLException {
+      long stamp;
+      synchronized (_lists) {
+         List<ChatSummary> cached = _lists.get(userId);
+         if (cached != null)
+            return Collections.unmodifiableList(new ArrayList<ChatSummary>(cached));
+         stamp = _stamp;
+      }
+
+      // the user's chats can be on any shard; each shard's rows come sorted
+      List<List<String>> rows = _esql.executeQueryOnEveryShard("listChats", LIST_CHATS_QUERY, userId);
+      if (_esql.isSharded())
+         Collections.sort(rows, NEWEST_FIRST);
+      List<Integer> senders = new ArrayList<Integer>();
+      for (List<String> row : rows)
+         if (row.get(2) != null)
+            senders.add(Integer.valueOf(row.get(2).trim()));
+      Map<Integer, String> logins = _esql.getUsers().loginsOf(senders);
+
+      List<ChatSummary> loaded = new ArrayList<ChatSummary>(rows.size());
+      for (List<String> row : rows)
+         loaded.add(ChatSummary.fromRow(row, logins));
+
+      synchronized (_lists) {
+         if (stamp == _stamp)
+            _lists.put(userId, loaded);
+      }
+      return Collections.unmodifiableList(new ArrayList<ChatSummary>(loaded));
+   }//end chatsOf
+
+   public void invalidate (int userId) {
+      synchronized (_lists) {
+         _lists.remove(userId);
+         ++_stamp;
+      }
+   }
+
+   public void invalidateAll () {
+      synchronized (_lists) {
+         _lists.clear();
+         ++_stamp;
+      }
+   }
+
+   public void messageSent (int chatId, ChatMessage message) {
+      synchronized (_lists) {
+         ++_stamp;
+         for (Map.Entry<Integer, List<ChatSummary>> e : _lists.entrySet()) {
+            List<ChatSummary> list = e.getValue();
+            int i = indexOf(list, chatId);
+            if (i >= 0) {
+               ChatSummary s = list.remove(i);
+               // the sender's own messages are never unread for them
+               int unread = e.getKey() == message.senderId ? s.unread : s.unread + 1;
+               list.add(0, s.withLastMessage(message, unread));
+            }
+         }
+      }
+   }//end messageSent
+
+   public void messageEdited (int chatId, int msgId, String text) {
+      synchronized (_lists) {
+         ++_stamp;
+         for (List<ChatSummary> list : _lists.values()) {
+            int i = indexOf(list, chatId);
+            if (i >= 0 && list.get(i).lastMsgId == msgId)
+               list.set(i, list.get(i).withLastText(text));
+         }
+      }
+   }//end messageEdited
+
+   public void messageDeleted (int chatId, int msgId) {
+      // neither the previous message nor whether the deleted one was still
+      // unread is known here, so re-read the lists that show the chat
+      synchronized (_lists) {
+         ++_stamp;
+         Iterator<List<ChatSummary>> it = _lists.values().iterator();
+         while (it.hasNext()) {
+            if (indexOf(it.next(), chatId) >= 0)
+               it.remove();
+         }
+      }
+   }//end messageDeleted
+
+   public void memberAdded (int chatId, int userId) {
+      membershipChanged(chatId, userId);
+   }
+
+   public void memberRemoved (int chatId, int userId) {
+      membershipChanged(chatId, userId);
+   }
+
+   public void chatDeleted (int chatId) {
+      synchronized (_lists) {
+         ++_stamp;
+         for (List<ChatSummary> list : _lists.values()) {
+            int i = indexOf(list, chatId);
+            if (i >= 0)
+               list.remove(i);
+         }
+      }
+   }//end chatDeleted
+
+   public void chatRead (int chatId, int userId) {
+      synchronized (_lists) {
+         ++_stamp;
+         List<ChatSummary> list = _lists.get(userId);
+         int i = list == null ? -1 : indexOf(list, chatId);
+         if (i >= 0)
+            list.set(i, list.get(i).withUnread(0));
+      }
+   }//end chatRead
+
+   /**
+    * The changed user gains or loses the chat, and the chat_type the other
+    * members see may have flipped, so every list showing the chat is dropped.
+    */
+   private void membershipChanged (int chatId, int userId) {
+      synchronized (_lists) {
+         ++_stamp;
+         _lists.remove(userId);
+         Iterator<List<ChatSummary>> it = _lists.values().iterator();
+         while (it.hasNext()) {
+            if (indexOf(it.next(), chatId) >= 0)
+               it.remove();
+         }
+      }
+   }//end membershipChanged
+
+   private static int indexOf (List<ChatSummary> list, int chatId) {
+      for (int i = 0; i < list.size(); ++i)
+         if (list.get(i).chatId == chatId)
+            return i;
+      return -1;
+   }
+
+}//end ChatListCache
@@ -0,0 +1,412 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Answers "who is in chat X" and "is Y in chat X" for the chat menus.
+ *
+ * Member lists are read with a single lookup on the CHAT_LIST primary key
+ * (chat_id, member_id) and kept in memory per chat, so repeated checks while
+ * a user sits in a chat don't go back to the database. Every membership write
+ * goes through this class, drops the cached set for that chat and is
+ * published on the ChatEventBus.
+ *
+ * Creating a chat and adding or removing members are single calls of the
+ * functions in create_functions.sql, so each is one round trip and one
+ * transaction. addMembers adds any number of users by login the same way.
+ *
+ * With chats sharded (ShardRouter), a chat's shard has no users or contact
+ * lists: logins are resolved on the main database, contacts are checked
+ * against the SocialGraph, add_chat_member_ids inserts the members on the
+ * shard, and the user side of the change log (USER_CHANGE) is written on
+ * the main database from here.
+ */
+public class ChatMembership extends ChatEventListener.Adapter {
+
+   /**
+    * What addMembers did with one requested login.
+    */
+   public static class MemberOutcome {
+      public static final String ADDED = "added";
+      public static final String ALREADY_MEMBER = "member";
+      public static final String NOT_CONTACT = "not_contact";
+      public static final String UNKNOWN_USER = "unknown";
+
+      public final String login;
+      // -1 for an unknown user
+      public final int userId;
+      public final String outcome;
+
+      MemberOutcome (String login, int userId, String outcome) {
+         this.login = login;
+         this.userId = userId;
+         this.outcome = outcome;
+      }
+
+      public boolean added () {
+         return outcome.equals(ADDED);
+      }
+   }//end MemberOutcome
+
+   private static final String MEMBERS_QUERY =
+      "SELECT member_id FROM CHAT_LIST WHERE chat_id = ?";
+
+   private final Messenger _esql;
+
+   // chat_id -> user ids of its members, least recently used chats evicted first
+   private final Map<Integer, Set<Integer>> _members;
+
+   // (chat_id << 32 | user_id) -> the read cursor this process last set, so
+   // showing a chat again with nothing new in it doesn't write
+   private final Map<Long, Integer> _cursors;
+
+   // bumped by every invalidation (under the _members lock), so a set read
+   // from the database before one is not cached after it
+   private long _stamp = 0;
+
+   public ChatMembership (Messenger esql) {
+      _esql = esql;
+      final int capacity = Integer.getInteger("messenger.cache.members", 1024);
+      _members = new LinkedHashMap<Integer, Set<Integer>>(64, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<Integer, Set<Integer>> eldest) {
+            return size() > capacity;
+         }
+      };
+      _cursors = new LinkedHashMap<Long, Integer>(64, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<Long, Integer> eldest) {
+            return size() > capacity;
+         }
+      };
+      esql.getEvents().subscribe(this);
+   }//end ChatMembership
+
+   /**
+    * @return the user ids of every member of the chat, in ascending order
+    */
+   public Set<Integer> members (int chatId) throws SQLException {
+      long stamp;
+      synchronized (_members) {
+         Set<Integer> cached = _members.get(chatId);
+         if (cached != null)
+            return cached;
+         stamp = _stamp;
+      }
+
+      List<List<String>> rows = _esql.executeReadOnChat(chatId, "showChatMembers", MEMBERS_QUERY, chatId);
+      Set<Integer> loaded = new TreeSet<Integer>();
+      for (List<String> row : rows)
+         loaded.add(Integer.valueOf(row.get(0).trim()));
+      loaded = Collections.unmodifiableSet(loaded);
+
+      synchronized (_members) {
+         // a member added or removed meanwhile may be missing from loaded
+         if (_stamp == stamp)
+            _members.put(chatId, loaded);
+      }
+      return loaded;
+   }//end members
+
+   /**
+    * @return the logins of every member of the chat, in login order
+    */
+   public Set<String> memberLogins (int chatId) throws SQLException {
+      return new TreeSet<String>(_esql.getUsers().loginsOf(members(chatId)).values());
+   }
+
+   public boolean isMember (int chatId, int userId) throws SQLException {
+      return members(chatId).contains(userId);
+   }
+
+   /**
+    * @return the number of members of the chat, from the cached member set
+    *         if there is one and from CHAT.member_count otherwise
+    */
+   public int memberCount (int chatId) throws SQLException {
+      synchronized (_members) {
+         Set<Integer> cached = _members.get(chatId);
+         if (cached != null)
+            return cached.size();
+      }
+
+      List<List<String>> rows = _esql.executeReadOnChat(chatId, "chatMemberCount",
+         "SELECT member_count FROM CHAT WHERE chat_id = ?", chatId);
+      return rows.size() == 0 ? 0 : Integer.parseInt(rows.get(0).get(0));
+   }//end memberCount
+
+   /**
+    * Creates a chat owned by ownerId with a first message (create_chat).
+    * Members are added afterwards with addMembers; wrapping both in
+    * inTransaction commits them together.
+    *
+    * @return the new chat's id
+    */
+   public int createChat (int ownerId, String text) throws SQLException {
+      List<List<String>> rows = _esql.executeQueryOnNewChat("createChat",
+         "SELECT new_chat_id, new_msg_id, new_seq, new_timestamp FROM create_chat(?, ?)", ownerId, text);
+      List<String> row = rows.get(0);
+      int chatId = Integer.parseInt(row.get(0).trim());
+
+      _esql.getEvents().memberAdded(chatId, ownerId);
+      logUserChats(chatId, Collections.singletonList(ownerId), "U");
+      _esql.getEvents().messageSent(chatId, new ChatMessage(Integer.parseInt(row.get(1).trim()), Integer.parseInt(row.get(2).trim()),
+         text.trim(), row.get(3).trim(), ownerId, _esql.getUsers().loginOf(ownerId)));
+      return chatId;
+   }//end createChat
+
+   /**
+    * Adds every requested login that is one of the owner's contacts to a
+    * chat the owner owns (add_chat_members): one set-based check against the
+    * contact list and one multi-row insert, in a single round trip.
+    *
+    * @return one outcome per distinct login, in login order
+    * @throws SQLException if ownerId does not own the chat
+    */
+   public List<MemberOutcome> addMembers (int chatId, int ownerId, Collection<String> logins) throws SQLException {
+      if (_esql.isSharded())
+         return addMembersToShard(chatId, ownerId, logins);
+
+      List<List<String>> rows;
+      try {
+         rows = _esql.executeQueryAndReturnResult("addChatMembers",
+            "SELECT req_login, req_user_id, outcome FROM add_chat_members(?, ?, CAST(? AS text[]))",
+            chatId, ownerId, textArray(logins));
+      }finally {
+         invalidate(chatId);
+      }
+
+      List<MemberOutcome> outcomes = new ArrayList<MemberOutcome>(rows.size());
+      for (List<String> row : rows) {
+         int userId = row.get(1) == null ? -1 : Integer.parseInt(row.get(1).trim());
+         MemberOutcome o = new MemberOutcome(row.get(0).trim(), userId, row.get(2).trim());
+         if (o.added())
+            _esql.getEvents().memberAdded(chatId, userId);
+         outcomes.add(o);
+      }
+      return outcomes;
+   }//end addMembers
+
+   /**
+    * addMembers for a sharded chat: the same outcomes as add_chat_members,
+    * with the logins resolved on the main database and the contact check
+    * done in memory.
+    */
+   private List<MemberOutcome> addMembersToShard (int chatId, int ownerId, Collection<String> logins) throws SQLException {
+      List<List<String>> resolved = _esql.executeQueryAndReturnResult("resolveLogins",
+         "SELECT DISTINCT btrim(l), U.user_id FROM unnest(CAST(? AS text[])) l " +
+         "LEFT JOIN USR U ON U.login = CAST(btrim(l) AS char(50)) WHERE btrim(l) <> '' ORDER BY 1",
+         textArray(logins));
+      Set<Integer> before = members(chatId);
+
+      List<MemberOutcome> outcomes = new ArrayList<MemberOutcome>(resolved.size());
+      List<Integer> candidates = new ArrayList<Integer>();
+      for (List<String> row : resolved) {
+         int userId = row.get(1) == null ? -1 : Integer.parseInt(row.get(1).trim());
+         String outcome;
+         if (userId < 0)
+            outcome = MemberOutcome.UNKNOWN_USER;
+         else if (before.contains(userId))
+            outcome = MemberOutcome.ALREADY_MEMBER;
+         else if (!_esql.getSocialGraph().isContact(ownerId, userId))
+            outcome = MemberOutcome.NOT_CONTACT;
+         else {
+            outcome = MemberOutcome.ADDED;
+            candidates.add(userId);
+         }
+         outcomes.add(new MemberOutcome(row.get(0).trim(), userId, outcome));
+      }
+
+      // called even with nobody to add, for the owner check
+      Set<Integer> added = new TreeSet<Integer>(addIds(chatId, ownerId, candidates));
+      for (int i = 0; i < outcomes.size(); ++i) {
+         MemberOutcome o = outcomes.get(i);
+         // someone else added them first
+         if (o.added() && !added.contains(o.userId))
+            outcomes.set(i, new MemberOutcome(o.login, o.userId, MemberOutcome.ALREADY_MEMBER));
+      }
+      return outcomes;
+   }//end addMembersToShard
+
+   /**
+    * Inserts already checked members on the chat's database
+    * (add_chat_member_ids) and publishes the ones that were new.
+    *
+    * @return the users added
+    * @throws SQLException if ownerId does not own the chat
+    */
+   private List<Integer> addIds (int chatId, int ownerId, List<Integer> userIds) throws SQLException {
+      List<List<String>> rows;
+      try {
+         rows = _esql.executeQueryOnChat(chatId, "addChatMembers",
+            "SELECT add_chat_member_ids(?, ?, CAST(? AS integer[]))", chatId, ownerId, intArray(userIds));
+      }finally {
+         invalidate(chatId);
+      }
+
+      List<Integer> added = new ArrayList<Integer>(rows.size());
+      for (List<String> row : rows)
+         added.add(Integer.valueOf(row.get(0).trim()));
+      logUserChats(chatId, added, "U");
+      for (int id : added)
+         _esql.getEvents().memberAdded(chatId, id);
+      return added;
+   }//end addIds
+
+   /**
+    * Logs joins ("U") or leaves ("D") of chatId in the users' USER_CHANGE.
+    * Unsharded, the chat_list_change trigger does this in the same
+    * statement; on a shard it finds no USR rows, so it is done here.
+    */
+   private void logUserChats (int chatId, Collection<Integer> userIds, String op) throws SQLException {
+      if (!_esql.isSharded() || userIds.isEmpty())
+         return;
+      _esql.executeQueryAndReturnResult("logUserChats",
+         "SELECT log_user_change(u, 'chat', CAST(? AS char(1)), ?) FROM unnest(CAST(? AS integer[])) u",
+         op, chatId, intArray(userIds));
+   }//end logUserChats
+
+   /**
+    * @return a Postgres array literal of the ids
+    */
+   private static String intArray (Collection<Integer> ids) {
+      StringBuilder out = new StringBuilder("{");
+      for (int id : ids) {
+         if (out.length() > 1)
+            out.append(',');
+         out.append(id);
+      }
+      return out.append('}').toString();
+   }//end intArray
+
+   /**
+    * @return a Postgres array literal of the strings, each quoted
+    */
+   private static String textArray (Collection<String> values) {
+      StringBuilder out = new StringBuilder("{");
+      for (String v : values) {
+         if (out.length() > 1)
+            out.append(',');
+         out.append('"').append(v.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+      return out.append('}').toString();
+   }//end textArray
+
+   /**
+    * Removes a member other than the owner from a chat the owner owns
+    * (remove_chat_member).
+    *
+    * @return the number of members after the removal
+    */
+   public int remove (int chatId, int ownerId, int userId) throws SQLException {
+      List<List<String>> rows;
+      try {
+         rows = _esql.executeQueryOnChat(chatId, "removeChatMember", "SELECT remove_chat_member(?, ?, ?)", chatId, ownerId, userId);
+      }finally {
+         invalidate(chatId);
+      }
+      logUserChats(chatId, Collections.singletonList(userId), "D");
+      _esql.getEvents().memberRemoved(chatId, userId);
+      return Integer.parseInt(rows.get(0).get(0).trim());
+   }//end remove
+
+   /**
+    * Moves the user's read cursor in a chat up to seq. One update of the
+    * CHAT_LIST row by its primary key; nothing is done if this process
+    * already moved the cursor to seq or beyond.
+    */
+   public void markRead (int chatId, int userId, final int seq) throws SQLException {
+      final Long key = Long.valueOf(((long) chatId << 32) | (userId & 0xffffffffL));
+      synchronized (_cursors) {
+         Integer at = _cursors.get(key);
+         if (at != null && at.intValue() >= seq)
+            return;
+      }
+      _esql.executeUpdateOnChat(chatId, "markChatRead",
+         "UPDATE CHAT_LIST SET last_read_seq = GREATEST(last_read_seq, ?) WHERE chat_id = ? AND member_id = ?",
+         seq, chatId, userId);
+      _esql.afterCommit(new Runnable() {
+         public void run () {
+            synchronized (_cursors) {
+               Integer at = _cursors.get(key);
+               if (at == null || at.intValue() < seq)
+                  _cursors.put(key, seq);
+            }
+         }
+      });
+      _esql.getEvents().chatRead(chatId, userId);
+   }//end markRead
+
+   /**
+    * Deletes a chat with its messages and members. Run it inside
+    * inTransaction so that it is all or nothing; the chatDeleted event,
+    * published once it commits, also removes the chat's archived messages
+    * (MessageArchive).
+    */
+   public void deleteChat (int chatId) throws SQLException {
+      _esql.executeUpdateOnChat(chatId, "deleteChatMessages", "DELETE FROM MESSAGE WHERE chat_id = ?", chatId);
+      List<List<String>> left = _esql.executeQueryOnChat(chatId, "deleteChatMembers",
+         "DELETE FROM CHAT_LIST WHERE chat_id = ? RETURNING member_id", chatId);
+      _esql.executeUpdateOnChat(chatId, "deleteChat", "DELETE FROM CHAT WHERE chat_id = ?", chatId);
+
+      List<Integer> members = new ArrayList<Integer>(left.size());
+      for (List<String> row : left)
+         members.add(Integer.valueOf(row.get(0).trim()));
+      logUserChats(chatId, members, "D");
+      _esql.getEvents().chatDeleted(chatId);
+   }//end deleteChat
+
+   /**
+    * Drops the cached member set of one chat. Call after any write to
+    * CHAT_LIST for that chat that does not go through add/remove.
+    */
+   public void invalidate (int chatId) {
+      synchronized (_members) {
+         _members.remove(chatId);
+         ++_stamp;
+      }
+   }
+
+   public void chatDeleted (int chatId) {
+      invalidate(chatId);
+      forgetCursors(chatId);
+   }
+
+   // add and remove have invalidated already; these matter for changes
+   // made on another node (ClusterSync). A member who rejoins starts with
+   // the cursor at 0 again (chat_list_unread), so the remembered ones go.
+   public void memberAdded (int chatId, int userId) {
+      invalidate(chatId);
+      forgetCursors(chatId);
+   }
+
+   public void memberRemoved (int chatId, int userId) {
+      invalidate(chatId);
+      forgetCursors(chatId);
+   }
+
+   private void forgetCursors (int chatId) {
+      synchronized (_cursors) {
+         Iterator<Long> it = _cursors.keySet().iterator();
+         while (it.hasNext())
+            if ((int) (it.next().longValue() >>> 32) == chatId)
+               it.remove();
+      }
+   }//end forgetCursors
+
+   /**
+    * Drops every cached member set, e.g. after a user left all their chats.
+    */
+   public void invalidateAll () {
+      synchronized (_members) {
+         _members.clear();
+         ++_stamp;
+      }
+   }
+
+}//end ChatMembership
@@ -0,0 +1,51 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One row of MESSAGE as shown in a chat: id, position in the chat (seq),
+ * text, timestamp and sender (both the user id and the login it resolves
+ * to). Text is stored trimmed of the char(n) padding.
+ */
+public class ChatMessage {
+
+   public final int id;
+   public final int seq;
+   public final String text;
+   public final String timestamp;
+   public final int senderId;
+   public final String sender;
+
+   public ChatMessage (int id, int seq, String text, String timestamp, int senderId, String sender) {
+      this.id = id;
+      this.seq = seq;
+      this.text = text;
+      this.timestamp = timestamp;
+      this.senderId = senderId;
+      this.sender = sender;
+   }
+
+   /**
+    * Builds a message from a (msg_id, msg_text, msg_timestamp, sender_id,
+    * seq) result row.
+    *
+    * @param logins user id -> login, covering the row's sender
+    */
+   public static ChatMessage fromRow (List<String> row, Map<Integer, String> logins) {
+      int senderId = row.get(3) == null ? -1 : Integer.parseInt(row.get(3).trim());
+      String sender = logins.get(senderId);
+      return new ChatMessage(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(4).trim()),
+                             row.get(1).trim(), row.get(2).trim(), senderId, sender == null ? "?" : sender);
+   }
+
+   public ChatMessage withText (String newText) {
+      return new ChatMessage(id, seq, newText, timestamp, senderId, sender);
+   }
+
+   /**
+    * @return a rough estimate of the heap used by this message, for cache budgets
+    */
+   public int estimatedBytes () {
+      return 64 + 2 * (text.length() + timestamp.length() + sender.length());
+   }
+
+}//end ChatMessage
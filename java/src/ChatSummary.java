@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One line of a user's chat list: the chat, its most recent message and how
+ * many messages the user has not read yet.
+ */
+public class ChatSummary {
+
+   public final int chatId;
+   public final String chatType;
+   public final String initSender;
+   public final int lastMsgId;
+   public final String lastText;
+   public final String lastTimestamp;
+   public final int unread;
+
+   public ChatSummary (int chatId, String chatType, String initSender,
+                       int lastMsgId, String lastText, String lastTimestamp, int unread) {
+      this.chatId = chatId;
+      this.chatType = chatType;
+      this.initSender = initSender;
+      this.lastMsgId = lastMsgId;
+      this.lastText = lastText;
+      this.lastTimestamp = lastTimestamp;
+      this.unread = unread;
+   }
+
+   /**
+    * Builds a summary from a (chat_id, chat_type, init_sender_id, msg_id,
+    * msg_text, msg_timestamp, unread) result row.
+    *
+    * @param logins user id -> login, covering the row's initial sender
+    */
+   public static ChatSummary fromRow (List<String> row, Map<Integer, String> logins) {
+      String initSender = row.get(2) == null ? null : logins.get(Integer.valueOf(row.get(2).trim()));
+      return new ChatSummary(Integer.parseInt(row.get(0).trim()), row.get(1).trim(), initSender == null ? "" : initSender,
+                             Integer.parseInt(row.get(3).trim()), row.get(4).trim(), row.get(5).trim(),
+                             Integer.parseInt(row.get(6).trim()));
+   }
+
+   /**
+    * @param unreadNow the unread count including m
+    */
+   public ChatSummary withLastMessage (ChatMessage m, int unreadNow) {
+      return new ChatSummary(chatId, chatType, initSender, m.id, m.text, m.timestamp, unreadNow);
+   }
+
+   public ChatSummary withLastText (String text) {
+      return new ChatSummary(chatId, chatType, initSender, lastMsgId, text, lastTimestamp, unread);
+   }
+
+   public ChatSummary withUnread (int unreadNow) {
+      return new ChatSummary(chatId, chatType, initSender, lastMsgId, lastText, lastTimestamp, unreadNow);
+   }
+
+   /**
+    * @return the columns shown in the chat table: id (with the unread count
+    *         in parentheses if there is one), type, initial sender, recent
+    *         message and its timestamp
+    */
+   public List<String> displayColumns () {
+      List<String> cols = new ArrayList<String>(5);
+      cols.add(unread > 0 ? chatId + " (" + unread + " new)" : String.valueOf(chatId));
+      cols.add(chatType);
+      cols.add(initSender);
+      cols.add(lastText);
+      cols.add(lastTimestamp);
+      return cols;
+   }
+
+}//end ChatSummary
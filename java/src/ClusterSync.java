@@ -0,0 +1,326 @@
+import java.lang.reflect.Method;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Keeps the caches of several Messenger processes (nodes) sharing one
+ * database in step, so a client can be served by any of them.
+ *
+ * Every chat change published on this node's ChatEventBus is sent to the
+ * other nodes as a NOTIFY on the messenger_chat channel once it has
+ * committed; changed contact or block lists and deleted accounts go on
+ * messenger_lists. A listener thread with its own connection receives the
+ * other nodes' notifications and applies them here: the affected history
+ * ring is dropped, the event is published on the local bus (so chat lists,
+ * member sets and the server's pushes to connected clients follow, exactly
+ * as for a local change) and changed lists are reread.
+ *
+ * A payload is "node|kind|a|b", e.g. "3f2a9c|S|12|4711" for message 4711
+ * sent to chat 12; node is a random id per process, so a node skips its own
+ * notifications. JDBC drivers older than 9.0 (like the bundled one) drop
+ * payloads; then the channel still tells what kind of cache went stale: a
+ * chat notification drops the cached messages, members and chat lists, and
+ * only a lists notification rereads the contact and block lists (and
+ * forgets the cached logins). The notifications of one poll are flushed for
+ * once, and the node's own ones are recognized by the backend pid that sent
+ * them. After the listener had to reconnect everything is flushed, since
+ * notifications sent meanwhile are lost.
+ *
+ * Enabled with messenger.cluster=true; messenger.cluster.poll (default 500)
+ * is how many milliseconds the listener waits between polls. Every poll is
+ * a round trip on the listener's connection, one per Messenger instance (a
+ * MessengerDaemon has one per session), so a shorter wait brings the other
+ * nodes' changes sooner for more queries.
+ */
+public class ClusterSync extends ChatEventListener.Adapter implements Runnable {
+
+   private static final String CHAT_CHANNEL = "messenger_chat";
+   private static final String LISTS_CHANNEL = "messenger_lists";
+
+   private final Messenger _esql;
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final String _node = Long.toHexString(new SecureRandom().nextLong() >>> 16);
+   private final long _pollMillis = Long.getLong("messenger.cluster.poll", 500);
+
+   // true on the worker applying another node's event, so it isn't sent back
+   private final ThreadLocal<Boolean> _applying = new ThreadLocal<Boolean>();
+
+   // the backends our notifications were sent from, to skip them without a payload
+   private final Set<Integer> _ownPids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+   private volatile boolean _running = true;
+   private Thread _thread = null;
+   private Connection _listen = null;
+
+   public ClusterSync (Messenger esql, String url, String user, String passwd) {
+      _esql = esql;
+      _url = url;
+      _user = user;
+      _passwd = passwd;
+   }
+
+   /**
+    * Subscribes to the local bus and starts listening for the other nodes.
+    */
+   public void start () {
+      _esql.getEvents().subscribe(this);
+      _thread = new Thread(this, "messenger-cluster");
+      _thread.setDaemon(true);
+      _thread.start();
+   }//end start
+
+   public void close () {
+      _running = false;
+      _esql.getEvents().unsubscribe(this);
+      if (_thread != null)
+         _thread.interrupt();
+   }//end close
+
+   public void messageSent (int chatId, ChatMessage message) {
+      send("S", chatId, message.id);
+   }
+
+   public void messageEdited (int chatId, int msgId, String text) {
+      send("E", chatId, msgId);
+   }
+
+   public void messageDeleted (int chatId, int msgId) {
+      send("D", chatId, msgId);
+   }
+
+   public void memberAdded (int chatId, int userId) {
+      send("A", chatId, userId);
+   }
+
+   public void memberRemoved (int chatId, int userId) {
+      send("R", chatId, userId);
+   }
+
+   public void chatDeleted (int chatId) {
+      send("X", chatId, 0);
+   }
+
+   public void chatRead (int chatId, int userId) {
+      send("C", chatId, userId);
+   }
+
+   public void listsChanged (int userId) {
+      send(LISTS_CHANNEL, "L", userId, 0);
+   }
+
+   public void userDeleted (int userId) {
+      send(LISTS_CHANNEL, "U", userId, 0);
+   }
+
+   /**
+    * @return true on the worker applying another node's event
+    */
+   public boolean applying () {
+      return Boolean.TRUE.equals(_applying.get());
+   }
+
+   private void send (String kind, int a, int b) {
+      send(CHAT_CHANNEL, kind, a, b);
+   }
+
+   private void send (String channel, String kind, int a, int b) {
+      // another node's change, or a daemon instance's passed on to this one
+      if (applying() || EventRelay.relaying())
+         return;
+      try {
+         List<List<String>> sent = _esql.executeQueryAndReturnResult("notifyNodes", "SELECT pg_notify(?, ?), pg_backend_pid()",
+            channel, _node + "|" + kind + "|" + a + "|" + b);
+         _ownPids.add(Integer.valueOf(sent.get(0).get(1).trim()));
+      }catch (SQLException e) {
+         // the change itself is committed; the other nodes catch up on their next flush
+         System.err.println("\tCould not notify the other nodes: " + e.getMessage());
+      }
+   }//end send
+
+   public void run () {
+      while (_running) {
+         try {
+            listen();
+         }catch (SQLException e) {
+            if (!_running)
+               break;
+            System.err.println("\tCluster listener lost its connection: " + e.getMessage());
+            closeQuietly();
+            sleep(1000);
+            // whatever was sent meanwhile is gone
+            flush(true, true);
+         }
+      }
+      closeQuietly();
+   }//end run
+
+   private void listen () throws SQLException {
+      _listen = DriverManager.getConnection(_url, _user, _passwd);
+      Statement stmt = _listen.createStatement();
+      try {
+         stmt.execute("LISTEN " + CHAT_CHANNEL);
+         stmt.execute("LISTEN " + LISTS_CHANNEL);
+         while (_running) {
+            // older drivers only read notifications while running a statement
+            stmt.executeQuery("SELECT 1").close();
+            PGNotification[] received = ((PGConnection) _listen).getNotifications();
+            boolean chats = false;
+            boolean lists = false;
+            if (received != null) {
+               for (PGNotification n : received) {
+                  String payload = payloadOf(n);
+                  if (payload != null)
+                     apply(payload);
+                  else if (!_ownPids.contains(n.getPID())) {
+                     // no payload: only the channel says what changed
+                     if (LISTS_CHANNEL.equals(n.getName()))
+                        lists = true;
+                     else
+                        chats = true;
+                  }
+               }
+            }
+            if (chats || lists)
+               flush(chats, lists);
+            sleep(_pollMillis);
+         }
+      }finally {
+         stmt.close();
+      }
+   }//end listen
+
+   private static String payloadOf (PGNotification n) {
+      try {
+         Method getParameter = n.getClass().getMethod("getParameter");
+         String payload = (String) getParameter.invoke(n);
+         return payload == null || payload.length() == 0 ? null : payload;
+      }catch (Exception e) {
+         // a driver without payloads
+         return null;
+      }
+   }//end payloadOf
+
+   /**
+    * Applies another node's event.
+    */
+   private void apply (String payload) {
+      final String[] f = payload.split("\\|");
+      if (f.length != 4 || f[0].equals(_node))
+         return;
+      onWorker(new Callable<Void>() {
+         public Void call () throws SQLException {
+            applyEvent(f[1].charAt(0), Integer.parseInt(f[2]), Integer.parseInt(f[3]));
+            return null;
+         }
+      });
+   }//end apply
+
+   /**
+    * Drops the chat caches and/or rereads the contact and block lists, for
+    * changes known only by their kind.
+    */
+   private void flush (final boolean chats, final boolean lists) {
+      onWorker(new Callable<Void>() {
+         public Void call () throws SQLException {
+            if (chats) {
+               _esql.getMessages().invalidateAll();
+               _esql.getMembership().invalidateAll();
+               _esql.getChatLists().invalidateAll();
+            }
+            if (lists) {
+               _esql.getSocialGraph().load();
+               _esql.getUsers().forgetAll();
+            }
+            return null;
+         }
+      });
+   }//end flush
+
+   /**
+    * Runs another node's change on an async worker, whose connection can run
+    * the rereads. The rereads go to the primary, as a replica may not have
+    * the change yet.
+    */
+   private void onWorker (final Callable<Void> change) {
+      try {
+         final Callable<Void> work = new Callable<Void>() {
+            public Void call () throws Exception {
+               _applying.set(Boolean.TRUE);
+               try {
+                  return change.call();
+               }finally {
+                  _applying.remove();
+               }
+            }
+         };
+         _esql.async(new Callable<Void>() {
+            public Void call () throws Exception {
+               return _esql.readingPrimary(work);
+            }
+         }).get();
+      }catch (Exception e) {
+         System.err.println("\tCould not apply a change from another node: " + e);
+      }
+   }//end onWorker
+
+   private void applyEvent (char kind, int a, int b) throws SQLException {
+      ChatEventBus events = _esql.getEvents();
+      switch (kind) {
+         case 'S':
+         case 'E':
+            // the ring may hold an older text or be missing earlier messages
+            _esql.getMessages().invalidate(a);
+            List<ChatMessage> found = _esql.getMessages().byIds(a, Collections.singletonList(b));
+            if (found.isEmpty())
+               break;
+            if (kind == 'S')
+               events.messageSent(a, found.get(0));
+            else
+               events.messageEdited(a, b, found.get(0).text);
+            break;
+         case 'D': events.messageDeleted(a, b); break;
+         case 'A': events.memberAdded(a, b); break;
+         case 'R': events.memberRemoved(a, b); break;
+         case 'X': events.chatDeleted(a); break;
+         case 'C': events.chatRead(a, b); break;
+         case 'L': _esql.getSocialGraph().reload(a); break;
+         case 'U':
+            _esql.getSocialGraph().userDeleted(a);
+            events.userDeleted(a);
+            break;
+         default: break;
+      }
+   }//end applyEvent
+
+   private void closeQuietly () {
+      try {
+         if (_listen != null)
+            _listen.close();
+      }catch (SQLException e) {
+         // ignored.
+      }
+      _listen = null;
+   }//end closeQuietly
+
+   private static void sleep (long millis) {
+      try {
+         Thread.sleep(millis);
+      }catch (InterruptedException e) {
+         // close() wakes us up to stop
+      }
+   }//end sleep
+
+}//end ClusterSync
@@ -0,0 +1,227 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tells a client what changed since the version it last saw, instead of
+ * sending it whole lists again.
+ *
+ * The triggers in create_triggers.sql log every change to a chat's
+ * messages and members in CHAT_CHANGE, numbered by CHAT.change_version, and
+ * every change to a user's chats, contacts and blocks in USER_CHANGE,
+ * numbered by USR.change_version. Deletes leave a tombstone row. A client
+ * starts by reading the current version (chatVersion / userVersion) and
+ * then the full state the usual way; from then on it passes the last
+ * version it has to chat() / user(). Applying a change twice is harmless,
+ * so reading the version before the state is enough to miss nothing.
+ *
+ * At most messenger.sync.batch changes (default 500) are returned per
+ * call; "more" says to call again with the returned version.
+ *
+ * Callers check that the user may see the chat before calling chat().
+ * ServerProtocol's SYNC_CHAT and SYNC_USER hand the deltas to clients, and
+ * the chat screen keeps its messages current with a ChatWindow.
+ *
+ * With chats sharded, CHAT_CHANGE is read from the chat's shard. A shard
+ * has no USR rows to log a user's chat joins and leaves against, so
+ * ChatMembership logs those on the main database itself.
+ */
+public class DeltaSync {
+
+   private static final String CHAT_CHANGES_QUERY =
+      "SELECT version, entity, op, item_id FROM CHAT_CHANGE WHERE chat_id = ? AND version > ? ORDER BY version LIMIT ?";
+   private static final String USER_CHANGES_QUERY =
+      "SELECT version, entity, op, item_id FROM USER_CHANGE WHERE user_id = ? AND version > ? ORDER BY version LIMIT ?";
+
+   /**
+    * The changes to one chat after some version, with repeated changes to
+    * the same message or member folded into the last one.
+    */
+   public static class ChatDelta {
+      public final int version;
+      public final boolean more;
+      // new or edited messages, in seq order
+      public final List<ChatMessage> messages = new ArrayList<ChatMessage>();
+      public final List<Integer> deletedMessages = new ArrayList<Integer>();
+      public final List<Integer> membersAdded = new ArrayList<Integer>();
+      public final List<Integer> membersRemoved = new ArrayList<Integer>();
+
+      ChatDelta (int version, boolean more) {
+         this.version = version;
+         this.more = more;
+      }
+   }//end ChatDelta
+
+   /**
+    * The changes to one user's chats, contacts and blocks after some version.
+    */
+   public static class UserDelta {
+      public final int version;
+      public final boolean more;
+      public final List<Integer> chatsJoined = new ArrayList<Integer>();
+      public final List<Integer> chatsLeft = new ArrayList<Integer>();
+      public final List<Integer> contactsAdded = new ArrayList<Integer>();
+      public final List<Integer> contactsRemoved = new ArrayList<Integer>();
+      public final List<Integer> blocksAdded = new ArrayList<Integer>();
+      public final List<Integer> blocksRemoved = new ArrayList<Integer>();
+
+      UserDelta (int version, boolean more) {
+         this.version = version;
+         this.more = more;
+      }
+   }//end UserDelta
+
+   /**
+    * The newest messages of one chat that one reader may see, newest first,
+    * kept current by applying the chat's deltas: after the first load a
+    * redraw reads only what changed since the one before.
+    */
+   public class ChatWindow {
+      private final int _chatId;
+      private final int _readerId;
+      private int _version = -1;
+      private int _limit;
+      private List<ChatMessage> _messages;
+
+      ChatWindow (int chatId, int readerId) {
+         _chatId = chatId;
+         _readerId = readerId;
+      }
+
+      public List<ChatMessage> newest (int limit) throws SQLException {
+         if (_messages == null || limit != _limit)
+            return reload(limit);
+         ChatDelta delta = chat(_chatId, _version);
+         if (delta.more)
+            return reload(limit);
+         if (delta.version == _version)
+            return _messages;
+
+         Map<Integer, ChatMessage> byId = new LinkedHashMap<Integer, ChatMessage>();
+         for (ChatMessage m : _messages)
+            byId.put(m.id, m);
+         for (Integer id : delta.deletedMessages)
+            byId.remove(id);
+         for (ChatMessage m : _esql.getSocialGraph().visibleTo(_readerId, delta.messages))
+            byId.put(m.id, m);
+         // a full window that lost messages has older ones to show in their place
+         if (_messages.size() == _limit && byId.size() < _limit)
+            return reload(limit);
+
+         List<ChatMessage> messages = new ArrayList<ChatMessage>(byId.values());
+         Collections.sort(messages, new Comparator<ChatMessage>() {
+            public int compare (ChatMessage a, ChatMessage b) {
+               return a.seq < b.seq ? 1 : a.seq == b.seq ? 0 : -1;
+            }
+         });
+         _messages = messages.size() > _limit ? new ArrayList<ChatMessage>(messages.subList(0, _limit)) : messages;
+         _version = delta.version;
+         return _messages;
+      }//end newest
+
+      private List<ChatMessage> reload (int limit) throws SQLException {
+         // the version first, so no change made during the load is missed
+         _version = chatVersion(_chatId);
+         _limit = limit;
+         _messages = _esql.getMessages().recentFor(_chatId, _readerId, limit);
+         return _messages;
+      }//end reload
+   }//end ChatWindow
+
+   private final Messenger _esql;
+   private final int _batch;
+
+   public DeltaSync (Messenger esql) {
+      _esql = esql;
+      _batch = Integer.getInteger("messenger.sync.batch", 500);
+   }
+
+   /**
+    * @return the chat's current version, or -1 if the chat doesn't exist
+    */
+   public int chatVersion (int chatId) throws SQLException {
+      List<List<String>> rows = _esql.executeReadOnChat(chatId, "chatVersion",
+         "SELECT change_version FROM CHAT WHERE chat_id = ?", chatId);
+      return rows.size() == 0 ? -1 : Integer.parseInt(rows.get(0).get(0).trim());
+   }
+
+   /**
+    * @return the user's current version, or -1 if the user doesn't exist
+    */
+   public int userVersion (int userId) throws SQLException {
+      List<List<String>> rows = _esql.executeQueryOnReplica("userVersion",
+         "SELECT change_version FROM USR WHERE user_id = ?", userId);
+      return rows.size() == 0 ? -1 : Integer.parseInt(rows.get(0).get(0).trim());
+   }
+
+   public ChatWindow window (int chatId, int readerId) {
+      return new ChatWindow(chatId, readerId);
+   }
+
+   public ChatDelta chat (int chatId, int sinceVersion) throws SQLException {
+      List<List<String>> rows = _esql.executeReadOnChat(chatId, "syncChat", CHAT_CHANGES_QUERY, chatId, sinceVersion, _batch);
+      ChatDelta delta = new ChatDelta(lastVersion(rows, sinceVersion), rows.size() == _batch);
+
+      Map<String, Boolean> latest = fold(rows);
+      List<Integer> upserted = new ArrayList<Integer>();
+      for (Map.Entry<String, Boolean> e : latest.entrySet()) {
+         String entity = e.getKey().substring(0, e.getKey().indexOf(':'));
+         int item = Integer.parseInt(e.getKey().substring(entity.length() + 1));
+         boolean deleted = e.getValue();
+         if (entity.equals("message")) {
+            if (deleted)
+               delta.deletedMessages.add(item);
+            else
+               upserted.add(item);
+         }else if (entity.equals("member")) {
+            (deleted ? delta.membersRemoved : delta.membersAdded).add(item);
+         }
+      }
+
+      // a message deleted after its change was logged shows up as a
+      // tombstone in the next call, so missing rows are simply skipped
+      delta.messages.addAll(_esql.getMessages().byIds(chatId, upserted));
+      return delta;
+   }//end chat
+
+   public UserDelta user (int userId, int sinceVersion) throws SQLException {
+      List<List<String>> rows = _esql.executeQueryOnReplica("syncUser", USER_CHANGES_QUERY, userId, sinceVersion, _batch);
+      UserDelta delta = new UserDelta(lastVersion(rows, sinceVersion), rows.size() == _batch);
+
+      for (Map.Entry<String, Boolean> e : fold(rows).entrySet()) {
+         String entity = e.getKey().substring(0, e.getKey().indexOf(':'));
+         int item = Integer.parseInt(e.getKey().substring(entity.length() + 1));
+         boolean deleted = e.getValue();
+         if (entity.equals("chat"))
+            (deleted ? delta.chatsLeft : delta.chatsJoined).add(item);
+         else if (entity.equals("contact"))
+            (deleted ? delta.contactsRemoved : delta.contactsAdded).add(item);
+         else if (entity.equals("block"))
+            (deleted ? delta.blocksRemoved : delta.blocksAdded).add(item);
+      }
+      return delta;
+   }//end user
+
+   /**
+    * @return "entity:item" -> true if the last change to it was a delete,
+    *         in order of each item's last change
+    */
+   private static Map<String, Boolean> fold (List<List<String>> rows) {
+      Map<String, Boolean> latest = new LinkedHashMap<String, Boolean>();
+      for (List<String> row : rows) {
+         String key = row.get(1).trim() + ":" + row.get(3).trim();
+         latest.remove(key);
+         latest.put(key, row.get(2).trim().equals("D"));
+      }
+      return latest;
+   }//end fold
+
+   private static int lastVersion (List<List<String>> rows, int sinceVersion) {
+      return rows.size() == 0 ? sinceVersion : Integer.parseInt(rows.get(rows.size() - 1).get(0).trim());
+   }
+
+}//end DeltaSync
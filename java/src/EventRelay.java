@@ -0,0 +1,144 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Passes the changes published on one Messenger instance of a pool
+ * (MessengerDaemon) on to all the others, so a session sees what another
+ * session of the same process wrote at once, as if they shared one set of
+ * caches.
+ *
+ * Chat events are published again on the other instances' buses, whose
+ * listeners only touch memory; a changed contact or block list is reread
+ * by each other instance on one of its async workers, since its own
+ * connection may be busy with its session. An event is passed on once: not
+ * when it is itself relayed, and not when ClusterSync is applying another
+ * node's change, which every instance of the pool receives anyway.
+ */
+public class EventRelay {
+
+   // true on a thread publishing a relayed event
+   private static final ThreadLocal<Boolean> RELAYING = new ThreadLocal<Boolean>();
+
+   /**
+    * @return true if the current thread is passing on another instance's
+    *         event, which must not be sent any further (e.g. to other nodes)
+    */
+   public static boolean relaying () {
+      return Boolean.TRUE.equals(RELAYING.get());
+   }
+
+   /**
+    * Subscribes a relay to every instance's bus.
+    */
+   public static void link (List<Messenger> pool) {
+      for (Messenger from : pool) {
+         List<Messenger> others = new ArrayList<Messenger>(pool);
+         others.remove(from);
+         from.getEvents().subscribe(new Relay(from, others));
+      }
+   }//end link
+
+   /**
+    * What one instance publishes, passed on to the others.
+    */
+   private static class Relay extends ChatEventListener.Adapter {
+      private final Messenger _from;
+      private final List<Messenger> _to;
+
+      Relay (Messenger from, List<Messenger> to) {
+         _from = from;
+         _to = to;
+      }
+
+      public void messageSent (final int chatId, final ChatMessage message) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().messageSent(chatId, message); }
+         });
+      }
+
+      public void messageEdited (final int chatId, final int msgId, final String text) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().messageEdited(chatId, msgId, text); }
+         });
+      }
+
+      public void messageDeleted (final int chatId, final int msgId) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().messageDeleted(chatId, msgId); }
+         });
+      }
+
+      public void memberAdded (final int chatId, final int userId) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().memberAdded(chatId, userId); }
+         });
+      }
+
+      public void memberRemoved (final int chatId, final int userId) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().memberRemoved(chatId, userId); }
+         });
+      }
+
+      public void chatDeleted (final int chatId) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().chatDeleted(chatId); }
+         });
+      }
+
+      public void chatRead (final int chatId, final int userId) {
+         relay(new Pass() {
+            void to (Messenger m) { m.getEvents().chatRead(chatId, userId); }
+         });
+      }
+
+      public void listsChanged (final int userId) {
+         relay(new Pass() {
+            void to (final Messenger m) {
+               m.async(new Callable<Void>() {
+                  public Void call () {
+                     try {
+                        m.getSocialGraph().reload(userId);
+                     }catch (SQLException e) {
+                        System.err.println("\tCould not reread the lists of user " + userId + ": " + e.getMessage());
+                     }
+                     return null;
+                  }
+               });
+            }
+         });
+      }
+
+      public void userDeleted (final int userId) {
+         relay(new Pass() {
+            void to (Messenger m) {
+               m.getSocialGraph().userDeleted(userId);
+               m.getEvents().userDeleted(userId);
+            }
+         });
+      }
+
+      private void relay (Pass pass) {
+         ClusterSync cluster = _from.getCluster();
+         if (relaying() || (cluster != null && cluster.applying()))
+            return;
+         RELAYING.set(Boolean.TRUE);
+         try {
+            for (Messenger m : _to)
+               pass.to(m);
+         }finally {
+            RELAYING.remove();
+         }
+      }//end relay
+   }//end Relay
+
+   /**
+    * One event, published on another instance.
+    */
+   private abstract static class Pass {
+      abstract void to (Messenger m);
+   }
+
+}//end EventRelay
@@ -0,0 +1,60 @@
+/**
+ * An immutable Bloom filter over a set of ints.
+ *
+ * Sized at about 10 bits per element with 7 probes, which gives roughly a
+ * 1% false positive rate. mightContain never returns false for an element
+ * that was added, so callers confirm a positive against the exact set.
+ */
+public class IntBloomFilter {
+
+   private static final int BITS_PER_ELEMENT = 10;
+   private static final int PROBES = 7;
+
+   private final long[] _bits;
+   private final int _mask;
+
+   /**
+    * @param ids the elements; may be in any order
+    */
+   public IntBloomFilter (int[] ids) {
+      int bits = 64;
+      while (bits < ids.length * BITS_PER_ELEMENT)
+         bits <<= 1;
+      _bits = new long[bits / 64];
+      _mask = bits - 1;
+
+      for (int id : ids) {
+         int h1 = mix(id);
+         int h2 = mix(h1) | 1;
+         for (int i = 0; i < PROBES; ++i) {
+            int bit = (h1 + i * h2) & _mask;
+            _bits[bit >>> 6] |= 1L << bit;
+         }
+      }
+   }//end IntBloomFilter
+
+   /**
+    * @return false if id is certainly not in the set
+    */
+   public boolean mightContain (int id) {
+      int h1 = mix(id);
+      int h2 = mix(h1) | 1;
+      for (int i = 0; i < PROBES; ++i) {
+         int bit = (h1 + i * h2) & _mask;
+         if ((_bits[bit >>> 6] & (1L << bit)) == 0)
+            return false;
+      }
+      return true;
+   }//end mightContain
+
+   // murmur3 finalizer; user ids are sequential, so they need spreading
+   private static int mix (int h) {
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return h;
+   }
+
+}//end IntBloomFilter
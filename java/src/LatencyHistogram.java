@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values are recorded in microseconds into log-linear buckets: every power of
+ * two is split into 16 sub-buckets, so any recorded value is reported with at
+ * most ~6% relative error while the whole histogram stays at under 8KB.
+ * Recording is a couple of shifts and one atomic increment.
+ */
+public class LatencyHistogram {
+
+   // 2^SUB_BITS sub-buckets per power of two.
+   private static final int SUB_BITS = 4;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one observation.
+    *
+    * @param micros the observed latency in microseconds
+    */
+   public void record (long micros) {
+      if (micros < 0)
+         micros = 0;
+
+      _counts.incrementAndGet(indexOf(micros));
+      _total.incrementAndGet();
+      _sum.addAndGet(micros);
+
+      long max = _max.get();
+      while (micros > max && !_max.compareAndSet(max, micros))
+         max = _max.get();
+   }//end record
+
+   public long getCount () {
+      return _total.get();
+   }
+
+   public long getSumMicros () {
+      return _sum.get();
+   }
+
+   public long getMaxMicros () {
+      return _max.get();
+   }
+
+   public double getMeanMicros () {
+      long n = _total.get();
+      return n == 0 ? 0.0 : (double) _sum.get() / n;
+   }
+
+   /**
+    * Returns the value at the given quantile, i.e. the upper bound of the
+    * bucket that holds the q-th observation.
+    *
+    * @param q the quantile in [0, 1]
+    * @return the latency in microseconds, or 0 if nothing was recorded
+    */
+   public long getValueAtQuantile (double q) {
+      long n = _total.get();
+      if (n == 0)
+         return 0;
+
+      long rank = (long) Math.ceil(q * n);
+      if (rank < 1)
+         rank = 1;
+
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += _counts.get(i);
+         if (seen >= rank)
+            return Math.min(upperBoundOf(i), _max.get());
+      }//end for
+      return _max.get();
+   }//end getValueAtQuantile
+
+   static int indexOf (long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BITS;
+      int mantissa = (int) (value >>> shift) - SUB_COUNT;
+      return (shift + 1) * SUB_COUNT + mantissa;
+   }//end indexOf
+
+   static long upperBoundOf (int index) {
+      if (index < SUB_COUNT)
+         return index;
+
+      int shift = index / SUB_COUNT - 1;
+      long mantissa = index % SUB_COUNT + SUB_COUNT;
+      return ((mantissa + 1) << shift) - 1;
+   }//end upperBoundOf
+
+}//end LatencyHistogram
@@ -0,0 +1,500 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The cold tier of MESSAGE: messages that MessageRetention moved out of the
+ * table, kept in compressed, append-only segment files on local disk.
+ *
+ * Each chat has a directory under messenger.archive.dir (default
+ * "archive"), and every retention run that moves messages of the chat adds
+ * one segment to it, named after the seq range it holds
+ * ("<firstSeq>-<lastSeq>.seg"). seq is the chat's send order, so the names
+ * index the chat's history by time. A segment is written to a temporary
+ * file, forced to disk and renamed into place, and never changed after.
+ *
+ * A segment is a run of blocks of messenger.archive.block (default 128)
+ * messages, each deflated on its own, then an index with every block's seq
+ * range, offset, lengths and msg_id range, then the ids of the segment's
+ * senders, then a 16-byte trailer (index offset, block count, magic). Reads
+ * map the file (FileChannel.map) and inflate only the blocks they need,
+ * newest first, so scrolling back one page costs a block or two; looking a
+ * message up by id inflates only the blocks whose msg_id range holds it.
+ * Segments written before the index had msg_id ranges and senders (magic
+ * "MSG1") are read in full for those. The last messenger.archive.open
+ * (default 32) segments read stay mapped.
+ *
+ * Messages come in and go out as (msg_id, msg_text, msg_timestamp,
+ * sender_id, seq) rows, like MESSAGE query results.
+ *
+ * Archived messages are immutable: they can't be edited or deleted one by
+ * one, only go away with their chat. A deleted chat's directory is removed
+ * once the delete commits (chatDeleted); one left behind, e.g. by a
+ * retention run that raced the delete, is removed by the next run. Each
+ * chat directory also keeps the ids of everyone who sent an archived
+ * message in a "senders" file, so an account with archived messages is
+ * kept like one with messages in the table.
+ */
+public class MessageArchive extends ChatEventListener.Adapter {
+
+   private static final String SUFFIX = ".seg";
+   private static final String SENDERS = "senders";
+   private static final int MAGIC = 0x4d534732;   // "MSG2"
+   private static final int MAGIC_V1 = 0x4d534731;   // "MSG1", without msg_id ranges and senders
+   private static final int TRAILER = 16;
+   private static final int INDEX_ENTRY = 32;
+   private static final int INDEX_ENTRY_V1 = 24;
+
+   private final File _root;
+   private final int _blockRows;
+   private final int _maxOpen;
+
+   // mapped segments by path, in least recently read order
+   private final LinkedHashMap<String, Segment> _open = new LinkedHashMap<String, Segment>(16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<String, Segment> eldest) {
+         return size() > _maxOpen;
+      }
+   };
+
+   /**
+    * One mapped segment file with its block index.
+    */
+   static class Segment {
+      final MappedByteBuffer map;
+      final int[] firstSeq;
+      final int[] lastSeq;
+      final long[] offset;
+      final int[] packed;
+      final int[] raw;
+      final int[] minId;
+      final int[] maxId;
+      // null in a MSG1 segment until senders() read its blocks
+      private Set<Integer> _senders;
+
+      Segment (File f) throws IOException {
+         RandomAccessFile file = new RandomAccessFile(f, "r");
+         try {
+            // the mapping stays valid once the file is closed
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+         }finally {
+            file.close();
+         }
+         int end = map.limit();
+         int magic = end < TRAILER ? 0 : map.getInt(end - 4);
+         if (magic != MAGIC && magic != MAGIC_V1)
+            throw new IOException("Not an archive segment: " + f);
+         boolean v1 = magic == MAGIC_V1;
+         int entry = v1 ? INDEX_ENTRY_V1 : INDEX_ENTRY;
+         int index = (int) map.getLong(end - TRAILER);
+         int blocks = map.getInt(end - TRAILER + 8);
+         firstSeq = new int[blocks];
+         lastSeq = new int[blocks];
+         offset = new long[blocks];
+         packed = new int[blocks];
+         raw = new int[blocks];
+         minId = new int[blocks];
+         maxId = new int[blocks];
+         for (int b = 0; b < blocks; ++b) {
+            int at = index + b * entry;
+            firstSeq[b] = map.getInt(at);
+            lastSeq[b] = map.getInt(at + 4);
+            offset[b] = map.getLong(at + 8);
+            packed[b] = map.getInt(at + 16);
+            raw[b] = map.getInt(at + 20);
+            minId[b] = v1 ? Integer.MIN_VALUE : map.getInt(at + 24);
+            maxId[b] = v1 ? Integer.MAX_VALUE : map.getInt(at + 28);
+         }
+         if (!v1) {
+            int at = index + blocks * INDEX_ENTRY;
+            _senders = new HashSet<Integer>();
+            int n = map.getInt(at);
+            for (int i = 1; i <= n; ++i)
+               _senders.add(map.getInt(at + 4 * i));
+         }
+      }
+
+      int blocks () {
+         return firstSeq.length;
+      }
+
+      /** @return the messages of block b, in seq order */
+      List<List<String>> read (int b) throws IOException {
+         byte[] in = new byte[packed[b]];
+         // a duplicate, so concurrent readers don't share a position
+         ByteBuffer view = map.duplicate();
+         view.position((int) offset[b]);
+         view.get(in);
+         return decode(inflate(in, raw[b]));
+      }
+
+      /** @return the ids of everyone who sent a message in the segment */
+      synchronized Set<Integer> senders () throws IOException {
+         if (_senders == null) {
+            Set<Integer> senders = new HashSet<Integer>();
+            for (int b = 0; b < blocks(); ++b)
+               for (List<String> row : read(b))
+                  if (row.get(3) != null)
+                     senders.add(Integer.valueOf(row.get(3).trim()));
+            _senders = senders;
+         }
+         return _senders;
+      }//end senders
+   }//end Segment
+
+   public MessageArchive (Messenger esql) {
+      _root = new File(System.getProperty("messenger.archive.dir", "archive"));
+      _blockRows = Integer.getInteger("messenger.archive.block", 128);
+      _maxOpen = Integer.getInteger("messenger.archive.open", 32);
+      esql.getEvents().subscribe(this);
+   }//end MessageArchive
+
+   /**
+    * @return true if some of the chat's messages are archived
+    */
+   public boolean has (int chatId) {
+      return !rangesOf(chatId).isEmpty();
+   }
+
+   /**
+    * @return the highest archived seq of the chat, 0 if none is
+    */
+   public int lastSeq (int chatId) {
+      List<int[]> ranges = rangesOf(chatId);
+      return ranges.isEmpty() ? 0 : ranges.get(0)[1];
+   }
+
+   /**
+    * Writes rows, which must be in seq order and follow everything archived
+    * for the chat so far, as a new segment. It is on disk when this returns.
+    */
+   public void append (int chatId, List<List<String>> rows) throws IOException {
+      if (rows.isEmpty())
+         return;
+      File dir = new File(_root, String.valueOf(chatId));
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      String name = seqOf(rows.get(0)) + "-" + seqOf(rows.get(rows.size() - 1));
+      File tmp = new File(dir, name + ".tmp");
+
+      FileOutputStream file = new FileOutputStream(tmp);
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+         ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+         DataOutputStream index = new DataOutputStream(indexBytes);
+         long offset = 0;
+         int blocks = 0;
+         Set<Integer> segmentSenders = new HashSet<Integer>();
+         for (int i = 0; i < rows.size(); i += _blockRows) {
+            List<List<String>> block = rows.subList(i, Math.min(rows.size(), i + _blockRows));
+            byte[] raw = encode(block);
+            byte[] packed = deflate(deflater, raw);
+            out.write(packed);
+            index.writeInt(seqOf(block.get(0)));
+            index.writeInt(seqOf(block.get(block.size() - 1)));
+            index.writeLong(offset);
+            index.writeInt(packed.length);
+            index.writeInt(raw.length);
+            int minId = Integer.MAX_VALUE;
+            int maxId = Integer.MIN_VALUE;
+            for (List<String> row : block) {
+               int id = Integer.parseInt(row.get(0).trim());
+               minId = Math.min(minId, id);
+               maxId = Math.max(maxId, id);
+               if (row.get(3) != null)
+                  segmentSenders.add(Integer.valueOf(row.get(3).trim()));
+            }
+            index.writeInt(minId);
+            index.writeInt(maxId);
+            offset += packed.length;
+            ++blocks;
+         }
+         index.writeInt(segmentSenders.size());
+         for (int id : segmentSenders)
+            index.writeInt(id);
+         indexBytes.writeTo(out);
+         out.writeLong(offset);
+         out.writeInt(blocks);
+         out.writeInt(MAGIC);
+         out.flush();
+         file.getFD().sync();
+      }finally {
+         deflater.end();
+         file.close();
+      }
+      if (!tmp.renameTo(new File(dir, name + SUFFIX))) {
+         tmp.delete();
+         throw new IOException("Cannot move " + tmp + " into place");
+      }
+
+      Set<Integer> senders = sendersOf(chatId);
+      boolean added = false;
+      for (List<String> row : rows)
+         if (row.get(3) != null)
+            added |= senders.add(Integer.valueOf(row.get(3).trim()));
+      if (added)
+         writeSenders(dir, senders);
+   }//end append
+
+   /**
+    * @return true if the chat's archive holds the message; only blocks whose
+    *         msg_id range holds it are inflated
+    */
+   public boolean contains (int chatId, int msgId) throws IOException {
+      File dir = new File(_root, String.valueOf(chatId));
+      for (int[] range : rangesOf(chatId)) {
+         Segment s = open(new File(dir, range[0] + "-" + range[1] + SUFFIX));
+         for (int b = 0; b < s.blocks(); ++b) {
+            if (msgId < s.minId[b] || msgId > s.maxId[b])
+               continue;
+            for (List<String> row : s.read(b))
+               if (Integer.parseInt(row.get(0).trim()) == msgId)
+                  return true;
+         }
+      }
+      return false;
+   }//end contains
+
+   /**
+    * @return true if any chat's archive holds a message sent by the user
+    */
+   public boolean hasSender (int senderId) throws IOException {
+      for (int chatId : chatIds())
+         if (sendersOf(chatId).contains(senderId))
+            return true;
+      return false;
+   }//end hasSender
+
+   /**
+    * @return the chats that have an archive directory
+    */
+   public List<Integer> chatIds () {
+      String[] names = _root.list();
+      List<Integer> ids = new ArrayList<Integer>();
+      if (names == null)
+         return ids;
+      for (String name : names) {
+         try {
+            ids.add(Integer.valueOf(name));
+         }catch (NumberFormatException e) {
+            // not a chat directory
+         }
+      }
+      return ids;
+   }//end chatIds
+
+   /**
+    * @return up to limit archived messages of the chat with seq below
+    *         beforeSeq, newest first
+    */
+   public List<List<String>> before (int chatId, int beforeSeq, int limit) throws IOException {
+      List<List<String>> out = new ArrayList<List<String>>();
+      for (int[] range : rangesOf(chatId)) {
+         if (out.size() >= limit)
+            break;
+         if (range[0] >= beforeSeq)
+            continue;
+         Segment s = open(new File(new File(_root, String.valueOf(chatId)), range[0] + "-" + range[1] + SUFFIX));
+         for (int b = s.blocks() - 1; b >= 0 && out.size() < limit; --b) {
+            if (s.firstSeq[b] >= beforeSeq)
+               continue;
+            List<List<String>> rows = s.read(b);
+            for (int i = rows.size() - 1; i >= 0 && out.size() < limit; --i)
+               if (seqOf(rows.get(i)) < beforeSeq)
+                  out.add(rows.get(i));
+         }
+      }
+      return out;
+   }//end before
+
+   /**
+    * A deleted chat takes its archive with it.
+    */
+   public void chatDeleted (int chatId) {
+      File dir = new File(_root, String.valueOf(chatId));
+      synchronized (_open) {
+         Iterator<String> it = _open.keySet().iterator();
+         while (it.hasNext())
+            if (new File(it.next()).getParentFile().equals(dir))
+               it.remove();
+      }
+      File[] files = dir.listFiles();
+      if (files == null)
+         return;
+      for (File f : files)
+         f.delete();
+      dir.delete();
+   }//end chatDeleted
+
+   /**
+    * @return the (firstSeq, lastSeq) of the chat's segments, newest first;
+    *         listed on every call, since segments are added by another process
+    */
+   private List<int[]> rangesOf (int chatId) {
+      String[] names = new File(_root, String.valueOf(chatId)).list();
+      if (names == null)
+         return Collections.emptyList();
+      List<int[]> ranges = new ArrayList<int[]>(names.length);
+      for (String name : names) {
+         int dash = name.indexOf('-');
+         if (!name.endsWith(SUFFIX) || dash < 0)
+            continue;
+         ranges.add(new int[] { Integer.parseInt(name.substring(0, dash)),
+                                Integer.parseInt(name.substring(dash + 1, name.length() - SUFFIX.length())) });
+      }
+      Collections.sort(ranges, new Comparator<int[]>() {
+         public int compare (int[] a, int[] b) {
+            return a[0] < b[0] ? 1 : a[0] > b[0] ? -1 : 0;
+         }
+      });
+      return ranges;
+   }//end rangesOf
+
+   /**
+    * @return the senders of the chat's archived messages; gathered from its
+    *         segments' indexes, and written down, if an older archive has no
+    *         list yet
+    */
+   private Set<Integer> sendersOf (int chatId) throws IOException {
+      File dir = new File(_root, String.valueOf(chatId));
+      File f = new File(dir, SENDERS);
+      Set<Integer> senders = new HashSet<Integer>();
+      if (f.isFile()) {
+         DataInputStream in = new DataInputStream(new FileInputStream(f));
+         try {
+            for (int n = in.readInt(); n > 0; --n)
+               senders.add(in.readInt());
+         }finally {
+            in.close();
+         }
+         return senders;
+      }
+      List<int[]> ranges = rangesOf(chatId);
+      for (int[] range : ranges)
+         senders.addAll(open(new File(dir, range[0] + "-" + range[1] + SUFFIX)).senders());
+      if (!ranges.isEmpty())
+         writeSenders(dir, senders);
+      return senders;
+   }//end sendersOf
+
+   private static void writeSenders (File dir, Set<Integer> senders) throws IOException {
+      File tmp = new File(dir, SENDERS + ".tmp");
+      FileOutputStream file = new FileOutputStream(tmp);
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+         out.writeInt(senders.size());
+         for (int id : senders)
+            out.writeInt(id);
+         out.flush();
+         file.getFD().sync();
+      }finally {
+         file.close();
+      }
+      // renameTo doesn't replace a file on every platform
+      File f = new File(dir, SENDERS);
+      f.delete();
+      if (!tmp.renameTo(f)) {
+         tmp.delete();
+         throw new IOException("Cannot move " + tmp + " into place");
+      }
+   }//end writeSenders
+
+   private Segment open (File f) throws IOException {
+      String key = f.getPath();
+      synchronized (_open) {
+         Segment s = _open.get(key);
+         if (s == null) {
+            s = new Segment(f);
+            _open.put(key, s);
+         }
+         return s;
+      }
+   }//end open
+
+   private static int seqOf (List<String> row) {
+      return Integer.parseInt(row.get(4).trim());
+   }
+
+   private static byte[] encode (List<List<String>> rows) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.size() * 128);
+      DataOutputStream out = new DataOutputStream(bytes);
+      for (List<String> row : rows) {
+         out.writeInt(Integer.parseInt(row.get(0).trim()));
+         out.writeInt(seqOf(row));
+         out.writeInt(row.get(3) == null ? -1 : Integer.parseInt(row.get(3).trim()));
+         out.writeUTF(row.get(2).trim());
+         out.writeUTF(row.get(1).trim());
+      }
+      return bytes.toByteArray();
+   }//end encode
+
+   private static List<List<String>> decode (byte[] raw) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+      List<List<String>> rows = new ArrayList<List<String>>();
+      while (in.available() > 0) {
+         int msgId = in.readInt();
+         int seq = in.readInt();
+         int senderId = in.readInt();
+         String timestamp = in.readUTF();
+         String text = in.readUTF();
+         rows.add(Arrays.asList(String.valueOf(msgId), text, timestamp,
+                                senderId < 0 ? null : String.valueOf(senderId), String.valueOf(seq)));
+      }
+      return rows;
+   }//end decode
+
+   private static byte[] deflate (Deflater deflater, byte[] raw) {
+      deflater.reset();
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+      byte[] buf = new byte[8192];
+      while (!deflater.finished())
+         out.write(buf, 0, deflater.deflate(buf));
+      return out.toByteArray();
+   }//end deflate
+
+   private static byte[] inflate (byte[] packed, int rawLength) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(packed);
+         byte[] raw = new byte[rawLength];
+         int n = 0;
+         while (n < rawLength) {
+            int got = inflater.inflate(raw, n, rawLength - n);
+            if (got == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+               throw new IOException("Truncated archive block.");
+            n += got;
+         }
+         return raw;
+      }catch (DataFormatException e) {
+         throw new IOException("Corrupt archive block: " + e.getMessage());
+      }finally {
+         inflater.end();
+      }
+   }//end inflate
+
+}//end MessageArchive
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Moves old messages out of MESSAGE into the MessageArchive, so the table
+ * and its indexes only hold the recent history that is actually read.
+ *
+ * A chat keeps its messages in the table for CHAT.retention_days days, or
+ * messenger.retention.days (default 365) when that is NULL; 0 or less keeps
+ * them all. Everything up to the chat's newest expired message is moved,
+ * except the newest message of the chat, which the chat lists are built
+ * from. Per chat, messenger.retention.segment (default 10000) messages at a
+ * time are moved in one transaction: they are read in seq order with
+ * SELECT ... FOR UPDATE, written as one archive segment and deleted from
+ * MESSAGE. The row locks keep them from being edited or deleted between
+ * the read and the delete, so the archive never holds an old version, and
+ * the delete only commits once the segment is on disk.
+ *
+ * The deletes set messenger.archiving for their transaction, which the
+ * MESSAGE triggers (create_triggers.sql) read to not log them for delta
+ * sync: the messages still exist, only elsewhere. If a run stops between
+ * writing a segment and committing, the next one deletes its rows first.
+ *
+ * Archived messages can no longer be edited or deleted (MessageArchive).
+ * Each run also removes the archives of chats that no longer exist, which
+ * a chat deleted while it was being archived leaves behind.
+ *
+ * Run it from cron with retention.sh. Every Messenger process must see the
+ * same messenger.archive.dir, i.e. run on this host or share the directory.
+ */
+public class MessageRetention {
+
+   // the oldest hot message of a chat, found on the (chat_id, seq) index
+   private static final String EXPIRED_CHATS_QUERY =
+      "SELECT C.chat_id, COALESCE(C.retention_days, ?) FROM CHAT C " +
+      "WHERE COALESCE(C.retention_days, ?) > 0 " +
+      "AND (SELECT M.msg_timestamp FROM MESSAGE M WHERE M.chat_id = C.chat_id ORDER BY M.seq LIMIT 1) " +
+      "< LOCALTIMESTAMP - COALESCE(C.retention_days, ?) * INTERVAL '1 day'";
+   private static final String EXPIRED_UP_TO_QUERY =
+      "SELECT MAX(M.seq) FROM MESSAGE M WHERE M.chat_id = ? " +
+      "AND M.msg_timestamp < LOCALTIMESTAMP - ? * INTERVAL '1 day' " +
+      "AND M.seq < (SELECT MAX(N.seq) FROM MESSAGE N WHERE N.chat_id = ?)";
+   private static final String EXPIRED_QUERY =
+      "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_id, M.seq FROM MESSAGE M " +
+      "WHERE M.chat_id = ? AND M.seq > ? AND M.seq <= ? ORDER BY M.seq LIMIT ? FOR UPDATE";
+   private static final String OLDEST_QUERY =
+      "SELECT MIN(M.seq) FROM MESSAGE M WHERE M.chat_id = ?";
+
+   private final Messenger _esql;
+   private final int _defaultDays;
+   private final int _segmentRows;
+
+   public MessageRetention (Messenger esql) {
+      _esql = esql;
+      _defaultDays = Integer.getInteger("messenger.retention.days", 365);
+      _segmentRows = Integer.getInteger("messenger.retention.segment", 10000);
+   }
+
+   /**
+    * Archives the expired messages of every chat.
+    *
+    * @return the number of messages moved
+    */
+   public int run () throws SQLException, IOException {
+      // on every shard when sharded; chats are independent of each other
+      List<List<String>> chats = _esql.executeQueryOnEveryShard("findExpiredChats", EXPIRED_CHATS_QUERY,
+         _defaultDays, _defaultDays, _defaultDays);
+      int moved = 0;
+      for (List<String> row : chats)
+         moved += archiveChat(Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(1).trim()));
+      purgeDeleted();
+      return moved;
+   }//end run
+
+   /**
+    * Removes the archives of deleted chats.
+    */
+   private void purgeDeleted () throws SQLException {
+      MessageArchive archive = _esql.getArchive();
+      for (int chatId : archive.chatIds())
+         if (_esql.executeQueryOnChat(chatId, "findArchivedChat", "SELECT 1 FROM CHAT WHERE chat_id = ?", chatId).isEmpty())
+            archive.chatDeleted(chatId);
+   }//end purgeDeleted
+
+   /**
+    * @return the number of messages of the chat moved
+    */
+   public int archiveChat (int chatId, int days) throws SQLException, IOException {
+      MessageArchive archive = _esql.getArchive();
+      int archived = archive.lastSeq(chatId);
+      // whatever an earlier run archived but didn't get to delete; one
+      // look at the (chat_id, seq) index says whether there is any
+      if (archived > 0) {
+         List<List<String>> oldest = _esql.executeQueryOnChat(chatId, "findOldestMessage", OLDEST_QUERY, chatId);
+         String seq = oldest.isEmpty() ? null : oldest.get(0).get(0);
+         if (seq != null && Integer.parseInt(seq.trim()) <= archived)
+            delete(chatId, 0, archived);
+      }
+
+      List<List<String>> upTo = _esql.executeQueryOnChat(chatId, "findExpiredMessages", EXPIRED_UP_TO_QUERY,
+         chatId, days, chatId);
+      if (upTo.isEmpty() || upTo.get(0).get(0) == null)
+         return 0;
+      int last = Integer.parseInt(upTo.get(0).get(0).trim());
+
+      int moved = 0;
+      while (archived < last) {
+         List<List<String>> rows = archiveSegment(chatId, archived, last);
+         if (rows.isEmpty())
+            break;
+         archived = seqOf(rows.get(rows.size() - 1));
+         moved += rows.size();
+      }
+      return moved;
+   }//end archiveChat
+
+   /**
+    * Moves the next messenger.retention.segment messages with
+    * afterSeq < seq <= upToSeq to a new segment, in one transaction.
+    *
+    * @return the rows moved, in seq order
+    */
+   private List<List<String>> archiveSegment (final int chatId, final int afterSeq, final int upToSeq) throws SQLException {
+      return _esql.inTransaction("archiveMessages", new TransactionWork<List<List<String>>>() {
+         public List<List<String>> run (Messenger esql) throws SQLException {
+            // locked until the delete commits
+            List<List<String>> rows = esql.executeQueryOnChat(chatId, "readExpiredMessages", EXPIRED_QUERY,
+               chatId, afterSeq, upToSeq, _segmentRows);
+            if (rows.isEmpty())
+               return rows;
+            try {
+               esql.getArchive().append(chatId, rows);
+            }catch (IOException e) {
+               throw new SQLException("Could not archive chat " + chatId + ": " + e.getMessage());
+            }
+            deleteArchived(esql, chatId, afterSeq, seqOf(rows.get(rows.size() - 1)));
+            return rows;
+         }
+      });
+   }//end archiveSegment
+
+   /**
+    * Deletes the messages with afterSeq < seq <= upToSeq, which are archived.
+    */
+   private void delete (final int chatId, final int afterSeq, final int upToSeq) throws SQLException {
+      _esql.inTransaction("archiveMessages", new TransactionWork<Integer>() {
+         public Integer run (Messenger esql) throws SQLException {
+            return deleteArchived(esql, chatId, afterSeq, upToSeq);
+         }
+      });
+   }//end delete
+
+   private static int deleteArchived (Messenger esql, int chatId, int afterSeq, int upToSeq) throws SQLException {
+      esql.executeUpdateOnChat(chatId, "archiveMessages", "SET LOCAL messenger.archiving = 'on'");
+      return esql.executeUpdateOnChat(chatId, "archiveMessages",
+         "DELETE FROM MESSAGE WHERE chat_id = ? AND seq > ? AND seq <= ?", chatId, afterSeq, upToSeq);
+   }//end deleteArchived
+
+   private static int seqOf (List<String> row) {
+      return Integer.parseInt(row.get(4).trim());
+   }
+
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessageRetention.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try {
+         Class.forName ("org.postgresql.Driver");
+         // the archive and the routers are all it needs; no user caches
+         esql = new Messenger (args[0], args[1], args[2], "", false);
+         int moved = new MessageRetention(esql).run();
+         System.out.println ("\tArchived " + moved + " messages.");
+      }catch (Exception e) {
+         System.err.println ("\tRetention run failed: " + e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end MessageRetention
@@ -0,0 +1,423 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes chat messages and keeps the newest messages of recently
+ * used chats in memory.
+ *
+ * Each cached chat has a fixed-size ring buffer of its last N messages
+ * (messenger.cache.messages.perchat, default 50). A ring is filled on the
+ * first read of the chat and then kept current from the message events, so
+ * the first pages of a chat are served without reading them again. The total
+ * size of all rings is bounded (messenger.cache.messages.bytes, default
+ * 16MB); the least recently read chats are evicted first.
+ *
+ * Messages older than their chat's retention period live in the
+ * MessageArchive instead of MESSAGE (see MessageRetention). recent reads on
+ * into the archive when it runs out of rows in the table, so paging back
+ * through a chat goes from the hot table to the archive without a seam.
+ *
+ * Other processes' writes reach the events only with ClusterSync, so a ring
+ * is checked against the database every messenger.cache.messages.recheck
+ * milliseconds (default 5000) it is read in; in between it is served as is.
+ * It remembers CHAT.change_version as of the read that filled it, which
+ * every message insert, edit and delete bumps (create_triggers.sql), and
+ * each of this store's own changes that it applies moves it along by one.
+ * If the database's version differs (one primary key read), the ring is
+ * read again.
+ *
+ * Successful writes are published on the ChatEventBus. The rings are updated
+ * by this store's own listener methods rather than in send/edit/delete, so a
+ * write inside a transaction that is rolled back never reaches the cache.
+ */
+public class MessageStore extends ChatEventListener.Adapter {
+
+   // both walk the (chat_id, seq) index; seq is the exact send order. The
+   // chat's change_version comes with the rows, from the same snapshot.
+   private static final String RECENT_QUERY =
+      "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_id, M.seq, " +
+      "(SELECT C.change_version FROM CHAT C WHERE C.chat_id = M.chat_id) FROM message M " +
+      "WHERE M.chat_id = ? ORDER BY M.seq DESC LIMIT ?";
+   private static final String VERSION_QUERY =
+      "SELECT change_version FROM CHAT WHERE chat_id = ?";
+   private static final String SINCE_QUERY =
+      "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_id, M.seq FROM message M " +
+      "WHERE M.chat_id = ? AND M.seq > ? ORDER BY M.seq LIMIT ?";
+
+   private final Messenger _esql;
+   private final int _perChat;
+   private final long _budgetBytes;
+   private final long _recheckMillis;
+
+   // chat_id -> ring of its newest messages, in least recently used order
+   private final LinkedHashMap<Integer, Ring> _rings =
+      new LinkedHashMap<Integer, Ring>(64, 0.75f, true);
+   private long _usedBytes = 0;
+
+   /**
+    * The newest messages of one chat, oldest first in slot order.
+    */
+   static class Ring {
+      final ChatMessage[] slots;
+      int head = 0;      // index of the oldest message
+      int size = 0;
+      long bytes = 0;
+      // true when the ring holds every message of the chat
+      boolean complete;
+      // the CHAT.change_version the ring is current with, -1 if unknown
+      int version;
+      // when the version was last compared with the database
+      long checkedAt = System.currentTimeMillis();
+
+      Ring (int capacity, boolean complete, int version) {
+         slots = new ChatMessage[capacity];
+         this.complete = complete;
+         this.version = version;
+      }
+
+      /** @return true if the version was checked less than millis ago */
+      boolean checkedWithin (long millis) {
+         return System.currentTimeMillis() - checkedAt < millis;
+      }
+
+      /** @return the change in estimated bytes */
+      long append (ChatMessage m) {
+         long freed = 0;
+         if (size == slots.length) {
+            freed = slots[head].estimatedBytes();
+            slots[head] = m;
+            head = (head + 1) % slots.length;
+            complete = false;
+         }else {
+            slots[(head + size) % slots.length] = m;
+            ++size;
+         }
+         bytes += m.estimatedBytes() - freed;
+         return m.estimatedBytes() - freed;
+      }
+
+      int indexOf (int msgId) {
+         for (int i = 0; i < size; ++i)
+            if (slots[(head + i) % slots.length].id == msgId)
+               return i;
+         return -1;
+      }
+
+      long replace (int msgId, String text) {
+         int i = indexOf(msgId);
+         if (i < 0)
+            return 0;
+         int slot = (head + i) % slots.length;
+         long delta = -slots[slot].estimatedBytes();
+         slots[slot] = slots[slot].withText(text);
+         delta += slots[slot].estimatedBytes();
+         bytes += delta;
+         return delta;
+      }
+
+      long remove (int msgId) {
+         int i = indexOf(msgId);
+         if (i < 0)
+            return 0;
+         long delta = -slots[(head + i) % slots.length].estimatedBytes();
+         // shift the newer messages down one slot
+         for (int j = i; j < size - 1; ++j)
+            slots[(head + j) % slots.length] = slots[(head + j + 1) % slots.length];
+         slots[(head + size - 1) % slots.length] = null;
+         --size;
+         bytes += delta;
+         return delta;
+      }
+
+      /** @return up to limit messages, newest first */
+      List<ChatMessage> newest (int limit) {
+         int n = Math.min(limit, size);
+         List<ChatMessage> out = new ArrayList<ChatMessage>(n);
+         for (int i = 0; i < n; ++i)
+            out.add(slots[(head + size - 1 - i) % slots.length]);
+         return out;
+      }
+
+      boolean covers (int limit) {
+         return limit <= size || complete;
+      }
+
+      /** @return true if every message after seq is in the ring */
+      boolean coversAfter (int seq) {
+         return complete || (size > 0 && slots[head].seq <= seq + 1);
+      }
+
+      /** @return up to limit messages with a greater seq, oldest first */
+      List<ChatMessage> after (int seq, int limit) {
+         List<ChatMessage> out = new ArrayList<ChatMessage>();
+         for (int i = 0; i < size && out.size() < limit; ++i) {
+            ChatMessage m = slots[(head + i) % slots.length];
+            if (m.seq > seq)
+               out.add(m);
+         }
+         return out;
+      }
+   }//end Ring
+
+   public MessageStore (Messenger esql) {
+      _esql = esql;
+      _perChat = Integer.getInteger("messenger.cache.messages.perchat", 50);
+      _budgetBytes = Long.getLong("messenger.cache.messages.bytes", 16L * 1024 * 1024);
+      _recheckMillis = Long.getLong("messenger.cache.messages.recheck", 5000L);
+      esql.getEvents().subscribe(this);
+   }//end MessageStore
+
+   /**
+    * @return the newest limit messages of a chat, newest first
+    */
+   public List<ChatMessage> recent (int chatId, int limit) throws SQLException {
+      int version = -1;
+      synchronized (this) {
+         Ring ring = _rings.get(chatId);
+         if (ring != null && ring.covers(limit)) {
+            if (ring.checkedWithin(_recheckMillis))
+               return ring.newest(limit);
+            version = ring.version;
+         }
+      }
+      if (version >= 0 && version == changeVersion(chatId)) {
+         synchronized (this) {
+            Ring ring = _rings.get(chatId);
+            if (ring != null && ring.version == version && ring.covers(limit)) {
+               ring.checkedAt = System.currentTimeMillis();
+               return ring.newest(limit);
+            }
+         }
+      }
+
+      // miss: read at least a full ring so the next pages are cached too
+      int fetch = Math.max(limit, _perChat);
+      List<List<String>> rows = _esql.executeReadOnChat(chatId, "showChatMessages", RECENT_QUERY, chatId, fetch);
+      List<ChatMessage> messages = toMessages(rows);
+      if (rows.size() < fetch && _esql.getArchive().has(chatId)) {
+         // past the oldest hot message the chat goes on in the archive
+         int oldest = messages.isEmpty() ? Integer.MAX_VALUE : messages.get(messages.size() - 1).seq;
+         messages.addAll(archived(chatId, oldest, fetch - messages.size()));
+      }
+
+      synchronized (this) {
+         // fewer messages than asked for means we have seen the whole chat
+         Ring ring = new Ring(_perChat, messages.size() < fetch && messages.size() <= _perChat,
+                              rows.isEmpty() || rows.get(0).get(5) == null ? -1 : Integer.parseInt(rows.get(0).get(5).trim()));
+         for (int i = Math.min(messages.size(), _perChat) - 1; i >= 0; --i)
+            ring.append(messages.get(i));
+         put(chatId, ring);
+      }
+
+      return messages.size() > limit ? new ArrayList<ChatMessage>(messages.subList(0, limit)) : messages;
+   }//end recent
+
+   /**
+    * @return up to limit messages of a chat with seq greater than afterSeq,
+    *         oldest first; a client that has seen everything up to afterSeq
+    *         needs only these
+    */
+   public List<ChatMessage> since (int chatId, int afterSeq, int limit) throws SQLException {
+      int version = -1;
+      synchronized (this) {
+         Ring ring = _rings.get(chatId);
+         if (ring != null && ring.coversAfter(afterSeq)) {
+            if (ring.checkedWithin(_recheckMillis))
+               return ring.after(afterSeq, limit);
+            version = ring.version;
+         }
+      }
+      if (version >= 0 && version == changeVersion(chatId)) {
+         synchronized (this) {
+            Ring ring = _rings.get(chatId);
+            if (ring != null && ring.version == version && ring.coversAfter(afterSeq)) {
+               ring.checkedAt = System.currentTimeMillis();
+               return ring.after(afterSeq, limit);
+            }
+         }
+      }
+      return toMessages(_esql.executeReadOnChat(chatId, "syncChatMessages", SINCE_QUERY, chatId, afterSeq, limit));
+   }//end since
+
+   /**
+    * @return the messages of a chat with the given ids that still exist, in
+    *         seq order; always read from the database
+    */
+   public List<ChatMessage> byIds (int chatId, List<Integer> msgIds) throws SQLException {
+      if (msgIds.isEmpty())
+         return new ArrayList<ChatMessage>();
+      StringBuilder sql = new StringBuilder(
+         "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_id, M.seq FROM message M WHERE M.chat_id = ? AND M.msg_id IN (");
+      List<Object> params = new ArrayList<Object>(msgIds.size() + 1);
+      params.add(chatId);
+      for (int i = 0; i < msgIds.size(); ++i) {
+         sql.append(i == 0 ? "?" : ", ?");
+         params.add(msgIds.get(i));
+      }
+      sql.append(") ORDER BY M.seq");
+      return toMessages(_esql.executeReadOnChat(chatId, "syncChatMessages", sql.toString(), params.toArray()));
+   }//end byIds
+
+   /**
+    * @return the chat's CHAT.change_version, -1 if the chat is gone
+    */
+   private int changeVersion (int chatId) throws SQLException {
+      List<List<String>> rows = _esql.executeReadOnChat(chatId, "chatVersion", VERSION_QUERY, chatId);
+      return rows.isEmpty() ? -1 : Integer.parseInt(rows.get(0).get(0).trim());
+   }
+
+   /**
+    * @return up to limit archived messages of a chat older than beforeSeq,
+    *         newest first
+    */
+   private List<ChatMessage> archived (int chatId, int beforeSeq, int limit) throws SQLException {
+      try {
+         return toMessages(_esql.getArchive().before(chatId, beforeSeq, limit));
+      }catch (IOException e) {
+         throw new SQLException("Could not read the archive of chat " + chatId + ": " + e.getMessage());
+      }
+   }//end archived
+
+   private List<ChatMessage> toMessages (List<List<String>> rows) throws SQLException {
+      List<Integer> senders = new ArrayList<Integer>();
+      for (List<String> row : rows)
+         if (row.get(3) != null)
+            senders.add(Integer.valueOf(row.get(3).trim()));
+      Map<Integer, String> logins = _esql.getUsers().loginsOf(senders);
+
+      List<ChatMessage> messages = new ArrayList<ChatMessage>(rows.size());
+      for (List<String> row : rows)
+         messages.add(ChatMessage.fromRow(row, logins));
+      return messages;
+   }//end toMessages
+
+   /**
+    * Like recent, but without the messages of senders that readerId has
+    * blocked. Reads further back when messages were hidden, so a page still
+    * holds limit messages if the chat has that many visible ones.
+    *
+    * @return the newest limit messages readerId may see, newest first
+    */
+   public List<ChatMessage> recentFor (int chatId, int readerId, int limit) throws SQLException {
+      SocialGraph graph = _esql.getSocialGraph();
+      int fetch = limit;
+      while (true) {
+         List<ChatMessage> all = recent(chatId, fetch);
+         List<ChatMessage> visible = graph.visibleTo(readerId, all);
+         if (visible.size() >= limit || all.size() < fetch)
+            return visible.size() > limit ? new ArrayList<ChatMessage>(visible.subList(0, limit)) : visible;
+         fetch *= 2;
+      }
+   }//end recentFor
+
+   /**
+    * Stores a new message; it is appended to the chat's ring, if cached,
+    * once it is committed.
+    *
+    * @return the stored message
+    */
+   public ChatMessage send (int chatId, int senderId, String text) throws SQLException {
+      // one round trip: msg_id comes from its sequence, seq from the
+      // message_seq trigger, and all three are read back
+      List<List<String>> inserted = _esql.executeQueryOnChat(chatId, "sendMessage",
+         "INSERT INTO message (msg_text, msg_timestamp, sender_id, chat_id) VALUES (?, LOCALTIMESTAMP(0), ?, ?) " +
+         "RETURNING msg_id, msg_timestamp, seq",
+         text, senderId, chatId);
+      int msgID = Integer.parseInt(inserted.get(0).get(0).trim());
+      String timestamp = inserted.get(0).get(1);
+      int seq = Integer.parseInt(inserted.get(0).get(2).trim());
+
+      ChatMessage m = new ChatMessage(msgID, seq, text.trim(), timestamp.trim(), senderId, _esql.getUsers().loginOf(senderId));
+      _esql.getEvents().messageSent(chatId, m);
+      return m;
+   }//end send
+
+   public void edit (int chatId, int msgId, String text) throws SQLException {
+      // only a change that happened bumps change_version, so only that is published
+      if (_esql.executeUpdateOnChat(chatId, "editMessage", "UPDATE MESSAGE SET msg_text = ? WHERE msg_id = ?", text, msgId) > 0)
+         _esql.getEvents().messageEdited(chatId, msgId, text.trim());
+   }//end edit
+
+   public void delete (int chatId, int msgId) throws SQLException {
+      if (_esql.executeUpdateOnChat(chatId, "deleteMessage", "DELETE FROM MESSAGE WHERE msg_id = ?", msgId) > 0)
+         _esql.getEvents().messageDeleted(chatId, msgId);
+   }//end delete
+
+   // Each message change bumps change_version by one, so a ring that sees
+   // the change moves its version along. A ring read again after the commit
+   // but before the event already has the change: a message it holds, or an
+   // edit it shows, is not counted twice; where that can't be told, the
+   // version is left unknown and the next read checks the database.
+
+   public synchronized void messageSent (int chatId, ChatMessage message) {
+      Ring ring = _rings.get(chatId);
+      if (ring != null && ring.indexOf(message.id) < 0) {
+         _usedBytes += ring.append(message);
+         if (ring.version >= 0)
+            ++ring.version;
+         evict();
+      }
+   }//end messageSent
+
+   public synchronized void messageEdited (int chatId, int msgId, String text) {
+      Ring ring = _rings.get(chatId);
+      if (ring == null)
+         return;
+      int i = ring.indexOf(msgId);
+      if (i >= 0 && ring.slots[(ring.head + i) % ring.slots.length].text.equals(text))
+         return;
+      _usedBytes += ring.replace(msgId, text);
+      ring.version = i >= 0 && ring.version >= 0 ? ring.version + 1 : -1;
+   }//end messageEdited
+
+   public synchronized void messageDeleted (int chatId, int msgId) {
+      Ring ring = _rings.get(chatId);
+      if (ring == null)
+         return;
+      int i = ring.indexOf(msgId);
+      _usedBytes += ring.remove(msgId);
+      ring.version = i >= 0 && ring.version >= 0 ? ring.version + 1 : -1;
+   }//end messageDeleted
+
+   /**
+    * Drops the cached messages of a chat. Call when the chat was changed by
+    * a writer that does not go through this store.
+    */
+   public synchronized void invalidate (int chatId) {
+      Ring ring = _rings.remove(chatId);
+      if (ring != null)
+         _usedBytes -= ring.bytes;
+   }
+
+   public synchronized void invalidateAll () {
+      _rings.clear();
+      _usedBytes = 0;
+   }
+
+   public void chatDeleted (int chatId) {
+      invalidate(chatId);
+   }
+
+   private void put (int chatId, Ring ring) {
+      invalidate(chatId);
+      _rings.put(chatId, ring);
+      _usedBytes += ring.bytes;
+      evict();
+   }
+
+   private void evict () {
+      Iterator<Map.Entry<Integer, Ring>> it = _rings.entrySet().iterator();
+      // never evict the chat that was just touched (the last entry)
+      while (_usedBytes > _budgetBytes && _rings.size() > 1 && it.hasNext()) {
+         Ring cold = it.next().getValue();
+         _usedBytes -= cold.bytes;
+         it.remove();
+      }
+   }//end evict
+
+}//end MessageStore
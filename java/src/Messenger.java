@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,8 +22,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,9 +39,78 @@ import java.util.ArrayList;
  */
 public class Messenger {
 
+   // operation name recorded for statements issued without one.
+   public static final String ADHOC = "adhoc";
+
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // latency histograms, row and error counters per logical operation.
+   private final QueryMetrics _metrics = new QueryMetrics();
+
+   // statements slower than the configured threshold, with sampled plans.
+   private SlowQueryLog _slowLog = null;
+
+   // worker threads with their own connections, for reads run in parallel.
+   private AsyncQueries _async = null;
+
+   // cache changes exchanged with other Messenger processes; null unless messenger.cluster is set.
+   private ClusterSync _cluster = null;
+
+   // login of the user currently using this connection, for diagnostics.
+   private String _sessionUser = null;
+
+   // the thread inside inTransaction, if any, with the work to do once it
+   // commits and the shard connections that joined the transaction.
+   private Thread _txThread = null;
+   private List<Runnable> _afterCommit = new ArrayList<Runnable>();
+   private final List<Connection> _enlisted = new ArrayList<Connection>();
+
+   // where chats live when they are spread over several databases; null when
+   // everything is in the main one.
+   private ShardRouter _shards = null;
+
+   // the shard or replica connection a routed statement on this thread is sent to.
+   private final ThreadLocal<Connection> _routed = new ThreadLocal<Connection>();
+
+   // streaming replicas that reads can go to; null when there are none.
+   private ReplicaRouter _replicas = null;
+
+   // set by every statement on the primary, which may have written; the next
+   // replica read first asks the primary how far its log is (_writtenLsn).
+   private volatile boolean _writePending = false;
+   private final AtomicLong _writtenLsn = new AtomicLong();
+
+   // set while reads on this thread must go to the primary (readingPrimary).
+   private final ThreadLocal<Boolean> _primaryReads = new ThreadLocal<Boolean>();
+
+   // chat changes published by the data layer; the caches below subscribe.
+   private final ChatEventBus _events = new ChatEventBus(this);
+
+   // login <-> user_id, resolved once per session.
+   private final UserDirectory _users = new UserDirectory(this);
+
+   // everyone's contact and block lists, loaded when the connection opens.
+   private final SocialGraph _graph = new SocialGraph(this);
+
+   // cached member sets of chats, invalidated on membership writes.
+   private final ChatMembership _membership = new ChatMembership(this);
+
+   // messages moved out of MESSAGE by MessageRetention, in compressed segment files.
+   private final MessageArchive _archive = new MessageArchive(this);
+
+   // message reads and writes, with the newest messages of hot chats cached.
+   private final MessageStore _messages = new MessageStore(this);
+
+   // what changed in a chat or for a user since a given version.
+   private final DeltaSync _sync = new DeltaSync(this);
+
+   // per-user chat lists ordered by last activity.
+   private final ChatListCache _chatLists = new ChatListCache(this);
+
+   // prefix and fuzzy login search, with every login loaded when the connection opens.
+   private final UserSearch _search = new UserSearch(this);
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -49,6 +126,15 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
+      this (dbname, dbport, user, passwd, true);
+   }//end Messenger
+
+   /**
+    * @param caches false for batch jobs that only run statements, like
+    *        MessageRetention: the contact and block lists and the login
+    *        search aren't loaded, and no ClusterSync listener is started
+    */
+   public Messenger (String dbname, String dbport, String user, String passwd, boolean caches) throws SQLException {
 
       //System.out.print("\tConnecting to database...");
       try{
@@ -59,6 +145,28 @@ public class Messenger {
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
          System.out.println("\t\t\tDone\n\n");
+
+         // expose the query metrics over JMX and, if configured, as a dump file
+         this._metrics.registerMBeans();
+         this._metrics.startExport();
+
+         // EXPLAIN runs on its own connection so it never interleaves with ours
+         this._slowLog = new SlowQueryLog(url, user, passwd);
+         this._async = new AsyncQueries(url, user, passwd);
+         this._shards = ShardRouter.fromProperties(user, passwd);
+         this._replicas = ReplicaRouter.fromProperties(user, passwd);
+
+         // contact/block checks and login prefix searches are answered from memory from here on
+         if (caches) {
+            this._graph.load();
+            this._search.load();
+         }
+
+         // from here on, changes made by other nodes reach our caches
+         if (caches && Boolean.getBoolean("messenger.cluster")) {
+            this._cluster = new ClusterSync(this, url, user, passwd);
+            this._cluster.start();
+         }
       }catch (Exception e){
          System.err.println("\t\tError - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("\t\tMake sure you started postgres on this machine");
@@ -74,14 +182,41 @@ public class Messenger {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      executeUpdate (ADHOC, sql);
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Same as executeUpdate(sql), but the statement is recorded in the query
+    * metrics under the given logical operation name.  When parameters are
+    * given, sql is a template with '?' placeholders that are bound in order.
+    *
+    * @param operation the logical operation name, e.g. "sendMessage"
+    * @param sql the input SQL string
+    * @param params values bound to the '?' placeholders of sql
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String operation, String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = 0;
+      boolean failed = true;
 
-      // close the instruction
-      stmt.close ();
+      // creates a statement object
+      Statement stmt = createStatement (sql, params);
+      try {
+         // issues the update instruction
+         if (stmt instanceof PreparedStatement)
+            rows = ((PreparedStatement) stmt).executeUpdate ();
+         else
+            rows = stmt.executeUpdate (sql);
+         failed = false;
+      }finally {
+         // close the instruction
+         stmt.close ();
+         observe (operation, sql, params, System.nanoTime () - start, rows, failed);
+         wrote ();
+      }
+      return rows;
    }//end executeUpdate
 
    /**
@@ -94,38 +229,49 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      return executeQueryAndPrintResult (ADHOC, query);
+   }//end executeQueryAndPrintResult
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   public int executeQueryAndPrintResult (String operation, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
       int rowCount = 0;
+      boolean failed = true;
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-   if(outputHeader){
-      for(int i = 1; i <= numCol; i++){
-    System.out.print(rsmd.getColumnName(i) + "\t");
+      // creates a statement object
+      Statement stmt = createStatement (query, params);
+      try {
+         // issues the query instruction
+         ResultSet rs = runQuery (stmt, query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         failed = false;
+      }finally {
+         stmt.close ();
+         observe (operation, query, params, System.nanoTime () - start, rowCount, failed);
       }
-      System.out.println();
-      outputHeader = false;
-   }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
       return rowCount;
-   }//end executeQuery
+   }//end executeQueryAndPrintResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -136,32 +282,55 @@ public class Messenger {
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
- 
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
- 
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
- 
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      return executeQueryAndReturnResult (ADHOC, query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as executeQueryAndReturnResult(query), but the query is recorded in
+    * the query metrics under the given logical operation name.  When
+    * parameters are given, query is a template with '?' placeholders.
+    *
+    * @param operation the logical operation name, e.g. "listChats"
+    * @param query the input query string
+    * @param params values bound to the '?' placeholders of query
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String operation, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result  = new ArrayList<List<String>>();
+      boolean failed = true;
+
+      // creates a statement object
+      Statement stmt = createStatement (query, params);
+      try {
+         // issues the query instruction
+         ResultSet rs = runQuery (stmt, query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         failed = false;
+      }finally {
+         stmt.close ();
+         observe (operation, query, params, System.nanoTime () - start, result.size (), failed);
+         // e.g. INSERT ... RETURNING
+         if (isWrite (query))
+            wrote ();
+      }
+      return result;
    }//end executeQueryAndReturnResult
 
    /**
@@ -173,22 +342,465 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+      return executeQuery (ADHOC, query);
+   }//end executeQuery
+
+   /**
+    * Same as executeQuery(query), but the query is recorded in the query
+    * metrics under the given logical operation name.  When parameters are
+    * given, query is a template with '?' placeholders.
+    *
+    * @param operation the logical operation name, e.g. "checkLogin"
+    * @param query the input query string
+    * @param params values bound to the '?' placeholders of query
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String operation, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      boolean failed = true;
+
+      // creates a statement object
+      Statement stmt = createStatement (query, params);
+      try {
+         // issues the query instruction
+         ResultSet rs = runQuery (stmt, query);
+
+         // iterates through the result set and count nuber of results.
+         if(rs.next()){
+            rowCount++;
+         }//end while
+         failed = false;
+      }finally {
+         stmt.close ();
+         observe (operation, query, params, System.nanoTime () - start, rowCount, failed);
+      }
+      return rowCount;
+   }//end executeQuery
+
+   /**
+    * Runs work on one of the async worker threads. Statements the work
+    * issues through this Messenger, directly or through the caches, go to
+    * that worker's own connection, so several can run at once. Meant for
+    * reads; see AsyncQueries.
+    *
+    * @return the work's result, once it is done
+    */
+   public <T> Future<T> async (Callable<T> work) {
+      return this._async.submit (work);
+   }//end async
+
+   /**
+    * Same as executeQueryAndReturnResult(operation, query, params), run on
+    * an async worker.
+    */
+   public Future<List<List<String>>> executeQueryAsync (final String operation, final String query, final Object... params) {
+      return async (new Callable<List<List<String>>>() {
+         public List<List<String>> call () throws SQLException {
+            return executeQueryAndReturnResult (operation, query, params);
+         }
+      });
+   }//end executeQueryAsync
+
+   /**
+    * @return true if chats are spread over several databases (ShardRouter)
+    */
+   public boolean isSharded () {
+      return this._shards != null;
+   }
+
+   /**
+    * Same as executeQueryAndReturnResult(operation, query, params), run on
+    * the database that holds chatId: its shard when chats are sharded, the
+    * main database otherwise. Use it for every statement on CHAT, CHAT_LIST
+    * and MESSAGE.
+    */
+   public List<List<String>> executeQueryOnChat (int chatId, String operation, String query, Object... params) throws SQLException {
+      return executeQueryOnShard (this._shards == null ? -1 : this._shards.shardOf (chatId), operation, query, params);
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Same as executeUpdate(operation, sql, params), run on the database that
+    * holds chatId.
+    */
+   public int executeUpdateOnChat (int chatId, String operation, String sql, Object... params) throws SQLException {
+      int shard = this._shards == null ? -1 : this._shards.shardOf (chatId);
+      if (shard < 0)
+         return executeUpdate (operation, sql, params);
+      Connection previous = route (shard);
+      try {
+         return executeUpdate (operation, sql, params);
+      }finally {
+         this._routed.set (previous);
+      }
+   }//end executeUpdateOnChat
 
-       int rowCount = 0;
+   /**
+    * Runs a statement that creates a chat on the database the new chat
+    * should live on; the chat_id it generates routes everything after.
+    */
+   public List<List<String>> executeQueryOnNewChat (String operation, String query, Object... params) throws SQLException {
+      return executeQueryOnShard (this._shards == null ? -1 : this._shards.shardForNewChat (), operation, query, params);
+   }
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Same as executeQueryOnChat for a query that only reads: on the chat's
+    * shard when sharded, otherwise possibly on a replica
+    * (executeQueryOnReplica).
+    */
+   public List<List<String>> executeReadOnChat (int chatId, String operation, String query, Object... params) throws SQLException {
+      if (this._shards != null)
+         return executeQueryOnChat (chatId, operation, query, params);
+      return executeQueryOnReplica (operation, query, params);
    }
 
+   /**
+    * Runs a read-only query on every chat shard at once (or just the main
+    * database, possibly a replica of it, when unsharded), e.g. for a user's
+    * chats, which can be anywhere.
+    *
+    * @return the rows of every shard, shard by shard; callers that need an
+    *         order sort them
+    */
+   public List<List<String>> executeQueryOnEveryShard (final String operation, final String query, final Object... params) throws SQLException {
+      if (this._shards == null)
+         return executeQueryOnReplica (operation, query, params);
+      List<List<List<String>>> parts = this._shards.scatter (new ShardRouter.ShardWork<List<List<String>>>() {
+         public List<List<String>> run (int shard) throws SQLException {
+            return executeQueryOnShard (shard, operation, query, params);
+         }
+      });
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (List<List<String>> part : parts)
+         rows.addAll (part);
+      return rows;
+   }//end executeQueryOnEveryShard
+
+   /**
+    * Runs an update on every chat shard in turn, on this thread, so that
+    * inside inTransaction they all join it.
+    *
+    * @return the rows affected on all shards together
+    */
+   public int executeUpdateOnEveryShard (String operation, String sql, Object... params) throws SQLException {
+      if (this._shards == null)
+         return executeUpdate (operation, sql, params);
+      int rows = 0;
+      for (int shard = 0; shard < this._shards.count (); ++shard) {
+         Connection previous = route (shard);
+         try {
+            rows += executeUpdate (operation, sql, params);
+         }finally {
+            this._routed.set (previous);
+         }
+      }
+      return rows;
+   }//end executeUpdateOnEveryShard
+
+   /**
+    * Same as executeQueryAndReturnResult(operation, query, params) for a
+    * query that only reads the main database, which may be answered by one
+    * of its streaming replicas (ReplicaRouter) instead. The replica has
+    * replayed at least everything this Messenger wrote, so callers always
+    * see their own writes. Without such a replica, inside inTransaction or
+    * in readingPrimary, the primary answers.
+    */
+   public List<List<String>> executeQueryOnReplica (String operation, String query, Object... params) throws SQLException {
+      Connection replica = replica ();
+      if (replica != null) {
+         this._routed.set (replica);
+         try {
+            return executeQueryAndReturnResult (operation, query, params);
+         }catch (SQLException e) {
+            // e.g. canceled by a conflict with recovery; the primary can answer,
+            // and the replica is left alone for a while
+            this._replicas.failed (replica, e);
+            this._metrics.record ("replicaFallback", 0, 0, true);
+         }finally {
+            this._routed.remove ();
+         }
+      }
+      return executeQueryAndReturnResult (operation, query, params);
+   }//end executeQueryOnReplica
+
+   /**
+    * Runs work with every read on this thread sent to the primary: for
+    * acting on a change another process has just committed, which the
+    * replicas may not have replayed yet.
+    */
+   public <T> T readingPrimary (Callable<T> work) throws Exception {
+      Boolean previous = this._primaryReads.get ();
+      this._primaryReads.set (Boolean.TRUE);
+      try {
+         return work.call ();
+      }finally {
+         this._primaryReads.set (previous);
+      }
+   }//end readingPrimary
+
+   /**
+    * @return a replica connection caught up with our writes, or null to
+    *         read from the primary
+    */
+   private Connection replica () throws SQLException {
+      if (this._replicas == null || this._routed.get () != null
+          || this._txThread == Thread.currentThread () || Boolean.TRUE.equals (this._primaryReads.get ()))
+         return null;
+      return this._replicas.caughtUp (writtenLsn ());
+   }//end replica
+
+   /**
+    * @return the primary's log position after our last write
+    *         (pg_current_wal_lsn), asked for only when there was a write
+    *         since the last time
+    */
+   private long writtenLsn () throws SQLException {
+      if (!this._writePending)
+         return this._writtenLsn.get ();
+
+      // cleared first, so a write finishing meanwhile sets it again
+      this._writePending = false;
+      long start = System.nanoTime ();
+      boolean failed = true;
+      Statement stmt = connection ().createStatement ();
+      try {
+         ResultSet rs = stmt.executeQuery ("SELECT pg_current_wal_lsn()");
+         long lsn = rs.next () ? ReplicaRouter.parseLsn (rs.getString (1)) : 0;
+         long seen = this._writtenLsn.get ();
+         while (lsn > seen && !this._writtenLsn.compareAndSet (seen, lsn))
+            seen = this._writtenLsn.get ();
+         failed = false;
+      }finally {
+         stmt.close ();
+         if (failed)
+            this._writePending = true;
+         // not through observe, which would count it as a write
+         this._metrics.record ("currentLsn", System.nanoTime () - start, 1, failed);
+      }
+      return this._writtenLsn.get ();
+   }//end writtenLsn
+
+   private List<List<String>> executeQueryOnShard (int shard, String operation, String query, Object... params) throws SQLException {
+      if (shard < 0)
+         return executeQueryAndReturnResult (operation, query, params);
+      Connection previous = route (shard);
+      try {
+         return executeQueryAndReturnResult (operation, query, params);
+      }finally {
+         this._routed.set (previous);
+      }
+   }//end executeQueryOnShard
+
+   /**
+    * Sends this thread's statements to the shard until the returned
+    * connection is put back, enlisting the shard in inTransaction if one
+    * is running here.
+    *
+    * @return the routing to restore afterwards
+    */
+   private Connection route (int shard) throws SQLException {
+      Connection c = this._shards.connection (shard);
+      if (this._txThread == Thread.currentThread () && !this._enlisted.contains (c)) {
+         c.setAutoCommit (false);
+         this._enlisted.add (c);
+         String isolation = System.getProperty ("messenger.tx.isolation");
+         if (isolation != null) {
+            Statement stmt = c.createStatement ();
+            try {
+               stmt.execute ("SET TRANSACTION ISOLATION LEVEL " + isolation);
+            }finally {
+               stmt.close ();
+            }
+         }
+      }
+      Connection previous = this._routed.get ();
+      this._routed.set (c);
+      return previous;
+   }//end route
+
+   /**
+    * Runs work in one database transaction: autocommit is switched off, the
+    * work runs, and everything it did is committed once. If the work throws,
+    * the transaction is rolled back. A serialization failure or deadlock
+    * (SQLSTATE 40001 / 40P01) is retried up to messenger.tx.retries times
+    * (default 3) with a short randomized backoff, so the work must be safe
+    * to run again.
+    *
+    * Calls nested inside the work join the outer transaction. The isolation
+    * level is the server default unless messenger.tx.isolation is set (e.g.
+    * "serializable").
+    *
+    * With chats sharded, every shard the work sends a statement to joins the
+    * transaction and is committed before the main database. This is not a
+    * two-phase commit: if a commit fails after another succeeded, the error
+    * is thrown without a retry and the databases may disagree.
+    *
+    * @param operation the logical operation name; the whole transaction is
+    *        recorded in the query metrics as "tx:" + operation
+    * @return what the work returned
+    */
+   public <T> T inTransaction (String operation, TransactionWork<T> work) throws SQLException {
+      if (this._async != null && this._async.onWorker ())
+         throw new SQLException ("Transactions cannot be run from async work.");
+      if (this._txThread == Thread.currentThread ())
+         return work.run (this);
+
+      int retries = Integer.getInteger ("messenger.tx.retries", 3);
+      String isolation = System.getProperty ("messenger.tx.isolation");
+      for (int attempt = 0; ; ++attempt) {
+         long start = System.nanoTime ();
+         boolean committed = false;
+         boolean partial = false;
+         this._connection.setAutoCommit (false);
+         this._txThread = Thread.currentThread ();
+         try {
+            if (isolation != null)
+               executeUpdate ("setIsolation", "SET TRANSACTION ISOLATION LEVEL " + isolation);
+            T result = work.run (this);
+            for (Connection shard : this._enlisted) {
+               shard.commit ();
+               partial = true;
+            }
+            this._connection.commit ();
+            this._writePending = true;
+            committed = true;
+            return result;
+         }catch (SQLException e) {
+            rollbackQuietly ();
+            if (partial || attempt >= retries || !isRetryable (e))
+               throw e;
+            backoff (attempt);
+         }catch (RuntimeException e) {
+            rollbackQuietly ();
+            throw e;
+         }finally {
+            this._txThread = null;
+            this._connection.setAutoCommit (true);
+            for (Connection shard : this._enlisted) {
+               try {
+                  shard.setAutoCommit (true);
+               }catch (SQLException e) {
+                  // a closed connection is replaced on its next use
+                  try {
+                     shard.close ();
+                  }catch (SQLException ignored) {
+                  }
+               }
+            }
+            this._enlisted.clear ();
+            this._metrics.record ("tx:" + operation, System.nanoTime () - start, 0, !committed);
+
+            // the work for this attempt is done; only a commit lets it through
+            List<Runnable> pending = this._afterCommit;
+            this._afterCommit = new ArrayList<Runnable>();
+            if (committed)
+               for (Runnable r : pending)
+                  r.run ();
+         }
+      }
+   }//end inTransaction
+
+   /**
+    * Runs r once the current transaction commits, or right away outside
+    * inTransaction. If the transaction rolls back, r is dropped. Caches use
+    * this so they never show a change that was rolled back.
+    */
+   public void afterCommit (Runnable r) {
+      // async workers autocommit; only the thread in inTransaction has one
+      if (this._txThread == Thread.currentThread ())
+         this._afterCommit.add (r);
+      else
+         r.run ();
+   }//end afterCommit
+
+   private void rollbackQuietly () {
+      List<Connection> all = new ArrayList<Connection>(this._enlisted);
+      all.add (this._connection);
+      for (Connection c : all) {
+         try {
+            c.rollback ();
+         }catch (SQLException e) {
+            System.err.println ("	Rollback failed: " + e.getMessage ());
+         }
+      }
+   }//end rollbackQuietly
+
+   private static boolean isRetryable (SQLException e) {
+      String state = e.getSQLState ();
+      if ("40001".equals (state) || "40P01".equals (state))
+         return true;
+      // old drivers don't report SQLSTATE; fall back to the server's message
+      String msg = e.getMessage ();
+      return msg != null && (msg.contains ("could not serialize access") || msg.contains ("deadlock detected"));
+   }//end isRetryable
+
+   private static void backoff (int attempt) {
+      try {
+         Thread.sleep ((long) ((10 << attempt) * (0.5 + Math.random ())));
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }
+   }//end backoff
+
+   /**
+    * Creates a plain statement, or a prepared statement with the parameters
+    * bound when there are any.
+    */
+   private Statement createStatement (String sql, Object[] params) throws SQLException {
+      if (params.length == 0)
+         return connection ().createStatement ();
+
+      PreparedStatement stmt = connection ().prepareStatement (sql);
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+      return stmt;
+   }//end createStatement
+
+   /**
+    * @return the shard connection while a routed statement runs, else the
+    *         async worker's connection on a worker thread, else the main
+    *         connection
+    */
+   private Connection connection () throws SQLException {
+      Connection routed = this._routed.get ();
+      if (routed != null)
+         return routed;
+      Connection worker = this._async == null ? null : this._async.connection ();
+      return worker != null ? worker : this._connection;
+   }
+
+   private static ResultSet runQuery (Statement stmt, String sql) throws SQLException {
+      if (stmt instanceof PreparedStatement)
+         return ((PreparedStatement) stmt).executeQuery ();
+      return stmt.executeQuery (sql);
+   }//end runQuery
+
+   /**
+    * Records a finished statement in the query metrics and, if it was slow,
+    * in the slow query log.
+    */
+   private void observe (String operation, String sql, Object[] params, long nanos, int rows, boolean failed) {
+      this._metrics.record (operation, nanos, rows, failed);
+      if (this._slowLog != null)
+         this._slowLog.observe (operation, sql, params, this._routed.get (), this._sessionUser, nanos, rows, failed);
+   }//end observe
+
+   /**
+    * Notes that a statement may have written the main database, so the next
+    * replica read asks for its new log position. Writes to a shard don't
+    * count, and neither do those inside inTransaction until it commits.
+    */
+   private void wrote () {
+      if (this._routed.get () == null && this._txThread != Thread.currentThread ())
+         this._writePending = true;
+   }//end wrote
+
+   private static boolean isWrite (String sql) {
+      String s = sql.trim ().toUpperCase ();
+      return s.startsWith ("INSERT") || s.startsWith ("UPDATE") || s.startsWith ("DELETE");
+   }//end isWrite
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
@@ -199,18 +811,124 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-  Statement stmt = this._connection.createStatement ();
-  
-  ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-  if (rs.next())
-    return rs.getInt(1);
-  return -1;
+      List<List<String>> result = executeQueryAndReturnResult ("currval", String.format("Select currval('%s')", sequence));
+      if (result.size () > 0)
+         return Integer.parseInt(result.get(0).get(0));
+      return -1;
+   }
+
+   /**
+    * Sets the login reported with slow queries; null when nobody is logged in.
+    */
+   public void setSessionUser (String login) {
+      this._sessionUser = login;
+   }
+
+   /**
+    * @return the login <-> user_id directory backed by this connection
+    */
+   public UserDirectory getUsers () {
+      return this._users;
+   }
+
+   /**
+    * @return the contact and block lists of every user
+    */
+   public SocialGraph getSocialGraph () {
+      return this._graph;
    }
 
+   /**
+    * @return the chat membership service backed by this connection
+    */
+   public ChatMembership getMembership () {
+      return this._membership;
+   }
+
+   /**
+    * @return the message store backed by this connection
+    */
+   public MessageStore getMessages () {
+      return this._messages;
+   }
+
+   /**
+    * @return the archive of messages past their chat's retention period
+    */
+   public MessageArchive getArchive () {
+      return this._archive;
+   }
+
+   /**
+    * @return the per-user chat list cache backed by this connection
+    */
+   public ChatListCache getChatLists () {
+      return this._chatLists;
+   }
+
+   public UserSearch getUserSearch () {
+      return this._search;
+   }
+
+   /**
+    * @return the delta sync service backed by this connection
+    */
+   public DeltaSync getSync () {
+      return this._sync;
+   }
+
+   /**
+    * @return the bus on which the data layer publishes chat changes
+    */
+   public ChatEventBus getEvents () {
+      return this._events;
+   }
+
+   /**
+    * @return the link to the other nodes, or null when running alone
+    */
+   public ClusterSync getCluster () {
+      return this._cluster;
+   }
+
+   /**
+    * @return the per-operation query statistics of this connection
+    */
+   public QueryMetrics getMetrics () {
+      return this._metrics;
+   }
+
+   /**
+    * Closes the shard and replica connections the current thread opened and
+    * forgets its routing state. A thread that is done with this instance
+    * calls this, e.g. one that served a MessengerDaemon session; the daemon
+    * starts a thread per session, and their connections would otherwise
+    * stay open until cleanup.
+    */
+   public void releaseThread () {
+      this._routed.remove ();
+      this._primaryReads.remove ();
+      if (this._shards != null)
+         this._shards.release ();
+      if (this._replicas != null)
+         this._replicas.release ();
+   }//end releaseThread
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      this._metrics.stopExport();
+      if (this._cluster != null)
+         this._cluster.close();
+      if (this._slowLog != null)
+         this._slowLog.close();
+      if (this._async != null)
+         this._async.close();
+      if (this._shards != null)
+         this._shards.close();
+      if (this._replicas != null)
+         this._replicas.close();
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -252,7 +970,7 @@ public class Messenger {
       Messenger esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
          // instantiate the Messenger object and creates a physical
          // connection.
          String dbname = args[0];
@@ -260,67 +978,7 @@ public class Messenger {
          String user = args[2];
          esql = new Messenger (dbname, dbport, user, "");
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            printLogo();
-            System.out.println("\n\n\t===================================");
-            System.out.println("\t\tMAIN MENU");
-            System.out.println("\t===================================");
-            System.out.println("\t1. Login");
-            System.out.println("\t2. Create a New Account");
-            System.out.println("\t===================================");
-            System.out.println("\t9. < EXIT");
-            String authorisedUser = null;
-
-            switch (readChoice())
-            {
-               case 1: authorisedUser = LogIn(esql); break;
-               case 2: CreateUser(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            } //end switch
-
-            if (authorisedUser != null) 
-            {
-              boolean usermenu = true;
-              while(usermenu) {
-                printLogo();
-                System.out.println("\n\n\tYou are logged in as " + authorisedUser + ".");
-                System.out.print("\tStatus: ");
-                DisplayStatus(esql, authorisedUser);
-                System.out.println("\t===================================");
-                System.out.println("\t\tMAIN MENU");
-                System.out.println("\t===================================");
-                System.out.println("\t0. Change Status");
-                System.out.println("\t1. Show Chat Interface");
-                System.out.println("\t2. Show Contacts");
-                System.out.println("\t3. Show Blocked List");
-                System.out.println("\t4. Add a New Contact");
-                System.out.println("\t5. Remove a Contact");
-                System.out.println("\t6. Block a User");
-                System.out.println("\t7. Unblock a User");
-                System.out.println("\t-----------------------------------");
-                System.out.println("\t8. Delete Account");
-                System.out.println("\t===================================");
-                System.out.println("\t9. Log out");
-                switch (readChoice()){
-                   case 0: ChangeStatusMessage(esql, authorisedUser); break;
-                   case 1: ShowChatInterface(esql, authorisedUser); break;
-                   case 2: ListContacts(esql,authorisedUser); break;
-                   case 3: ListBlocks(esql, authorisedUser); break;
-                   case 4: AddToContact(esql,authorisedUser); break;
-                   case 5: RemoveContact(esql,authorisedUser); break;
-                   case 6: AddToBlock(esql, authorisedUser); break;
-                   case 7: UnblockUser(esql, authorisedUser); break;
-                   case 8: usermenu = DeleteAccount(esql, authorisedUser); break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Invalid selection!"); break;
-                }
-              }
-            }
-         }//end while
-
+         RunSession(esql);
       }
 
       catch(Exception e) 
@@ -342,6 +1000,77 @@ public class Messenger {
       }//end try
    }//end main
   
+   /**
+    * Runs the menus until the user exits: the main menu, and the user menu
+    * of whoever logs in. MessengerDaemon runs one per client.
+    */
+   public static void RunSession(Messenger esql) throws Exception {
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         printLogo();
+         System.out.println("\n\n\t===================================");
+         System.out.println("\t\tMAIN MENU");
+         System.out.println("\t===================================");
+         System.out.println("\t1. Login");
+         System.out.println("\t2. Create a New Account");
+         System.out.println("\t===================================");
+         System.out.println("\t9. < EXIT");
+         String authorisedUser = null;
+
+         switch (readChoice())
+         {
+            case 1: authorisedUser = LogIn(esql); break;
+            case 2: CreateUser(esql); break;
+            case 9: keepon = false; break;
+            default : System.out.println("Unrecognized choice!"); break;
+         } //end switch
+
+         if (authorisedUser != null) 
+         {
+           esql.setSessionUser(authorisedUser);
+           Future<String> status = PrefetchAfterLogin(esql, authorisedUser);
+           boolean usermenu = true;
+           while(usermenu) {
+             printLogo();
+             System.out.println("\n\n\tYou are logged in as " + authorisedUser + ".");
+             System.out.print("\tStatus: ");
+             DisplayStatus(esql, authorisedUser, status);
+             status = null;
+             System.out.println("\t===================================");
+             System.out.println("\t\tMAIN MENU");
+             System.out.println("\t===================================");
+             System.out.println("\t0. Change Status");
+             System.out.println("\t1. Show Chat Interface");
+             System.out.println("\t2. Show Contacts");
+             System.out.println("\t3. Show Blocked List");
+             System.out.println("\t4. Add a New Contact");
+             System.out.println("\t5. Remove a Contact");
+             System.out.println("\t6. Block a User");
+             System.out.println("\t7. Unblock a User");
+             System.out.println("\t-----------------------------------");
+             System.out.println("\t8. Delete Account");
+             System.out.println("\t===================================");
+             System.out.println("\t9. Log out");
+             switch (readChoice()){
+                case 0: ChangeStatusMessage(esql, authorisedUser); break;
+                case 1: ShowChatInterface(esql, authorisedUser); break;
+                case 2: ListContacts(esql,authorisedUser); break;
+                case 3: ListBlocks(esql, authorisedUser); break;
+                case 4: AddToContact(esql,authorisedUser); break;
+                case 5: RemoveContact(esql,authorisedUser); break;
+                case 6: AddToBlock(esql, authorisedUser); break;
+                case 7: UnblockUser(esql, authorisedUser); break;
+                case 8: usermenu = DeleteAccount(esql, authorisedUser); break;
+                case 9: usermenu = false; break;
+                default : System.out.println("Invalid selection!"); break;
+             }
+           }
+           esql.setSessionUser(null);
+         }
+      }//end while
+   }//end RunSession
+
    public static void Greeting(){
       System.out.println(
          "\n\n\t********************************************\n" +
@@ -358,8 +1087,17 @@ public class Messenger {
       // returns only if a correct value is given.
       do {
          System.out.print("\nPlease make your choice: ");
+         String line;
+         try {
+            line = in.readLine();
+         }catch (IOException e) {
+            line = null;
+         }
+         // the keyboard or the client is gone; unwind out of every menu
+         if (line == null)
+            throw new IllegalStateException("End of input.");
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(line);
             break;
          }catch (Exception e) {
             System.out.println("\nYour input is invalid!");
@@ -444,16 +1182,17 @@ public class Messenger {
         String phone = in.readLine();
 
         //Creating empty contact\block lists for a user
-        esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
+        esql.executeUpdate("createBlockList", "INSERT INTO USER_LIST(list_type) VALUES ('block')");
         int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-        esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
+        esql.executeUpdate("createContactList", "INSERT INTO USER_LIST(list_type) VALUES ('contact')");
         int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
          
         String query = String.format(
           "INSERT INTO USR (phoneNum, login, password, block_list, contact_list)"+
           " VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
 
-        esql.executeUpdate(query);
+        esql.executeUpdate("createUser", query);
+        esql.getUserSearch().userCreated(esql.getUsers().idOf(login), login);
         System.out.println ("\n\tUser successfully created!");
       }
 
@@ -479,8 +1218,10 @@ public class Messenger {
     try
     {
       // check if user is owner of any chats
-      String query1 = String.format("SELECT * FROM CHAT WHERE init_sender = '%s'", authorisedUser);
-      int result1 = esql.executeQuery(query1);
+      int userID = esql.getUsers().idOf(authorisedUser);
+      // chats and messages can be on any shard
+      int result1 = esql.executeQueryOnEveryShard("checkChatOwnership",
+        "SELECT chat_id FROM CHAT WHERE init_sender_id = ? LIMIT 1", userID).size();
 
       if (result1 > 0)
       {
@@ -489,26 +1230,34 @@ public class Messenger {
       }
 
       // check user sent any messages
-      String query2 = String.format("SELECT * FROM MESSAGE WHERE sender_login = '%s'", authorisedUser);
-      int result2 = esql.executeQuery(query2);
+      int result2 = esql.executeQueryOnEveryShard("checkPostedMessages",
+        "SELECT msg_id FROM MESSAGE WHERE sender_id = ? LIMIT 1", userID).size();
 
-      if (result2 > 0)
+      if (result2 > 0 || esql.getArchive().hasSender(userID))
       {
         System.out.println("\tYou cannot delete your account because you posted a message!");
         return true;
       }
 
-      // if you're here, that means the previous two conditions weren't true
-
-      String query3 = String.format("DELETE FROM CHAT_LIST WHERE member = '%s'", authorisedUser);
-      esql.executeUpdate(query3);
-
+      // if you're here, that means the previous two conditions weren't true.
+      // leaving the chats and deleting the user commit together, so a failed
+      // delete doesn't leave the account without its chats
+      final int deletedID = userID;
+      esql.inTransaction("deleteAccount", new TransactionWork<Void>() {
+        public Void run(Messenger esql) throws SQLException
+        {
+          esql.executeUpdateOnEveryShard("leaveAllChats", "DELETE FROM CHAT_LIST WHERE member_id = ?", deletedID);
+          esql.executeUpdate("deleteUser", "DELETE FROM USR WHERE user_id = ?", deletedID);
+          return null;
+        }
+      });
+      esql.getMembership().invalidateAll();
+      esql.getChatLists().invalidate(userID);
       System.out.println("\tYou were removed from chats.");
 
-      // delete yourself from the userlist
-      String query4 = String.format("DELETE FROM USR WHERE login = '%s'", authorisedUser);
-      esql.executeUpdate(query4);
-
+      esql.getSocialGraph().userDeleted(userID);
+      esql.getEvents().userDeleted(userID);
+      esql.getUserSearch().userDeleted(authorisedUser);
       System.out.println("\tYour existence was erased.");
 
       return false;
@@ -537,7 +1286,7 @@ public class Messenger {
         System.out.print("\tPlease enter user password: ");
         String password = in.readLine();
         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", authorisedUser, password);
-        int userNum = esql.executeQuery(query);
+        int userNum = esql.executeQuery("checkPassword", query);
 
         if (userNum > 0){
           ret = DeleteAccountHelper(esql, authorisedUser);
@@ -585,10 +1334,12 @@ public class Messenger {
           password = in.readLine();
         }
 
-        String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-        int userNum = esql.executeQuery(query);
+        String query = String.format("SELECT user_id FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
+        List<List<String>> user = esql.executeQueryAndReturnResult("logIn", query);
 
-        if (userNum > 0){
+        if (user.size() > 0){
+          // every later query refers to the user by id; resolve it once here
+          esql.getUsers().remember(Integer.parseInt(user.get(0).get(0).trim()), login);
           DisplayEndTitle(menuTitle);
           return login;
       }else{
@@ -613,27 +1364,26 @@ public class Messenger {
       String contact = "INVALID";
 
       try{
-        System.out.print("\tEnter the contact's login: ");
-        contact = in.readLine();
-        String query1 = "SELECT * FROM USR WHERE login = '" + contact + "';";
-        int userNum = esql.executeQuery(query1);
-        if(userNum==0){
+        contact = ReadLogin(esql, authorisedUser, "\tEnter the contact's login (or 'import' to add contacts by phone number): ");
+        if(contact.equals("import")){
+          ImportContacts(esql, authorisedUser);
+          DisplayEndTitle(menuTitle);
+          return;
+        }
+        int contactID = esql.getUsers().idOf(contact);
+        if(contactID < 0){
           System.out.println("\n\t" + contact + " doesn't exist!");
+          SuggestUsers(esql, esql.getUsers().idOf(authorisedUser), contact);
         }else{
-      //Remove from blocked
-          String removeFrom = String.format(
-            "DELETE FROM USER_LIST_CONTAINS "+
-          "WHERE (select block_list from USR where login='%s')=list_id "+
-          "AND list_member = '%s';",authorisedUser,contact);
-          esql.executeUpdate(removeFrom);
-
-          String addTo = String.format(
-              "INSERT INTO USER_LIST_CONTAINS " + 
-              "VALUES ((SELECT contact_list FROM USR WHERE login = '"+ authorisedUser +"'),'" 
-              + contact + "');" );
-            esql.executeUpdate(addTo);
+          int userID = esql.getUsers().idOf(authorisedUser);
+          if(esql.getSocialGraph().isContact(userID, contactID)){
+            System.out.println("\n\t" + contact + " is already in your contact list!");
+          }else{
+            //Remove from blocked, then add to contacts
+            esql.getSocialGraph().addContact(userID, contactID);
 
             System.out.println("\n\t" + contact + " has been added to your contacts.");
+          }
         }
       }
       catch(Exception e){ 
@@ -650,35 +1400,84 @@ public class Messenger {
 
   }//end
 
+   // Adds every user with one of the given phone numbers to the contact list.
+   // The numbers are typed in, or read from a file (one or more per line) for
+   // a whole address book; either way they are matched in one call.
+   public static void ImportContacts(Messenger esql, String authorisedUser) throws Exception{
+      System.out.print("\tEnter phone numbers separated by commas, or @file to read them from a file: ");
+      String input = in.readLine().trim();
+
+      List<String> phones = new ArrayList<String>();
+      if(input.startsWith("@")){
+        BufferedReader file = new BufferedReader(new FileReader(input.substring(1).trim()));
+        try{
+          String line;
+          while((line = file.readLine()) != null)
+            for(String phone : line.split("[,;]"))
+              if(phone.trim().length() > 0)
+                phones.add(phone.trim());
+        }finally{
+          file.close();
+        }
+      }else{
+        for(String phone : input.split(","))
+          if(phone.trim().length() > 0)
+            phones.add(phone.trim());
+      }
+
+      if(phones.isEmpty()){
+        System.out.println("\n\tNo phone numbers given.");
+        return;
+      }
+
+      int userID = esql.getUsers().idOf(authorisedUser);
+      List<SocialGraph.ImportOutcome> outcomes = esql.getSocialGraph().importContacts(userID, phones);
+
+      // logins of everyone added, in one lookup
+      List<Integer> addedIDs = new ArrayList<Integer>();
+      for(SocialGraph.ImportOutcome o : outcomes)
+        if(o.added())
+          addedIDs.add(o.userId);
+      Map<Integer, String> logins = esql.getUsers().loginsOf(addedIDs);
+
+      int added = 0;
+      int unknown = 0;
+      for(SocialGraph.ImportOutcome o : outcomes){
+        if(o.added()){
+          ++added;
+          System.out.println("\t" + logins.get(o.userId) + " (" + o.phone + ") has been added to your contacts.");
+        }else if(o.outcome.equals(SocialGraph.ImportOutcome.BLOCKED))
+          System.out.println("\t" + o.phone + " belongs to a user you blocked; not added.");
+        else if(o.outcome.equals(SocialGraph.ImportOutcome.INVALID))
+          System.out.println("\t" + o.phone + " is not a phone number.");
+        else if(o.outcome.equals(SocialGraph.ImportOutcome.UNKNOWN))
+          ++unknown;
+      }
+      System.out.println("\n\t" + added + " contact(s) added; " + unknown + " number(s) matched no user.");
+   }//end ImportContacts
+
    public static void AddToBlock(Messenger esql, String authorisedUser){
       String menuTitle = "Block a User";
       DisplayMenuTitle(menuTitle);
       String blocker = "INVALID";
 
       try{
-          System.out.print("\tEnter the user's login: ");
-          blocker = in.readLine();
+          blocker = ReadLogin(esql, authorisedUser, "\tEnter the user's login: ");
 
-          String query1 = "SELECT * FROM USR WHERE login = '" + blocker + "';";
-          int userNum = esql.executeQuery(query1);
-          if(userNum==0){
+          int blockerID = esql.getUsers().idOf(blocker);
+          if(blockerID < 0){
             System.out.println("\n\t" + blocker + " doesn't exist!");
+            SuggestUsers(esql, esql.getUsers().idOf(authorisedUser), blocker);
           }else{
-            //Remove from contact
-            String removeFrom = String.format(
-              "DELETE FROM USER_LIST_CONTAINS "+
-            "WHERE (select contact_list from USR where login='%s')=list_id "+
-            "AND list_member = '%s';",authorisedUser,blocker);
-            esql.executeUpdate(removeFrom);
-
-            //Add to Blocked
-            String addTo = String.format(
-                "INSERT INTO USER_LIST_CONTAINS " + 
-                "VALUES ((SELECT block_list FROM USR WHERE login = '%s'),'%s');"
-                ,authorisedUser,blocker);
-              esql.executeUpdate(addTo);
+            int userID = esql.getUsers().idOf(authorisedUser);
+            if(esql.getSocialGraph().isBlocked(userID, blockerID)){
+              System.out.println("\n\t" + blocker + " is already blocked!");
+            }else{
+              //Remove from contact, then add to blocked
+              esql.getSocialGraph().addBlock(userID, blockerID);
 
               System.out.println("\n\t" + blocker + " is now blocked.");
+            }
           }
 
       }catch(Exception e){
@@ -692,25 +1491,75 @@ public class Messenger {
    }
 
    public static void DisplayStatus(Messenger esql, String authorisedUser)
+   {
+    DisplayStatus(esql, authorisedUser, null);
+   }
+
+   // Prints the status, taking it from prefetched when that is given.
+   public static void DisplayStatus(Messenger esql, String authorisedUser, Future<String> prefetched)
    {
 
     try
     {
-      String statusQuery = String.format("SELECT status FROM USR where login = '%s'", authorisedUser);
-      List<List<String>> statusResult = esql.executeQueryAndReturnResult(statusQuery);
+      String status = prefetched != null ? prefetched.get() : FetchStatus(esql, authorisedUser);
+
+      System.out.println(status);
+    }
+
+    catch (Exception e)
+    {
+        System.err.println ("\t" + e.getMessage ());
+    }
+   }
+
+   public static String FetchStatus(Messenger esql, String authorisedUser) throws SQLException
+   {
+      List<List<String>> statusResult = esql.executeQueryOnReplica("getStatus",
+        "SELECT status FROM USR where login = CAST(? AS char(50))", authorisedUser);
 
       String status = "";
 
       if (statusResult.get(0).get(0) != null)
         status = statusResult.get(0).get(0).trim();
 
-      System.out.println(status);
-    }
+      return status;
+   }
 
-    catch (Exception e)
+   // Starts every read the first screens after login need, all at once on the
+   // async workers: the status line, the logins on the contact and block
+   // lists, and the chat list. The screens then find them in the caches, so
+   // logging in waits for the slowest of these instead of all of them in turn.
+   public static Future<String> PrefetchAfterLogin(final Messenger esql, final String authorisedUser)
+   {
+    try
     {
-        System.err.println ("\t" + e.getMessage ());
+      final int userID = esql.getUsers().idOf(authorisedUser);
+      esql.async(new Callable<List<String>>() {
+        public List<String> call() throws SQLException {
+          return esql.getSocialGraph().contactLogins(userID);
+        }
+      });
+      esql.async(new Callable<List<String>>() {
+        public List<String> call() throws SQLException {
+          return esql.getSocialGraph().blockedLogins(userID);
+        }
+      });
+      esql.async(new Callable<List<ChatSummary>>() {
+        public List<ChatSummary> call() throws SQLException {
+          return esql.getChatLists().chatsOf(userID);
+        }
+      });
+    }
+    catch (SQLException e)
+    {
+      // only a warm-up; each screen reads what it needs anyway
     }
+
+    return esql.async(new Callable<String>() {
+      public String call() throws SQLException {
+        return FetchStatus(esql, authorisedUser);
+      }
+    });
    }
 
    public static void ChangeStatusMessage(Messenger esql, String authorisedUser)
@@ -726,7 +1575,7 @@ public class Messenger {
       String newStatus = in.readLine();
 
       String newStatusQuery = String.format("UPDATE USR SET status = '%s' WHERE login = '%s'", newStatus, authorisedUser);
-      esql.executeUpdate(newStatusQuery);
+      esql.executeUpdate("changeStatus", newStatusQuery);
 
     }
 
@@ -743,7 +1592,7 @@ public class Messenger {
       try
       {
         String statusQuery = String.format("SELECT status FROM USR where login = '%s'", contactName);
-        List<List<String>> statusResult = esql.executeQueryAndReturnResult(statusQuery);
+        List<List<String>> statusResult = esql.executeQueryOnReplica("getContactStatus", statusQuery);
         String tab = "\t\t";
 
         if (contactName.length() < 8)
@@ -769,14 +1618,7 @@ public class Messenger {
    {
       try
       {
-        String query =
-          "SELECT ULC.list_member " +
-          "FROM USER_LIST_CONTAINS ULC, USR U " + 
-          "WHERE U.contact_list = ULC.list_id AND U.login = '" + authorisedUser + "'";
-
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+        List<String> result = esql.getSocialGraph().contactLogins(esql.getUsers().idOf(authorisedUser));
 
         if(result.size() == 0)
           System.out.println("\tYou have no friends. :(");
@@ -786,10 +1628,9 @@ public class Messenger {
             System.out.println("\tYou have " + result.size() + " friends.\n");
 
           
-          for(List<String> list : result)
+          for(String name : result)
           {
 
-            String name = list.get(0).trim();
             FormatContact(esql,  name);
 
           }
@@ -806,14 +1647,7 @@ public class Messenger {
    {
       try
       {
-        String query = 
-        "SELECT ULC.list_member " +
-        "FROM USER_LIST_CONTAINS ULC, USR U " + 
-        "WHERE U.block_list = ULC.list_id AND U.login = '" + authorisedUser + "';";
-
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+        List<String> result = esql.getSocialGraph().blockedLogins(esql.getUsers().idOf(authorisedUser));
         if(result.size() == 0)
           System.out.println("\tYou haven't blocked anyone yet.");
         else
@@ -822,13 +1656,8 @@ public class Messenger {
             System.out.println("\tYou blocked " + result.size() + " users.\n");
 
           String output = "";
-          int count = 0;
-          for(List<String> list : result)
-          {
-            ++count;
-            for(String word : list)
-              output+="\t" + word.trim() + "\n";
-          }
+          for(String word : result)
+            output+="\t" + word + "\n";
 
           System.out.println(output);
         }
@@ -848,17 +1677,14 @@ public class Messenger {
 
     try 
     {
-      String userQuery = "";
+      SocialGraph graph = esql.getSocialGraph();
+      int userID = esql.getUsers().idOf(authorisedUser);
+      int removeID = -1;
 
       // obtain the users in the list.
-      if (listType.equals("block"))
-        userQuery = String.format("SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U WHERE U.block_list = ULC.list_id AND U.login = '%s'", authorisedUser);
-      else
-        userQuery = String.format("SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U WHERE U.contact_list = ULC.list_id AND U.login = '%s'", authorisedUser);
-
-      List<List<String>> result = esql.executeQueryAndReturnResult(userQuery);
+      int[] result = listType.equals("block") ? graph.blockedOf(userID) : graph.contactsOf(userID);
 
-      if(result.size() == 0)
+      if(result.length == 0)
         return;
 
       // check if the input is a valid user in the list
@@ -874,14 +1700,9 @@ public class Messenger {
         }
 
         // check if user entered a valid member
-        for (List<String> login : result)
-        {
-          if ( (login.get(0).trim()).equals(userToRemove))
-          {
-            isValidUser = true;
-            break;
-          }
-        }
+        removeID = esql.getUsers().idOf(userToRemove);
+        if (removeID >= 0)
+          isValidUser = listType.equals("block") ? graph.isBlocked(userID, removeID) : graph.isContact(userID, removeID);
 
         if (!isValidUser)
           System.out.println("\t" + "User " + userToRemove + " doesn't belong to this list!");
@@ -891,22 +1712,14 @@ public class Messenger {
       // valid user, so remove them from the list
       if (listType.equals("block"))
       {
-          String removeFrom = String.format(
-          "DELETE FROM USER_LIST_CONTAINS "+
-          "WHERE (select block_list from USR where login='%s')=list_id "+
-          "AND list_member = '%s'",authorisedUser, userToRemove);
-          esql.executeUpdate(removeFrom);
+          graph.removeBlock(userID, removeID);
 
           System.out.println("\n\t" + userToRemove + " is no longer blocked.");
       }
 
       else
       {
-        String removeFrom = String.format(
-        "DELETE FROM USER_LIST_CONTAINS "+
-        "WHERE (select contact_list from USR where login='%s')=list_id "+
-        "AND list_member = '%s'", authorisedUser, userToRemove);
-        esql.executeUpdate(removeFrom);
+        graph.removeContact(userID, removeID);
 
         System.out.println("\n\t" + userToRemove + " has been removed from contacts.");
       }
@@ -1019,11 +1832,10 @@ public class Messenger {
       try{
         // For display chats, check if person is member (currentUser) of chat_id.
         // then display all chats according chat_id
-        String query = String.format("SELECT C.*, M.msg_text, M.msg_timestamp FROM CHAT C, MESSAGE M WHERE M.msg_timestamp IN (SELECT MAX(M1.msg_timestamp) AS ts FROM MESSAGE M1 WHERE M1.chat_id = C.chat_id) AND  C.chat_id = M.chat_id AND C.chat_id IN  (SELECT CL.chat_id FROM CHAT_LIST CL WHERE CL.member='%s' ) ORDER BY M.msg_timestamp DESC", authorisedUser);
-
+        // The list is cached per user and kept current by chat events.
         System.out.println("\tOne moment... loading chats...");
 
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+        List<ChatSummary> result = esql.getChatLists().chatsOf(esql.getUsers().idOf(authorisedUser));
           if(result.size() == 0){
             System.out.println("\tYou have no chats. :(");
             DisplayEndTitle(menuTitle);   
@@ -1036,8 +1848,9 @@ public class Messenger {
             int count = 0;
 
             // rows
-            for(List<String> list : result)
+            for(ChatSummary chat : result)
             {
+              List<String> list = chat.displayColumns();
               ++count;
               //String rowString = count + ". ";
               String rowString = "";
@@ -1121,12 +1934,19 @@ public class Messenger {
         if (chatIDChoice.equals("q") || chatIDChoice.equals("Q") || chatIDChoice.equals("quit") || chatIDChoice.equals("QUIT"))
           return;
 
-        String checkChatIDExistsQuery = "SELECT chat_id FROM chat_list WHERE member = '" + authorisedUser + "' AND chat_id = '" + chatIDChoice + "'";
-        int chatCount = esql.executeQuery(checkChatIDExistsQuery);
+        int candidateID = -1;
+        try
+        {
+          candidateID = Integer.parseInt(chatIDChoice.trim());
+        }
+        catch (NumberFormatException e)
+        {
+          // not a number, so not one of the user's chats
+        }
 
-        if(chatCount == 1)
+        if(candidateID >= 0 && esql.getMembership().isMember(candidateID, esql.getUsers().idOf(authorisedUser)))
         {
-          chatID = Integer.parseInt(chatIDChoice);
+          chatID = candidateID;
           invalidChatID = false;
         }
         else
@@ -1142,18 +1962,22 @@ public class Messenger {
       String retMsg = "";
 
       // check if user is group owner of the chats
-      String groupOwnerQuery = String.format("SELECT init_sender from CHAT WHERE chat_id = %s AND init_sender = '%s'", chatIDChoice, authorisedUser);
-      int groupOwnerVal = esql.executeQuery(groupOwnerQuery);
+      String getOwnerQuery = String.format("SELECT init_sender_id from CHAT WHERE chat_id = %d", chatID);
+      List<List<String>> groupOwnerResult = esql.executeReadOnChat(chatID, "getChatOwner", getOwnerQuery);
 
-      String getOwnerQuery = String.format("SELECT init_sender from CHAT WHERE chat_id = %s", chatIDChoice);
-      List<List<String>> groupOwnerResult = esql.executeQueryAndReturnResult(getOwnerQuery);
+      String groupOwner = "";
+      if (groupOwnerResult.size() > 0 && groupOwnerResult.get(0).get(0) != null)
+      {
+        int ownerID = Integer.parseInt(groupOwnerResult.get(0).get(0).trim());
+        groupOwner = esql.getUsers().loginOf(ownerID);
+        isGroupOwner = ownerID == esql.getUsers().idOf(authorisedUser);
+      }
 
-      if (groupOwnerVal != 0)
-        isGroupOwner = true;
+      DeltaSync.ChatWindow window = esql.getSync().window(chatID, esql.getUsers().idOf(authorisedUser));
 
       while(inChat)
       {
-        ShowChatMessages(esql, authorisedUser, chatID, chatIDChoice, showNumMessages);
+        ShowChatMessages(esql, authorisedUser, window, chatID, chatIDChoice, showNumMessages);
 
         if (messagesLoaded)
         {
@@ -1165,7 +1989,7 @@ public class Messenger {
 
         System.out.println("");
         System.out.println("\tChat #" + chatIDChoice + " Options");
-        System.out.println("\tGroup Owner: " + groupOwnerResult.get(0).get(0));
+        System.out.println("\tGroup Owner: " + groupOwner);
         System.out.println("\t=======================");
         System.out.println("\t1. Show Chat Members");
         System.out.println("\t2. Write a New Message");
@@ -1231,32 +2055,11 @@ public class Messenger {
 
     try
     {
-      String nextChatIDquery = "SELECT chat_id FROM chat ORDER BY chat_id DESC LIMIT 1";
-      List<List<String>> result = esql.executeQueryAndReturnResult(nextChatIDquery);
-
-      int newChatID = Integer.parseInt(result.get(0).get(0)) + 1;
-
-      String query = String.format("INSERT INTO CHAT (chat_id, chat_type, init_sender) VALUES (%d, 'private', '%s')", newChatID, authorisedUser);
-      esql.executeUpdate(query);
-
-      String query1 = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", newChatID, authorisedUser);
-      esql.executeUpdate(query1);
+      int userID = esql.getUsers().idOf(authorisedUser);
 
       // ask user to write an initial message
-      String messageIDQuery = "SELECT msg_id FROM message ORDER BY msg_id DESC LIMIT 1";
-      String timestampQuery = "SELECT LOCALTIMESTAMP(0)";
-
-      List<List<String>> result_msgID = esql.executeQueryAndReturnResult(messageIDQuery);
-      List<List<String>> result_timestamp = esql.executeQueryAndReturnResult(timestampQuery);
-
-      int msgID = Integer.parseInt(result_msgID.get(0).get(0)) + 1;
-      String timestamp = result_timestamp.get(0).get(0);
-
       System.out.print("\tEnter an initial message: ");
       String message = in.readLine();
-      String initMessageQuery = String.format("INSERT INTO message (msg_id, msg_text, msg_timestamp, sender_login, chat_id) VALUES (%d, '%s', '%s', '%s', %d)",
-                                     msgID, message, timestamp, authorisedUser, newChatID);
-      esql.executeUpdate(initMessageQuery);
 
       // Create a dummy message which contains the dummy message's timestamp.
       // This timestamp is used to determine when the chat was created.
@@ -1267,44 +2070,42 @@ public class Messenger {
 
       // display contact list and prompt
       DisplayContacts(esql,authorisedUser,false);
-      System.out.println("Who do you want to add to the chat from your contact? \nEnter each contact one at a time. Type 'done' when finished adding.");
-
-      boolean doneAdding = false;
-      int groupSize = 0;
+      System.out.println("Who do you want to add to the chat from your contact? \nEnter contacts separated by spaces or commas, on one line or several. Type the start of a name and '*' to look it up. Type 'done' when finished adding.");
 
-      while(!doneAdding)
+      final List<String> logins = new ArrayList<String>();
+      while (true)
       {
         System.out.print("\t");
-        String newUser = in.readLine();
+        String line = in.readLine();
 
-        if (newUser.equals("done"))
+        if (line == null || line.trim().equals("done"))
           break;
- 
-        String checkUserQuery = String.format(
-          "SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U " + 
-          "WHERE U.contact_list = ULC.list_id AND U.login = '%s' AND ULC.list_member = '%s'", authorisedUser, newUser);
-        int result1 = esql.executeQuery(checkUserQuery);
-
-        if (result1 == 0)
-          System.out.println("\t" + newUser + " is an invalid user!\n");
 
-        // add the user to chat
+        if (line.trim().endsWith("*") && line.trim().length() > 1)
+          ListUserMatches(esql, authorisedUser, line.trim().substring(0, line.trim().length() - 1));
         else
+          logins.addAll(ParseLogins(line));
+      }
+
+      // the chat and its first message, then every member checked and added
+      // in one statement; both commit together
+      final String text = message;
+      final int ownerID = userID;
+      final List<ChatMembership.MemberOutcome> outcomes = new ArrayList<ChatMembership.MemberOutcome>();
+      int newChatID = esql.inTransaction("createChat", new TransactionWork<Integer>() {
+        public Integer run(Messenger esql) throws SQLException
         {
-          String query2 = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", newChatID, newUser);
-          esql.executeUpdate(query2);
-          System.out.println("\t" + newUser + " has been added to chat #" + newChatID + "\n");
-          groupSize++;
+          int chatID = esql.getMembership().createChat(ownerID, text);
+          outcomes.clear();
+          if (!logins.isEmpty())
+            outcomes.addAll(esql.getMembership().addMembers(chatID, ownerID, logins));
+          return chatID;
         }
+      });
 
-      }
-
-      if (groupSize > 1)
-      {
-        String query3 = String.format ("UPDATE chat SET chat_type = 'group' WHERE chat_id = %s", newChatID);
-        esql.executeUpdate(query3);
-      }
+      // chat_type follows CHAT.member_count, which the CHAT_LIST trigger keeps current
       System.out.println("\tChat #" + newChatID + " created.");
+      ReportMemberOutcomes(esql, userID, outcomes);
     }
     catch(Exception e)
     {
@@ -1322,8 +2123,9 @@ public class Messenger {
     try
     {
       // first, find all of the chats that they own using init sender. List those chats.
-      String query1 = String.format("SELECT * FROM CHAT WHERE init_sender = '%s'", authorisedUser);
-      List<List<String>> chatList = esql.executeQueryAndReturnResult(query1);
+      int userID = esql.getUsers().idOf(authorisedUser);
+      List<List<String>> chatList = esql.executeQueryOnEveryShard("listOwnedChats",
+        "SELECT chat_id, chat_type, CAST(? AS text) FROM CHAT WHERE init_sender_id = ?", authorisedUser, userID);
 
       if(chatList.size() == 0)
       {
@@ -1379,28 +2181,25 @@ public class Messenger {
         return;
       }
 
-      String query2 = String.format("SELECT * FROM CHAT WHERE chat_id = %s AND init_sender = '%s'", chatID, authorisedUser);
-
       // then execute query, check if that chat exists. if true, delete all messages first where chat_id = input_chatID
-      int count = esql.executeQuery(query2);
+      final int chatId = Integer.parseInt(chatID.trim());
+      int count = esql.executeReadOnChat(chatId, "checkChatOwner",
+        "SELECT chat_id FROM CHAT WHERE chat_id = ? AND init_sender_id = ?", chatId, userID).size();
       if (count == 0)
         System.out.println("\tInvalid chat #!");
 
       else
       {
-        // then delete from message -> chat_list -> chat
-        String query3 = String.format("DELETE FROM MESSAGE WHERE chat_id = %s", chatID);
-        esql.executeUpdate(query3);
+        // then delete from message -> chat_list -> chat, all or nothing
+        esql.inTransaction("deleteChat", new TransactionWork<Void>() {
+          public Void run(Messenger esql) throws SQLException
+          {
+            esql.getMembership().deleteChat(chatId);
+            return null;
+          }
+        });
         System.out.println("\tMessages from chat #" + chatID + " deleted.");
-
-        // then delete the entries in chat_list
-        String query4 = String.format("DELETE FROM CHAT_LIST WHERE chat_id = %s", chatID);
-        esql.executeUpdate(query4);
         System.out.println("\tRemoving members from chat #" + chatID);
-
-        // then delete the chat
-        String query5 = String.format("DELETE FROM CHAT WHERE chat_id = %s", chatID);
-        esql.executeUpdate(query5);
         System.out.println("\tChat #" + chatID + " deleted.");
       }
     }
@@ -1415,8 +2214,7 @@ public class Messenger {
   public static void ShowChatMembers(Messenger esql,String authorisedUser,int chatID){
     String menuTitle = "Chat Members";
     try{
-      String query = "SELECT DISTINCT CL.member FROM CHAT C, CHAT_LIST CL WHERE "+chatID+" = CL.chat_id";
-        List<List<String> > result = esql.executeQueryAndReturnResult(query);
+        Set<String> result = esql.getMembership().memberLogins(chatID);
           if(result.size() == 0){
             System.out.println("\n\tNo members in chat");
             DisplayEndTitle(menuTitle);   
@@ -1425,14 +2223,8 @@ public class Messenger {
               System.out.println("\tYou have " + result.size() + " members in chat.");
 
             String output = "";
-            int count = 0;
-            for(List<String> list : result)
-            {
-              ++count;
-              for(String word : list)
-                // output+="\t"+count +". "+ word.trim() + "\n";
-                output += "\t" + word.trim() + "\n";
-            }
+            for(String member : result)
+              output += "\t" + member + "\n";
             System.out.println(output);
           }
       }
@@ -1564,15 +2356,16 @@ public class Messenger {
   }
   
   //(this one shows all messages in a given chat)
-  public static void ShowChatMessages(Messenger esql, String authorisedUser, int chatID, String chatIDChoice, int showNumMessages)
+  public static void ShowChatMessages(Messenger esql, String authorisedUser, DeltaSync.ChatWindow window, int chatID, String chatIDChoice, int showNumMessages)
   {
     String menuTitle = "Chat #" + chatIDChoice + " Messages";
     DisplayMenuTitle(menuTitle);
-    String query = "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_login FROM message M WHERE M.chat_id = '" + chatID + "' ORDER BY M.msg_timestamp DESC LIMIT " + showNumMessages;
 
     try
     {
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
+      // newest first; loaded once, then only the chat's changes since the
+      // last redraw are read. messages from users you blocked are left out.
+      List<ChatMessage> result = window.newest(showNumMessages);
 
 
       if(result.size() == 0)
@@ -1586,11 +2379,15 @@ public class Messenger {
         int numRows = result.size();
         for(int i = numRows-1; i >= 0; i--)
         {
-          List<String> row = result.get(i);
-          DisplayChatMessages(row.get(0).trim(), row.get(1).trim(), row.get(2).trim(), row.get(3).trim(), authorisedUser);
+          ChatMessage m = result.get(i);
+          DisplayChatMessages(String.valueOf(m.id), m.text, m.timestamp, m.sender, authorisedUser);
 
         } // end for loop rows
 
+        // everything up to the newest message shown has now been seen; a
+        // redraw with nothing new doesn't write (see markRead)
+        esql.getMembership().markRead(chatID, esql.getUsers().idOf(authorisedUser), result.get(0).seq);
+
       } // end else
 
     } // end try
@@ -1611,24 +2408,10 @@ public class Messenger {
 
     try
     {
-      // first, obtain the msg_id.
-      String query1 = "SELECT msg_id FROM message ORDER BY msg_id DESC LIMIT 1";
-      String timestampQuery = "SELECT LOCALTIMESTAMP(0)";
-
-      List<List<String>> result_msgID = esql.executeQueryAndReturnResult(query1);
-      List<List<String>> result_timestamp = esql.executeQueryAndReturnResult(timestampQuery);
-
-      int msgID = Integer.parseInt(result_msgID.get(0).get(0)) + 1;
-      String timestamp = result_timestamp.get(0).get(0);
-
       System.out.print("\tEnter a message: ");
       String message = in.readLine();
-      String query2 = String.format("INSERT INTO message (msg_id, msg_text, msg_timestamp, sender_login, chat_id) VALUES (%d, '%s', '%s', '%s', %d)",
-                                     msgID, message, timestamp, authorisedUser, chatID);
-
+      esql.getMessages().send(chatID, esql.getUsers().idOf(authorisedUser), message);
 
-      esql.executeUpdate(query2); 
-      
       ret = "\n\tMessage was sent!";
     }
 
@@ -1660,11 +2443,26 @@ public class Messenger {
         return "\tNo messages were removed!";
       }
 
-      // first check that the user chose a correct message.
-      String verifyMSGIDquery = String.format ("SELECT msg_text FROM MESSAGE WHERE msg_id = %s AND chat_id = %d AND sender_login = '%s'", msgID, chatID, authorisedUser);
-      List<List<String>> result = esql.executeQueryAndReturnResult(verifyMSGIDquery);
+      int msgNum = -1;
+      try
+      {
+        msgNum = Integer.parseInt(msgID.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        // not a number, so not one of the user's messages
+      }
 
-      if (result.size() == 0)
+      // first check that the user chose a correct message.
+      List<List<String>> result = new ArrayList<List<String>>();
+      if (msgNum >= 0)
+        result = esql.executeReadOnChat(chatID, "getOwnMessage",
+          "SELECT msg_text FROM MESSAGE WHERE msg_id = ? AND chat_id = ? AND sender_id = ?",
+          msgNum, chatID, esql.getUsers().idOf(authorisedUser));
+
+      if (result.size() == 0 && msgNum >= 0 && esql.getArchive().contains(chatID, msgNum))
+        ret = "\tError: Message #" + msgNum + " is archived; archived messages cannot be deleted.";
+      else if (result.size() == 0)
         ret = "\tError: You have either entered an invalid message # or tried to delete another user's message.";
       else
       {
@@ -1675,8 +2473,7 @@ public class Messenger {
 
         if (answer.equals("y") || answer.equals ("Y") || answer.equals("yes") || answer.equals("Yes") )
         {
-          String editMessageQuery = String.format("DELETE FROM MESSAGE WHERE msg_id = %s", msgID);
-          esql.executeUpdate(editMessageQuery);
+          esql.getMessages().delete(chatID, msgNum);
           ret = "\tMessage #" + msgID + " deleted.";
         }
 
@@ -1712,11 +2509,26 @@ public class Messenger {
         return "\tNo messages were editted.";
       }
 
-      // first check that the user chose a correct message.
-      String verifyMSGIDquery = String.format ("SELECT msg_text FROM MESSAGE WHERE msg_id = %s AND chat_id = %d AND sender_login = '%s'", msgID, chatID, authorisedUser);
-      List<List<String>> result = esql.executeQueryAndReturnResult(verifyMSGIDquery);
+      int msgNum = -1;
+      try
+      {
+        msgNum = Integer.parseInt(msgID.trim());
+      }
+      catch (NumberFormatException e)
+      {
+        // not a number, so not one of the user's messages
+      }
 
-      if (result.size() == 0)
+      // first check that the user chose a correct message.
+      List<List<String>> result = new ArrayList<List<String>>();
+      if (msgNum >= 0)
+        result = esql.executeReadOnChat(chatID, "getOwnMessage",
+          "SELECT msg_text FROM MESSAGE WHERE msg_id = ? AND chat_id = ? AND sender_id = ?",
+          msgNum, chatID, esql.getUsers().idOf(authorisedUser));
+
+      if (result.size() == 0 && msgNum >= 0 && esql.getArchive().contains(chatID, msgNum))
+        ret = "\tError: Message #" + msgNum + " is archived; archived messages cannot be edited.";
+      else if (result.size() == 0)
         ret = "\tError: You have either entered an invalid message # or tried to edit another user's message.";
       else
       {
@@ -1725,8 +2537,7 @@ public class Messenger {
         System.out.print("\tEnter a new message: ");
         String newMessage = in.readLine();
 
-        String editMessageQuery = String.format("UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = %s", newMessage, msgID);
-        esql.executeUpdate(editMessageQuery);
+        esql.getMessages().edit(chatID, msgNum, newMessage);
 
         ret = "\tMessage #" + msgID + " has been editted.";
       }
@@ -1749,14 +2560,7 @@ public class Messenger {
   {
     try
     {
-        String query = 
-        "SELECT ULC.list_member " +
-        "FROM USER_LIST_CONTAINS ULC, USR U " + 
-        "WHERE U.contact_list = ULC.list_id AND U.login = '" + authorisedUser + "';";
-
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+        List<String> result = esql.getSocialGraph().contactLogins(esql.getUsers().idOf(authorisedUser));
         if(result.size() == 0)
           System.out.println("\tYou have no friends. :(");
         else
@@ -1764,14 +2568,8 @@ public class Messenger {
             System.out.println("\tYou have " + result.size() + " friends.\n");
 
           String output = "";
-          int count = 0;
-          for(List<String> list : result)
-          {
-            ++count;
-            for(String word : list)
-              // output+="\t"+count +". "+ word.trim() + "\n";
-              output += "\t" + word.trim() + "\n";
-          }
+          for(String word : result)
+            output += "\t" + word + "\n";
             System.out.println(output);
         }
     }
@@ -1791,11 +2589,8 @@ public class Messenger {
     try
     {
       // display friends who aren't in the chat yet
-      String chatMembers = String.format("SELECT member FROM CHAT_LIST WHERE chat_id = %d", chatID);
-      String contacts = String.format("SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U WHERE U.contact_list = ULC.list_id AND U.login = '%s'", authorisedUser);
-      String query = contacts + " AND ULC.list_member NOT IN (" + chatMembers + ")";
-
-      List<List<String>> users = esql.executeQueryAndReturnResult(query);
+      int[] addable = esql.getSocialGraph().contactsNotIn(esql.getUsers().idOf(authorisedUser), esql.getMembership().members(chatID));
+      List<String> users = esql.getSocialGraph().loginsOf(addable);
 
       if (users.size() == 0)
       {
@@ -1803,71 +2598,44 @@ public class Messenger {
         return "\tAll of your friends are already in the chat!";
       }
 
-      for (List<String> u : users)
-        System.out.println("\t" + u.get(0).trim());
+      for (String u : users)
+        System.out.println("\t" + u);
 
-      boolean isValidUser = false;
-      String userToAdd = "";
+      List<String> usersToAdd = new ArrayList<String>();
 
-      // check if user entered a valid input
-      while (!isValidUser)
+      // check if user entered at least one login
+      while (usersToAdd.isEmpty())
       {
-        System.out.print("\n\tWho do you want to add? (Type 'q' to cancel): ");
-        userToAdd = in.readLine();
+        System.out.print("\n\tWho do you want to add? Separate several users with spaces or commas. (Type 'q' to cancel): ");
+        String line = in.readLine();
 
-        if (userToAdd.equals("q") || userToAdd.equals("Q"))
+        if (line == null || line.equals("q") || line.equals("Q"))
           return "\tNo users were added to the chat.";
 
-        for (List<String> u : users)
-        {
-          if (userToAdd.equals(u.get(0).trim()))
-          {
-            isValidUser = true;
-            break;
-          }
-        }
-
-        if (!isValidUser)
-          System.out.println("\tUser " + userToAdd + "is either already in the chat or an invalid user.");
-      } // end of while for isValidUser
+        usersToAdd = ParseLogins(line);
+      } // end of while for usersToAdd
 
-      List<List<String>> numMembers = esql.executeQueryAndReturnResult(chatMembers);
+      int numMembers = esql.getMembership().memberCount(chatID);
+      int userID = esql.getUsers().idOf(authorisedUser);
 
-      // after adding this member, check if this action will make the group more than 2 people. if so, change from private to group.
-      if ( (numMembers.size() <= 2)  )
+      // after adding these members, check if this action will make the group more than 2 people. if so, it becomes a group.
+      if (numMembers <= 2 && numMembers + usersToAdd.size() > 2)
       {
-          System.out.print("\tAre you sure you want to add this user? New users will see your private messages. (y/n): ");
+          System.out.print("\tAre you sure you want to add these users? New users will see your private messages. (y/n): ");
           String answer = in.readLine();
 
-          if (answer.equals("y") || answer.equals("Y") || answer.equals("yes") || answer.equals ("YES"))
-          {
-            // add the user 
-            String addMemberQuery = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", chatID, userToAdd);
-            esql.executeUpdate(addMemberQuery);
-
-             ret = "\t" + userToAdd + " has been added to the chat.";
-
-             // if adding a user to a chat consisting of one other person, change chat_type from private->group
-             if (numMembers.size() == 2)
-             {
-                String privateToGroupQuery = String.format("UPDATE CHAT SET chat_type = 'group' WHERE chat_id = %d", chatID);
-                esql.executeUpdate(privateToGroupQuery);
-                ret += "\n\t" + "Chat #" + chatID + " is now a group chat.";
-             }
-          } // end of checking for yes
-
-          else
-            return "\t" + userToAdd + " was not added to the chat.";
+          if (!(answer.equals("y") || answer.equals("Y") || answer.equals("yes") || answer.equals ("YES")))
+            return "\tNo users were added to the chat.";
+      } // end of if that checks if user really wants to add other users
 
-      } // end of if that checks if user really wants to add another user
+      // every login is checked and added in one call
+      List<ChatMembership.MemberOutcome> outcomes = esql.getMembership().addMembers(chatID, userID, usersToAdd);
+      int added = ReportMemberOutcomes(esql, userID, outcomes);
+      ret = "\t" + added + " user(s) added to the chat.";
 
-      else
-      {
-        // add the user 
-        String addMemberQuery = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", chatID, userToAdd);
-        esql.executeUpdate(addMemberQuery);
-        ret = "\t" + userToAdd + " has been added to the chat.";
-      }
+      // adding users to a chat of two turns it private->group
+      if (added > 0 && numMembers <= 2 && numMembers + added > 2)
+        ret += "\n\t" + "Chat #" + chatID + " is now a group chat.";
 
     } // end of try
 
@@ -1881,6 +2649,86 @@ public class Messenger {
     return ret;
   }
 
+  // Splits a line of logins separated by spaces and/or commas.
+  public static List<String> ParseLogins(String line)
+  {
+    List<String> logins = new ArrayList<String>();
+    for (String login : line.trim().split("[\\s,]+"))
+      if (login.length() > 0 && !logins.contains(login))
+        logins.add(login);
+    return logins;
+  }
+
+  // Prints what happened to each login of a batch add; returns how many were added.
+  public static int ReportMemberOutcomes(Messenger esql, int userID, List<ChatMembership.MemberOutcome> outcomes) throws SQLException
+  {
+    int added = 0;
+    for (ChatMembership.MemberOutcome o : outcomes)
+    {
+      if (o.added())
+      {
+        ++added;
+        System.out.println("\t" + o.login + " has been added to the chat.");
+      }
+      else if (o.outcome.equals(ChatMembership.MemberOutcome.ALREADY_MEMBER))
+        System.out.println("\t" + o.login + " is already in the chat.");
+      else if (o.outcome.equals(ChatMembership.MemberOutcome.NOT_CONTACT))
+        System.out.println("\t" + o.login + " is not in your contact list.");
+      else
+      {
+        System.out.println("\t" + o.login + " is an invalid user!");
+        SuggestUsers(esql, userID, o.login);
+      }
+    }
+    return added;
+  }
+
+  // Reads a login. Typing the start of one followed by '*' lists the users
+  // it matches instead, and asks again.
+  public static String ReadLogin(Messenger esql, String authorisedUser, String prompt) throws Exception
+  {
+    while (true)
+    {
+      System.out.print(prompt);
+      String typed = in.readLine().trim();
+      if (!typed.endsWith("*") || typed.length() == 1)
+        return typed;
+      ListUserMatches(esql, authorisedUser, typed.substring(0, typed.length() - 1));
+    }
+  }
+
+  // Lists the users matching what was typed, contacts first, a page at a time.
+  public static void ListUserMatches(Messenger esql, String authorisedUser, String typed) throws Exception
+  {
+    int userID = esql.getUsers().idOf(authorisedUser);
+    for (int page = 0; ; ++page)
+    {
+      UserSearch.Page found = esql.getUserSearch().search(userID, typed, page);
+      if (found.logins.isEmpty() && page == 0)
+        System.out.println("\tNo users match " + typed + ".");
+      for (int i = 0; i < found.logins.size(); ++i)
+        System.out.println("\t" + found.logins.get(i) + (i < found.contacts ? " (contact)" : ""));
+      if (!found.more)
+        return;
+      System.out.print("\tShow more? (y/n): ");
+      String answer = in.readLine();
+      if (!(answer.equals("y") || answer.equals("Y")))
+        return;
+    }
+  }
+
+  // After an unknown login: prints the closest existing ones, if there are any.
+  public static void SuggestUsers(Messenger esql, int userID, String typed) throws SQLException
+  {
+    List<String> similar = esql.getUserSearch().search(userID, typed, 0).logins;
+    if (similar.size() == 0)
+      return;
+    String output = "\tDid you mean: " + similar.get(0);
+    for (int i = 1; i < similar.size(); ++i)
+      output += ", " + similar.get(i);
+    System.out.println(output + "?");
+  }
+
   public static String RemoveUserFromChat(Messenger esql, String authorisedUser, int chatID)
   {
     String title = "Remove a User From Chat";
@@ -1889,11 +2737,8 @@ public class Messenger {
 
     try{
       // first display users in the chat
-        String chatMemberQuery = String.format("SELECT CL.member FROM CHAT_LIST CL WHERE CL.chat_id = %d AND CL.member != '%s'", chatID, authorisedUser);
-
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> chatMemberList = esql.executeQueryAndReturnResult(chatMemberQuery);
+        Set<String> chatMemberList = new TreeSet<String>(esql.getMembership().memberLogins(chatID));
+        chatMemberList.remove(authorisedUser);
         if(chatMemberList.size() == 0)
           ret = "\tYou can't remove yourself from the chat! :(";
         else
@@ -1901,14 +2746,8 @@ public class Messenger {
           System.out.println("\tThere are " + chatMemberList.size() + " other user(s) in this chat.\n");
 
           String output = "";
-          int count = 0;
-          for(List<String> list : chatMemberList)
-          {
-            ++count;
-            for(String word : list)
-              // output+="\t"+count +". "+ word.trim() + "\n";
-              output += "\t" + word.trim() + "\n";
-          }
+          for(String member : chatMemberList)
+            output += "\t" + member + "\n";
 
           System.out.println(output);
 
@@ -1927,31 +2766,19 @@ public class Messenger {
             }
 
             // check if user entered a valid member
-            for (List<String> login : chatMemberList)
-            {
-              if ( (login.get(0).trim()).equals(userToRemove))
-              {
-                isValidMember = true;
-                break;
-              }
-            }
+            isValidMember = chatMemberList.contains(userToRemove);
 
             if (!isValidMember)
               System.out.println("\t" + "User " + userToRemove + " is not a member of this chat!");
 
           } // end of while loop
 
-          String removeUserQuery = String.format ("DELETE FROM CHAT_LIST WHERE chat_id = %d AND member = '%s'", chatID, userToRemove);
-          esql.executeUpdate(removeUserQuery);
+          int numMembers = esql.getMembership().remove(chatID, esql.getUsers().idOf(authorisedUser), esql.getUsers().idOf(userToRemove));
           ret = "\n\t" + userToRemove + " has been removed from chat #" + chatID + ".";
 
-          // after deleting this member, check if this action will make the group less than 2 people. if so, make the group private.
-          if ( (chatMemberList.size() == 2) && (chatMemberList.size() - 1) < 2)
-          {
-            String groupToPrivateQuery = String.format("UPDATE CHAT SET chat_type = 'private' WHERE chat_id = %d", chatID);
-            esql.executeUpdate(groupToPrivateQuery);
+          // after deleting this member, check if this action left the group with 2 people. if so, it became private.
+          if (numMembers == 2)
             ret += "\n\t" + "Chat #" + chatID + " is now a private chat.";
-          }
 
         } // end of else
 
@@ -0,0 +1,76 @@
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+
+/**
+ * The front end for MessengerDaemon: connects to it on
+ * 127.0.0.1:messenger.daemon.port (default 7350) and passes the terminal's
+ * input and the daemon's output through unchanged, after sending the
+ * daemon's token from messenger.daemon.token (see MessengerDaemon). Needs
+ * no JDBC driver and no database connection of its own, so it starts at
+ * once.
+ */
+public class MessengerClient {
+
+   public static void main (String[] args) {
+      int port = Integer.getInteger("messenger.daemon.port", 7350);
+      byte[] token;
+      try {
+         token = new String(Files.readAllBytes(tokenFile().toPath()), "UTF-8").trim().getBytes("UTF-8");
+      }catch (IOException e) {
+         System.err.println ("\tCannot read the daemon's token (" + e.getMessage () + "); is it running as you?");
+         System.exit(1);
+         return;
+      }
+
+      try {
+         final Socket daemon = new Socket("127.0.0.1", port);
+         final OutputStream toDaemon = daemon.getOutputStream();
+         toDaemon.write(token);
+         toDaemon.write('\n');
+         toDaemon.flush();
+
+         // keyboard -> daemon on its own thread; the session ends when the
+         // daemon closes the socket
+         Thread keyboard = new Thread(new Runnable() {
+            public void run () {
+               try {
+                  copy(System.in, toDaemon);
+                  daemon.shutdownOutput();
+               }catch (IOException e) {
+                  // the daemon closed the session
+               }
+            }
+         }, "messenger-client-input");
+         keyboard.setDaemon(true);
+         keyboard.start();
+
+         copy(daemon.getInputStream(), System.out);
+         daemon.close();
+      }catch (IOException e) {
+         System.err.println ("\tCannot reach the Messenger daemon on port " + port + ": " + e.getMessage ());
+         System.exit(1);
+      }
+   }//end main
+
+   /**
+    * @return the file the daemon writes its token to and clients read it from
+    */
+   public static File tokenFile () {
+      return new File(System.getProperty("messenger.daemon.token",
+                      new File(System.getProperty("user.home"), ".messenger_daemon_token").getPath()));
+   }
+
+   private static void copy (InputStream in, OutputStream out) throws IOException {
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) >= 0) {
+         out.write(buf, 0, n);
+         out.flush();
+      }
+   }//end copy
+
+}//end MessengerClient
@@ -0,0 +1,152 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keeps Messenger running between uses, so starting a session doesn't pay
+ * for a new JVM, the JDBC driver load, a fresh connection and cold caches.
+ *
+ * The daemon opens messenger.daemon.sessions (default 4) Messenger
+ * instances up front, each with its connection and loaded caches, and
+ * listens on 127.0.0.1:messenger.daemon.port (default 7350). Each client
+ * (MessengerClient) gets a thread that borrows one instance, runs the
+ * usual menus against the client's socket and gives the instance back when
+ * the client leaves. Clients beyond the pool size wait for a free instance.
+ *
+ * Any local user can connect to a TCP port, so a client must first send
+ * the token the daemon writes at start to messenger.daemon.token (default
+ * ~/.messenger_daemon_token), a file only its owner can read. A client that
+ * doesn't send it within a few seconds is disconnected.
+ *
+ * Every instance passes the changes it makes on to the caches of the others
+ * (EventRelay), so the sessions of one daemon see each other's writes at
+ * once; the caches also check themselves against the database, which is
+ * what catches up with other processes (or ClusterSync, if
+ * messenger.cluster is set).
+ */
+public class MessengerDaemon {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int AUTH_TIMEOUT_MS = 10000;
+
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessengerDaemon.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      int sessions = Integer.getInteger("messenger.daemon.sessions", 4);
+      int port = Integer.getInteger("messenger.daemon.port", 7350);
+
+      try {
+         Class.forName ("org.postgresql.Driver");
+         final BlockingQueue<Messenger> idle = new ArrayBlockingQueue<Messenger>(sessions);
+         List<Messenger> pool = new ArrayList<Messenger>(sessions);
+         for (int i = 0; i < sessions; ++i)
+            pool.add(new Messenger (args[0], args[1], args[2], ""));
+         EventRelay.link(pool);
+         idle.addAll(pool);
+         final byte[] token = writeToken();
+
+         SessionConsole.install();
+         ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+         SessionConsole.console().println("\tMessenger daemon ready on port " + port + " with " + sessions + " sessions.");
+
+         while (true) {
+            final Socket client = server.accept();
+            Thread t = new Thread(new Runnable() {
+               public void run () {
+                  serve(client, idle, token);
+               }
+            }, "messenger-session-" + client.getPort());
+            t.setDaemon(true);
+            t.start();
+         }
+      }catch (Exception e) {
+         System.err.println ("\tMessenger daemon stopped: " + e.getMessage ());
+      }
+   }//end main
+
+   /**
+    * Writes a new random token to tokenFile(), readable by its owner only.
+    *
+    * @return the token
+    */
+   private static byte[] writeToken () throws IOException {
+      byte[] random = new byte[24];
+      new SecureRandom().nextBytes(random);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : random)
+         hex.append(String.format("%02x", b & 0xff));
+      byte[] token = hex.toString().getBytes(UTF8);
+
+      // created with its permissions, so it is never readable by others
+      Path file = MessengerClient.tokenFile().toPath();
+      Files.deleteIfExists(file);
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+      Files.write(file, token);
+      return token;
+   }//end writeToken
+
+   private static void serve (Socket client, BlockingQueue<Messenger> idle, byte[] token) {
+      Messenger esql = null;
+      try {
+         BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+         OutputStream out = new BufferedOutputStream(client.getOutputStream());
+
+         // the first line is the token; nothing else is read or sent before it
+         client.setSoTimeout(AUTH_TIMEOUT_MS);
+         String offered = in.readLine();
+         if (offered == null || !MessageDigest.isEqual(token, offered.trim().getBytes(UTF8))) {
+            SessionConsole.console().println("\tRefused a client without the daemon's token.");
+            return;
+         }
+         client.setSoTimeout(0);
+         SessionConsole.attach(in, out);
+
+         esql = idle.poll();
+         if (esql == null) {
+            System.out.println("\tAll sessions are busy; waiting for one to free up...");
+            esql = idle.take();
+         }
+         Messenger.RunSession(esql);
+         System.out.println("\n\tBye !");
+      }catch (Exception e) {
+         SessionConsole.console().println("\tSession ended: " + e.getMessage());
+      }finally {
+         System.out.flush();
+         SessionConsole.detach();
+         if (esql != null) {
+            esql.setSessionUser(null);
+            // this thread ends here; its shard and replica connections with it
+            esql.releaseThread();
+            idle.add(esql);
+         }
+         try {
+            client.close();
+         }catch (IOException e) {
+            // ignored.
+         }
+      }
+   }//end serve
+
+}//end MessengerDaemon
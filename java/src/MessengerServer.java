@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves ServerProtocol over TCP to any number of clients.
+ *
+ * One thread runs a selector over every connection and only moves bytes;
+ * each complete request is handed to the Messenger async workers
+ * (messenger.async.threads), which share their connections among all
+ * clients, and the response is queued back to the selector. A connection
+ * holds no thread and, between requests, no buffer: reads go into direct
+ * buffers borrowed from a small pool and returned as soon as no partial
+ * frame is left in them, so idle clients cost little more than their
+ * socket.
+ *
+ * New messages, edits and deletes are pushed to every logged-in session of
+ * the chat's members, except members who blocked the sender. Each change
+ * is serialized once; every session's queue gets a read-only view of the
+ * same bytes, so a 10,000-member group costs one encoding, not 10,000.
+ * Pushes wait in a per-session queue bounded at messenger.server.queue
+ * frames (default 1024). A session whose queue is full is too slow to keep
+ * up: with messenger.server.slow=drop (the default) the push is dropped for
+ * it alone, and the client sees the gap in seq; with disconnect the session
+ * is closed. Either way, nobody else waits for it.
+ *
+ * Listens on messenger.server.port (default 7351) on all interfaces unless
+ * messenger.server.host is set; frames over messenger.server.maxframe bytes
+ * (default 64KB) close the connection.
+ */
+public class MessengerServer {
+
+   private static final int BUFFER_SIZE = 8192;
+
+   /**
+    * One client connection. Reads happen on the selector thread; responses
+    * and pushes are queued from any thread.
+    */
+   private static class Client {
+      final SocketChannel channel;
+      final SelectionKey key;
+      final ServerProtocol.Session session = new ServerProtocol.Session();
+      // a pooled buffer holding the start of a frame, or null between frames
+      ByteBuffer partial = null;
+      final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+      // pushes in writes, which the queue bound applies to
+      final AtomicInteger queuedPushes = new AtomicInteger();
+      // set when the client fell too far behind; the selector closes it
+      volatile boolean evicted = false;
+
+      Client (SocketChannel channel, SelectionKey key) {
+         this.channel = channel;
+         this.key = key;
+      }
+   }//end Client
+
+   /**
+    * Pushes chat changes to the members' sessions.
+    */
+   private class FanOut extends ChatEventListener.Adapter {
+      public void messageSent (int chatId, ChatMessage message) {
+         broadcast(chatId, message.senderId, ServerProtocol.pushMessage(chatId, message));
+      }
+
+      public void messageEdited (int chatId, int msgId, String text) {
+         broadcast(chatId, -1, ServerProtocol.pushEdit(chatId, msgId, text));
+      }
+
+      public void messageDeleted (int chatId, int msgId) {
+         broadcast(chatId, -1, ServerProtocol.pushDelete(chatId, msgId));
+      }
+   }//end FanOut
+
+   private final Messenger _esql;
+   private final ServerProtocol _protocol;
+   private final Selector _selector;
+   private final int _maxFrame;
+
+   // idle direct read buffers
+   private final ArrayDeque<ByteBuffer> _buffers = new ArrayDeque<ByteBuffer>();
+   private final int _maxPooled;
+
+   // clients with something new to write or to be closed, for the selector thread
+   private final Queue<Client> _ready = new ConcurrentLinkedQueue<Client>();
+
+   // user_id -> that user's logged-in sessions
+   private final ConcurrentMap<Integer, Set<Client>> _online = new ConcurrentHashMap<Integer, Set<Client>>();
+
+   private final int _maxQueued;
+   private final boolean _disconnectSlow;
+   private final AtomicLong _dropped = new AtomicLong();
+
+   public MessengerServer (Messenger esql) throws IOException {
+      _esql = esql;
+      _protocol = new ServerProtocol(esql);
+      _selector = Selector.open();
+      _maxFrame = Integer.getInteger("messenger.server.maxframe", 64 * 1024);
+      _maxPooled = Integer.getInteger("messenger.server.buffers", 256);
+      _maxQueued = Integer.getInteger("messenger.server.queue", 1024);
+      _disconnectSlow = "disconnect".equals(System.getProperty("messenger.server.slow", "drop"));
+      esql.getEvents().subscribe(new FanOut());
+   }
+
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessengerServer.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      try {
+         Class.forName ("org.postgresql.Driver");
+         Messenger esql = new Messenger (args[0], args[1], args[2], "");
+         new MessengerServer(esql).serve();
+      }catch (Exception e) {
+         System.err.println ("\tMessenger server stopped: " + e.getMessage ());
+      }
+   }//end main
+
+   /**
+    * Runs the selector loop; does not return.
+    */
+   public void serve () throws IOException {
+      int port = Integer.getInteger("messenger.server.port", 7351);
+      String host = System.getProperty("messenger.server.host");
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.configureBlocking(false);
+      server.socket().bind(host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port), 1024);
+      server.register(_selector, SelectionKey.OP_ACCEPT);
+      System.out.println("\tMessenger server listening on port " + port + ".");
+
+      while (true) {
+         _selector.select();
+         flushReady();
+
+         Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+         while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            try {
+               if (!key.isValid())
+                  continue;
+               if (key.isAcceptable())
+                  accept(server);
+               else {
+                  if (key.isReadable())
+                     read(key);
+                  if (key.isValid() && key.isWritable())
+                     write(key);
+               }
+            }catch (IOException e) {
+               close(key);
+            }
+         }
+      }
+   }//end serve
+
+   private void accept (ServerSocketChannel server) throws IOException {
+      SocketChannel channel;
+      while ((channel = server.accept()) != null) {
+         channel.configureBlocking(false);
+         channel.socket().setTcpNoDelay(true);
+         SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+         key.attach(new Client(channel, key));
+      }
+   }//end accept
+
+   private void read (SelectionKey key) throws IOException {
+      Client c = (Client) key.attachment();
+      ByteBuffer buf = c.partial != null ? c.partial : borrow();
+      c.partial = null;
+
+      int n = c.channel.read(buf);
+      if (n < 0) {
+         giveBack(buf);
+         close(key);
+         return;
+      }
+
+      // hand off every complete frame
+      buf.flip();
+      while (buf.remaining() >= 4) {
+         int length = buf.getInt(buf.position());
+         if (length < 5 || length > _maxFrame) {
+            giveBack(buf);
+            close(key);
+            return;
+         }
+         if (buf.remaining() < 4 + length)
+            break;
+         byte[] frame = new byte[length];
+         buf.position(buf.position() + 4);
+         buf.get(frame);
+         submit(c, ByteBuffer.wrap(frame));
+      }
+
+      if (!buf.hasRemaining()) {
+         giveBack(buf);
+         return;
+      }
+
+      // keep the partial frame, in a buffer big enough for all of it
+      int needed = buf.remaining() >= 4 ? 4 + buf.getInt(buf.position()) : BUFFER_SIZE;
+      ByteBuffer keep = buf;
+      if (needed > buf.capacity()) {
+         keep = ByteBuffer.allocate(needed);
+         keep.put(buf);
+         giveBack(buf);
+      }else
+         keep.compact();
+      c.partial = keep;
+   }//end read
+
+   private void submit (final Client c, final ByteBuffer request) {
+      _esql.async(new Callable<Void>() {
+         public Void call () {
+            int before = c.session.userId;
+            byte[] response = _protocol.handle(c.session, request);
+            if (c.session.userId != before) {
+               goOffline(before, c);
+               goOnline(c.session.userId, c);
+            }
+            // responses are never dropped; only pushes count against the bound
+            c.writes.add(ByteBuffer.wrap(response));
+            _ready.add(c);
+            _selector.wakeup();
+            return null;
+         }
+      });
+   }//end submit
+
+   /**
+    * Queues one frame for every session of the chat's members that may see
+    * it. Runs on the thread that published the change.
+    *
+    * @param senderId members who blocked this user are skipped; -1 for none
+    */
+   private void broadcast (int chatId, int senderId, byte[] frame) {
+      if (_online.isEmpty())
+         return;
+      Set<Integer> members;
+      try {
+         members = _esql.getMembership().members(chatId);
+      }catch (Exception e) {
+         System.err.println("\tFan-out for chat " + chatId + " failed: " + e.getMessage());
+         return;
+      }
+
+      // one immutable encoding; each session gets its own position over it
+      ByteBuffer shared = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+      SocialGraph graph = _esql.getSocialGraph();
+      boolean queued = false;
+      for (Integer member : members) {
+         Set<Client> sessions = _online.get(member);
+         if (sessions == null || (senderId >= 0 && graph.hidesMessagesFrom(member, senderId)))
+            continue;
+         for (Client c : sessions)
+            queued |= push(c, shared.duplicate());
+      }
+      if (queued)
+         _selector.wakeup();
+   }//end broadcast
+
+   // @return true if the selector has something new to do for c
+   private boolean push (Client c, ByteBuffer frame) {
+      if (c.evicted)
+         return false;
+      if (c.queuedPushes.incrementAndGet() > _maxQueued) {
+         c.queuedPushes.decrementAndGet();
+         _dropped.incrementAndGet();
+         if (!_disconnectSlow)
+            return false;
+         c.evicted = true;
+      }else
+         c.writes.add(frame);
+      _ready.add(c);
+      return true;
+   }//end push
+
+   // on the selector thread: start writing to clients with new frames
+   private void flushReady () {
+      Client c;
+      while ((c = _ready.poll()) != null) {
+         if (!c.key.isValid())
+            continue;
+         if (c.evicted)
+            close(c.key);
+         else
+            c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+      }
+   }//end flushReady
+
+   private void write (SelectionKey key) throws IOException {
+      Client c = (Client) key.attachment();
+      ByteBuffer head;
+      while ((head = c.writes.peek()) != null) {
+         c.channel.write(head);
+         if (head.hasRemaining())
+            return;
+         c.writes.poll();
+         // pushes are the read-only views
+         if (head.isReadOnly())
+            c.queuedPushes.decrementAndGet();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      // a frame queued after the peek above is picked up by its own _ready entry
+   }//end write
+
+   // synchronized so a login and a logout of the same user never lose a session
+   private synchronized void goOnline (int userId, Client c) {
+      if (userId < 0)
+         return;
+      Set<Client> sessions = _online.get(userId);
+      if (sessions == null) {
+         Set<Client> created = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+         sessions = _online.putIfAbsent(userId, created);
+         if (sessions == null)
+            sessions = created;
+      }
+      sessions.add(c);
+   }//end goOnline
+
+   private synchronized void goOffline (int userId, Client c) {
+      if (userId < 0)
+         return;
+      Set<Client> sessions = _online.get(userId);
+      if (sessions != null) {
+         sessions.remove(c);
+         if (sessions.isEmpty())
+            _online.remove(userId, sessions);
+      }
+   }//end goOffline
+
+   /**
+    * @return how many pushes were dropped for slow sessions since startup
+    */
+   public long droppedPushes () {
+      return _dropped.get();
+   }
+
+   private void close (SelectionKey key) {
+      Object attachment = key.attachment();
+      if (attachment instanceof Client) {
+         Client c = (Client) attachment;
+         if (c.partial != null && c.partial.isDirect())
+            giveBack(c.partial);
+         c.partial = null;
+         c.evicted = true;
+         goOffline(c.session.userId, c);
+      }
+      key.cancel();
+      try {
+         key.channel().close();
+      }catch (IOException e) {
+         // ignored.
+      }
+   }//end close
+
+   private ByteBuffer borrow () {
+      ByteBuffer buf = _buffers.poll();
+      return buf != null ? buf : ByteBuffer.allocateDirect(BUFFER_SIZE);
+   }
+
+   private void giveBack (ByteBuffer buf) {
+      // oversized heap buffers for big frames are not pooled
+      if (!buf.isDirect() || buf.capacity() != BUFFER_SIZE || _buffers.size() >= _maxPooled)
+         return;
+      buf.clear();
+      _buffers.push(buf);
+   }//end giveBack
+
+}//end MessengerServer
@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects call counts, row counts, error counts and latency histograms for
+ * every logical operation issued through the Messenger data layer.
+ *
+ * Each operation (e.g. "listChats", "sendMessage") is exposed as its own
+ * MXBean and the whole registry can be dumped in the Prometheus text format,
+ * either on demand or periodically to the file named by the
+ * messenger.metrics.file system property.
+ */
+public class QueryMetrics {
+
+   public static final String JMX_DOMAIN = "ChitterChatter";
+
+   private final ConcurrentMap<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+   // set by registerMBeans, read by whichever thread records a new operation
+   private volatile boolean _jmx = false;
+   private Timer _exportTimer = null;
+
+   /**
+    * Per-operation counters. All fields are updated without locking.
+    */
+   public static class Stats implements QueryStatsMXBean {
+      private final String _operation;
+      private final LatencyHistogram _latency = new LatencyHistogram();
+      private final AtomicLong _rows = new AtomicLong();
+      private final AtomicLong _errors = new AtomicLong();
+
+      Stats (String operation) {
+         _operation = operation;
+      }
+
+      public String getOperation () { return _operation; }
+      public long getCalls () { return _latency.getCount(); }
+      public long getErrors () { return _errors.get(); }
+      public long getRows () { return _rows.get(); }
+      public double getMeanMillis () { return _latency.getMeanMicros() / 1000.0; }
+      public double getP50Millis () { return _latency.getValueAtQuantile(0.50) / 1000.0; }
+      public double getP99Millis () { return _latency.getValueAtQuantile(0.99) / 1000.0; }
+      public double getMaxMillis () { return _latency.getMaxMicros() / 1000.0; }
+
+      public LatencyHistogram getLatency () { return _latency; }
+   }//end Stats
+
+   /**
+    * Records one execution of an operation.
+    *
+    * @param operation the logical operation name
+    * @param nanos the elapsed wall time in nanoseconds
+    * @param rows the number of rows returned or affected
+    * @param failed whether the statement threw
+    */
+   public void record (String operation, long nanos, int rows, boolean failed) {
+      Stats s = stats(operation);
+      s._latency.record(nanos / 1000L);
+      if (rows > 0)
+         s._rows.addAndGet(rows);
+      if (failed)
+         s._errors.incrementAndGet();
+   }//end record
+
+   public Stats stats (String operation) {
+      Stats s = _stats.get(operation);
+      if (s == null) {
+         Stats created = new Stats(operation);
+         s = _stats.putIfAbsent(operation, created);
+         if (s == null) {
+            s = created;
+            if (_jmx)
+               register(s);
+         }
+      }
+      return s;
+   }//end stats
+
+   /**
+    * Registers every known (and every future) operation with the platform
+    * MBean server.
+    */
+   public synchronized void registerMBeans () {
+      _jmx = true;
+      for (Stats s : _stats.values())
+         register(s);
+   }
+
+   private void register (Stats s) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(JMX_DOMAIN + ":type=QueryStats,operation=" + ObjectName.quote(s._operation));
+         if (!server.isRegistered(name))
+            server.registerMBean(s, name);
+      }catch (Exception e) {
+         // metrics must never break the data layer.
+      }
+   }//end register
+
+   /**
+    * Writes all statistics in the Prometheus text exposition format.
+    */
+   public void writePrometheus (Writer w) throws IOException {
+      List<String> ops = new ArrayList<String>(_stats.keySet());
+      Collections.sort(ops);
+
+      PrintWriter out = new PrintWriter(w);
+      out.println("# HELP messenger_query_duration_seconds Latency of Messenger data layer operations.");
+      out.println("# TYPE messenger_query_duration_seconds summary");
+      for (String op : ops) {
+         LatencyHistogram h = _stats.get(op)._latency;
+         String label = "operation=\"" + op + "\"";
+         out.println("messenger_query_duration_seconds{" + label + ",quantile=\"0.5\"} " + seconds(h.getValueAtQuantile(0.50)));
+         out.println("messenger_query_duration_seconds{" + label + ",quantile=\"0.9\"} " + seconds(h.getValueAtQuantile(0.90)));
+         out.println("messenger_query_duration_seconds{" + label + ",quantile=\"0.99\"} " + seconds(h.getValueAtQuantile(0.99)));
+         out.println("messenger_query_duration_seconds{" + label + ",quantile=\"1\"} " + seconds(h.getMaxMicros()));
+         out.println("messenger_query_duration_seconds_sum{" + label + "} " + seconds(h.getSumMicros()));
+         out.println("messenger_query_duration_seconds_count{" + label + "} " + h.getCount());
+      }
+      out.println("# HELP messenger_query_rows_total Rows returned or affected by Messenger operations.");
+      out.println("# TYPE messenger_query_rows_total counter");
+      for (String op : ops)
+         out.println("messenger_query_rows_total{operation=\"" + op + "\"} " + _stats.get(op).getRows());
+      out.println("# HELP messenger_query_errors_total Failed Messenger operations.");
+      out.println("# TYPE messenger_query_errors_total counter");
+      for (String op : ops)
+         out.println("messenger_query_errors_total{operation=\"" + op + "\"} " + _stats.get(op).getErrors());
+      out.flush();
+   }//end writePrometheus
+
+   /**
+    * Writes the Prometheus dump to a file, replacing it atomically so a
+    * scraper never sees a half-written file.
+    */
+   public void dumpTo (File file) {
+      File tmp = new File(file.getPath() + ".tmp");
+      try {
+         FileWriter w = new FileWriter(tmp);
+         try {
+            writePrometheus(w);
+         }finally {
+            w.close();
+         }
+         if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+         }
+      }catch (IOException e) {
+         System.err.println("\tUnable to write metrics to " + file + ": " + e.getMessage());
+      }
+   }//end dumpTo
+
+   /**
+    * Starts dumping to the file named by messenger.metrics.file every
+    * messenger.metrics.interval seconds (default 15). Does nothing when the
+    * property is unset.
+    */
+   public synchronized void startExport () {
+      final String path = System.getProperty("messenger.metrics.file");
+      if (path == null || _exportTimer != null)
+         return;
+
+      long interval = Long.getLong("messenger.metrics.interval", 15L) * 1000L;
+      _exportTimer = new Timer("metrics-export", true);
+      _exportTimer.schedule(new TimerTask() {
+         public void run () {
+            dumpTo(new File(path));
+         }
+      }, interval, interval);
+   }//end startExport
+
+   /**
+    * Stops the periodic export and writes one final dump.
+    */
+   public synchronized void stopExport () {
+      if (_exportTimer == null)
+         return;
+      _exportTimer.cancel();
+      _exportTimer = null;
+      dumpTo(new File(System.getProperty("messenger.metrics.file")));
+   }//end stopExport
+
+   private static String seconds (long micros) {
+      return Double.toString(micros / 1000000.0);
+   }
+
+}//end QueryMetrics
@@ -0,0 +1,23 @@
+/**
+ * JMX view of the statistics kept for one logical Messenger operation.
+ * Registered as ChitterChatter:type=QueryStats,operation=&lt;name&gt;.
+ */
+public interface QueryStatsMXBean {
+
+   String getOperation ();
+
+   long getCalls ();
+
+   long getErrors ();
+
+   long getRows ();
+
+   double getMeanMillis ();
+
+   double getP50Millis ();
+
+   double getP99Millis ();
+
+   double getMaxMillis ();
+
+}//end QueryStatsMXBean
@@ -0,0 +1,188 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Streaming replicas of the main database that reads can be sent to.
+ *
+ * messenger.replicas lists them as host:port/dbname, comma separated.
+ * Messenger.executeQueryOnReplica asks for a replica that has replayed the
+ * write-ahead log at least up to the session's last write (an LSN), so a
+ * session always reads its own writes; replicas take turns. What each
+ * replica has replayed is remembered and only asked again
+ * (pg_last_wal_replay_lsn) when a read needs more. A replica that can't be
+ * reached, or on which a read failed, is left alone for
+ * messenger.replica.retry milliseconds (default 5000).
+ *
+ * Like ShardRouter, every thread gets its own connection to a replica the
+ * first time it needs one, kept until it calls release().
+ */
+public class ReplicaRouter {
+
+   private final String[] _urls;
+   private final String _user;
+   private final String _passwd;
+   private final long _retryMillis = Long.getLong("messenger.replica.retry", 5000);
+
+   // the current thread's connection to each replica, opened on first use
+   private final ThreadLocal<Connection[]> _connections = new ThreadLocal<Connection[]>();
+
+   // every connection opened, for close()
+   private final List<Connection> _opened = new ArrayList<Connection>();
+
+   // per replica: the highest LSN it was seen to have replayed, and until
+   // when it is skipped after a failure (System.currentTimeMillis)
+   private final AtomicLongArray _replayed;
+   private final AtomicLongArray _downUntil;
+   private final AtomicInteger _next = new AtomicInteger();
+
+   /**
+    * @return the router for messenger.replicas, or null if it isn't set
+    */
+   public static ReplicaRouter fromProperties (String user, String passwd) {
+      String replicas = System.getProperty("messenger.replicas");
+      if (replicas == null || replicas.trim().length() == 0)
+         return null;
+      String[] hosts = replicas.split(",");
+      String[] urls = new String[hosts.length];
+      for (int i = 0; i < hosts.length; ++i)
+         urls[i] = "jdbc:postgresql://" + hosts[i].trim();
+      return new ReplicaRouter(urls, user, passwd);
+   }//end fromProperties
+
+   public ReplicaRouter (String[] urls, String user, String passwd) {
+      _urls = urls;
+      _user = user;
+      _passwd = passwd;
+      _replayed = new AtomicLongArray(urls.length);
+      _downUntil = new AtomicLongArray(urls.length);
+   }
+
+   /**
+    * @return the current thread's connection to a replica that has replayed
+    *         at least lsn, or null if none has (read from the primary then)
+    */
+   public Connection caughtUp (long lsn) {
+      int start = _next.getAndIncrement() & Integer.MAX_VALUE;
+      for (int i = 0; i < _urls.length; ++i) {
+         int r = (start + i) % _urls.length;
+         if (_downUntil.get(r) > System.currentTimeMillis())
+            continue;
+         try {
+            if (_replayed.get(r) >= lsn || refresh(r) >= lsn)
+               return connection(r);
+         }catch (SQLException e) {
+            System.err.println("\tReplica " + _urls[r] + " unavailable: " + e.getMessage());
+            _downUntil.set(r, System.currentTimeMillis() + _retryMillis);
+         }
+      }
+      return null;
+   }//end caughtUp
+
+   /**
+    * Reports that a read on c, one of the current thread's replica
+    * connections, failed; its replica is skipped for a while.
+    */
+   public void failed (Connection c, SQLException e) {
+      Connection[] mine = _connections.get();
+      for (int r = 0; mine != null && r < mine.length; ++r) {
+         if (mine[r] == c) {
+            System.err.println("\tRead on replica " + _urls[r] + " failed: " + e.getMessage());
+            _downUntil.set(r, System.currentTimeMillis() + _retryMillis);
+         }
+      }
+   }//end failed
+
+   /**
+    * Asks replica r how far it has replayed.
+    */
+   private long refresh (int r) throws SQLException {
+      Statement stmt = connection(r).createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT pg_last_wal_replay_lsn()");
+         long lsn = rs.next() ? parseLsn(rs.getString(1)) : 0;
+         // other threads may have seen it further along meanwhile
+         long seen = _replayed.get(r);
+         while (lsn > seen && !_replayed.compareAndSet(r, seen, lsn))
+            seen = _replayed.get(r);
+         return lsn;
+      }finally {
+         stmt.close();
+      }
+   }//end refresh
+
+   private Connection connection (int r) throws SQLException {
+      Connection[] mine = _connections.get();
+      if (mine == null) {
+         mine = new Connection[_urls.length];
+         _connections.set(mine);
+      }
+      if (mine[r] == null || mine[r].isClosed()) {
+         Connection opened = DriverManager.getConnection(_urls[r], _user, _passwd);
+         synchronized (_opened) {
+            _opened.remove(mine[r]);
+            _opened.add(opened);
+         }
+         mine[r] = opened;
+      }
+      return mine[r];
+   }//end connection
+
+   /**
+    * @return an LSN as printed by the server ("16/B374D848") as a number,
+    *         0 for null (a server that isn't replaying)
+    */
+   public static long parseLsn (String lsn) {
+      if (lsn == null)
+         return 0;
+      int slash = lsn.indexOf('/');
+      return (Long.parseLong(lsn.substring(0, slash).trim(), 16) << 32) | Long.parseLong(lsn.substring(slash + 1).trim(), 16);
+   }//end parseLsn
+
+   /**
+    * Closes the current thread's replica connections; its next statement for
+    * a replica opens new ones. A thread that ends without calling this keeps
+    * them open until close().
+    */
+   public void release () {
+      Connection[] mine = _connections.get();
+      _connections.remove();
+      if (mine == null)
+         return;
+      for (Connection c : mine) {
+         if (c == null)
+            continue;
+         synchronized (_opened) {
+            _opened.remove(c);
+         }
+         try {
+            c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end release
+
+   /**
+    * Closes every replica connection.
+    */
+   public void close () {
+      synchronized (_opened) {
+         for (Connection c : _opened) {
+            try {
+               c.close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+         _opened.clear();
+      }
+   }//end close
+
+}//end ReplicaRouter
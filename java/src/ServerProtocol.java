@@ -0,0 +1,420 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The binary protocol spoken by MessengerServer, and its request handlers.
+ *
+ * Every frame is a 4-byte big-endian length followed by that many bytes.
+ * A request is
+ *
+ *    u8 op, i32 requestId, op arguments
+ *
+ * and its response
+ *
+ *    u8 op, i32 requestId, u8 status, then the op's result if status is OK
+ *    or an error message if it is ERROR.
+ *
+ * Responses can arrive out of request order; requestId pairs them up.
+ * Strings are a u16 byte count followed by UTF-8, lists an i32 count
+ * followed by the elements. Arguments and results per op:
+ *
+ *    LOGIN         login, password              -> i32 userId
+ *    CHAT_LIST                                  -> list of (i32 chatId, chatType,
+ *                                                  i32 lastMsgId, lastText,
+ *                                                  lastTimestamp, i32 unread)
+ *    HISTORY       i32 chatId, u16 limit        -> list of messages, newest first
+ *    HISTORY_SINCE i32 chatId, i32 afterSeq,    -> i32 throughSeq, list of messages
+ *                  u16 limit                       with a greater seq, oldest first
+ *    SEND          i32 chatId, text             -> message
+ *    EDIT          i32 chatId, i32 msgId, text  -> nothing
+ *    DELETE        i32 chatId, i32 msgId        -> nothing
+ *    ADD_MEMBERS   i32 chatId, list of logins   -> list of (login, outcome)
+ *    REMOVE_MEMBER i32 chatId, login            -> i32 memberCount
+ *    SYNC_CHAT     i32 chatId, i32 version      -> i32 version, u8 more, list of
+ *                                                  messages, list of i32 deleted
+ *                                                  msgId, list of i32 userId
+ *                                                  added, list of i32 removed
+ *    SYNC_USER     i32 version                  -> i32 version, u8 more, lists of
+ *                                                  i32 chatId joined, left,
+ *                                                  userId contacts added,
+ *                                                  removed, blocks added, removed
+ *
+ * where a message is (i32 msgId, i32 seq, i32 senderId, sender, timestamp,
+ * text). Every op but LOGIN needs a logged-in session. HISTORY marks the
+ * chat read up to the newest message returned, as the chat screen does, and
+ * HISTORY_SINCE up to throughSeq: the seq of the last message it read,
+ * including any left out because the reader blocked their sender. A client
+ * calls HISTORY_SINCE again from throughSeq until it stops moving.
+ *
+ * Logged-in sessions are also sent, unasked, the changes to their chats,
+ * as frames with requestId 0 and status OK:
+ *
+ *    PUSH_MESSAGE  i32 chatId, message
+ *    PUSH_EDIT     i32 chatId, i32 msgId, text
+ *    PUSH_DELETE   i32 chatId, i32 msgId
+ *
+ * A slow client may miss pushes (see MessengerServer); a gap in a chat's
+ * seq numbers tells it to fetch HISTORY_SINCE from the last seq it has.
+ *
+ * SYNC_CHAT and SYNC_USER return what changed after the version passed in
+ * (see DeltaSync); a version of -1 returns just the current one, to be read
+ * before the full state. While "more" is 1 the client calls again with the
+ * version returned.
+ */
+public class ServerProtocol {
+
+   public static final byte LOGIN = 1;
+   public static final byte CHAT_LIST = 2;
+   public static final byte HISTORY = 3;
+   public static final byte SEND = 4;
+   public static final byte EDIT = 5;
+   public static final byte DELETE = 6;
+   public static final byte ADD_MEMBERS = 7;
+   public static final byte REMOVE_MEMBER = 8;
+   public static final byte PUSH_MESSAGE = 9;
+   public static final byte PUSH_EDIT = 10;
+   public static final byte PUSH_DELETE = 11;
+   public static final byte HISTORY_SINCE = 12;
+   public static final byte SYNC_CHAT = 13;
+   public static final byte SYNC_USER = 14;
+
+   public static final byte OK = 0;
+   public static final byte ERROR = 1;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int MAX_HISTORY = 500;
+
+   /**
+    * A request the client got wrong; reported back, the connection stays.
+    */
+   static class RequestException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      RequestException (String message) {
+         super(message);
+      }
+   }//end RequestException
+
+   /**
+    * What the server knows about one connection.
+    */
+   public static class Session {
+      // -1 until LOGIN succeeds
+      volatile int userId = -1;
+   }//end Session
+
+   private final Messenger _esql;
+
+   public ServerProtocol (Messenger esql) {
+      _esql = esql;
+   }
+
+   /**
+    * Handles one request frame (without its length prefix).
+    *
+    * @return the response frame, length prefix included
+    */
+   public byte[] handle (Session session, ByteBuffer request) {
+      byte op = 0;
+      int requestId = 0;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+         op = request.get();
+         requestId = request.getInt();
+         out.writeInt(0);
+         out.writeByte(op);
+         out.writeInt(requestId);
+         out.writeByte(OK);
+         dispatch(session, op, request, out);
+      }catch (Exception e) {
+         bytes.reset();
+         out = new DataOutputStream(bytes);
+         String message = e instanceof BufferUnderflowException ? "Truncated request." : e.getMessage();
+         try {
+            out.writeInt(0);
+            out.writeByte(op);
+            out.writeInt(requestId);
+            out.writeByte(ERROR);
+            writeString(out, message == null ? e.toString() : message);
+         }catch (IOException impossible) {
+            // ByteArrayOutputStream doesn't throw
+         }
+      }
+      return frame(bytes);
+   }//end handle
+
+   /**
+    * @return a PUSH_MESSAGE frame, length prefix included
+    */
+   public static byte[] pushMessage (int chatId, ChatMessage m) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      try {
+         DataOutputStream out = pushHeader(bytes, PUSH_MESSAGE);
+         out.writeInt(chatId);
+         writeMessage(out, m);
+      }catch (IOException impossible) {
+         // ByteArrayOutputStream doesn't throw
+      }
+      return frame(bytes);
+   }//end pushMessage
+
+   public static byte[] pushEdit (int chatId, int msgId, String text) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      try {
+         DataOutputStream out = pushHeader(bytes, PUSH_EDIT);
+         out.writeInt(chatId);
+         out.writeInt(msgId);
+         writeString(out, text);
+      }catch (IOException impossible) {
+         // ByteArrayOutputStream doesn't throw
+      }
+      return frame(bytes);
+   }//end pushEdit
+
+   public static byte[] pushDelete (int chatId, int msgId) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      try {
+         DataOutputStream out = pushHeader(bytes, PUSH_DELETE);
+         out.writeInt(chatId);
+         out.writeInt(msgId);
+      }catch (IOException impossible) {
+         // ByteArrayOutputStream doesn't throw
+      }
+      return frame(bytes);
+   }//end pushDelete
+
+   private static DataOutputStream pushHeader (ByteArrayOutputStream bytes, byte op) throws IOException {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0);
+      out.writeByte(op);
+      out.writeInt(0);
+      out.writeByte(OK);
+      return out;
+   }
+
+   // the bytes written with the length prefix filled in
+   private static byte[] frame (ByteArrayOutputStream bytes) {
+      byte[] frame = bytes.toByteArray();
+      ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+      return frame;
+   }
+
+   private void dispatch (Session session, byte op, ByteBuffer in, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      if (op == LOGIN) {
+         login(session, readString(in), readString(in), out);
+         return;
+      }
+      int userId = session.userId;
+      if (userId < 0)
+         throw new RequestException("Log in first.");
+
+      switch (op) {
+         case CHAT_LIST: chatList(userId, out); break;
+         case HISTORY: history(userId, in.getInt(), in.getShort() & 0xffff, out); break;
+         case HISTORY_SINCE: historySince(userId, in.getInt(), in.getInt(), in.getShort() & 0xffff, out); break;
+         case SEND: send(userId, in.getInt(), readString(in), out); break;
+         case EDIT: edit(userId, in.getInt(), in.getInt(), readString(in)); break;
+         case DELETE: delete(userId, in.getInt(), in.getInt()); break;
+         case ADD_MEMBERS: addMembers(userId, in.getInt(), readStrings(in), out); break;
+         case REMOVE_MEMBER: removeMember(userId, in.getInt(), readString(in), out); break;
+         case SYNC_CHAT: syncChat(userId, in.getInt(), in.getInt(), out); break;
+         case SYNC_USER: syncUser(userId, in.getInt(), out); break;
+         default: throw new RequestException("Unknown op " + op + ".");
+      }
+   }//end dispatch
+
+   private void login (Session session, String login, String password, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      List<List<String>> rows = _esql.executeQueryAndReturnResult("logIn",
+         "SELECT user_id FROM USR WHERE login = CAST(? AS char(50)) AND password = ?", login, password);
+      if (rows.size() == 0)
+         throw new RequestException("Incorrect username or password!");
+      int userId = Integer.parseInt(rows.get(0).get(0).trim());
+      _esql.getUsers().remember(userId, login);
+      session.userId = userId;
+      out.writeInt(userId);
+   }//end login
+
+   private void chatList (int userId, DataOutputStream out) throws IOException, SQLException {
+      List<ChatSummary> chats = _esql.getChatLists().chatsOf(userId);
+      out.writeInt(chats.size());
+      for (ChatSummary c : chats) {
+         out.writeInt(c.chatId);
+         writeString(out, c.chatType);
+         out.writeInt(c.lastMsgId);
+         writeString(out, c.lastText);
+         writeString(out, c.lastTimestamp);
+         out.writeInt(c.unread);
+      }
+   }//end chatList
+
+   private void history (int userId, int chatId, int limit, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      requireMember(chatId, userId);
+      List<ChatMessage> messages = _esql.getMessages().recentFor(chatId, userId, Math.min(Math.max(limit, 1), MAX_HISTORY));
+      if (messages.size() > 0)
+         _esql.getMembership().markRead(chatId, userId, messages.get(0).seq);
+      out.writeInt(messages.size());
+      for (ChatMessage m : messages)
+         writeMessage(out, m);
+   }//end history
+
+   private void historySince (int userId, int chatId, int afterSeq, int limit, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      requireMember(chatId, userId);
+      List<ChatMessage> messages = _esql.getMessages().since(chatId, afterSeq, Math.min(Math.max(limit, 1), MAX_HISTORY));
+      int throughSeq = afterSeq;
+      if (messages.size() > 0) {
+         throughSeq = messages.get(messages.size() - 1).seq;
+         _esql.getMembership().markRead(chatId, userId, throughSeq);
+      }
+      List<ChatMessage> visible = _esql.getSocialGraph().visibleTo(userId, messages);
+      out.writeInt(throughSeq);
+      out.writeInt(visible.size());
+      for (ChatMessage m : visible)
+         writeMessage(out, m);
+   }//end historySince
+
+   private void send (int userId, int chatId, String text, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      requireMember(chatId, userId);
+      if (text.trim().length() == 0)
+         throw new RequestException("Empty message.");
+      writeMessage(out, _esql.getMessages().send(chatId, userId, text));
+   }//end send
+
+   private void edit (int userId, int chatId, int msgId, String text) throws SQLException, RequestException {
+      requireSender(chatId, msgId, userId);
+      _esql.getMessages().edit(chatId, msgId, text);
+   }
+
+   private void delete (int userId, int chatId, int msgId) throws SQLException, RequestException {
+      requireSender(chatId, msgId, userId);
+      _esql.getMessages().delete(chatId, msgId);
+   }
+
+   private void addMembers (int userId, int chatId, List<String> logins, DataOutputStream out)
+         throws IOException, SQLException {
+      List<ChatMembership.MemberOutcome> outcomes = _esql.getMembership().addMembers(chatId, userId, logins);
+      out.writeInt(outcomes.size());
+      for (ChatMembership.MemberOutcome o : outcomes) {
+         writeString(out, o.login);
+         writeString(out, o.outcome);
+      }
+   }//end addMembers
+
+   private void removeMember (int userId, int chatId, String login, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      int memberId = _esql.getUsers().idOf(login);
+      if (memberId < 0)
+         throw new RequestException("User " + login + " doesn't exist.");
+      out.writeInt(_esql.getMembership().remove(chatId, userId, memberId));
+   }//end removeMember
+
+   private void syncChat (int userId, int chatId, int version, DataOutputStream out)
+         throws IOException, SQLException, RequestException {
+      requireMember(chatId, userId);
+      DeltaSync sync = _esql.getSync();
+      if (version < 0) {
+         out.writeInt(sync.chatVersion(chatId));
+         out.writeByte(0);
+         for (int i = 0; i < 4; ++i)
+            out.writeInt(0);
+         return;
+      }
+      DeltaSync.ChatDelta delta = sync.chat(chatId, version);
+      List<ChatMessage> visible = _esql.getSocialGraph().visibleTo(userId, delta.messages);
+      out.writeInt(delta.version);
+      out.writeByte(delta.more ? 1 : 0);
+      out.writeInt(visible.size());
+      for (ChatMessage m : visible)
+         writeMessage(out, m);
+      writeInts(out, delta.deletedMessages);
+      writeInts(out, delta.membersAdded);
+      writeInts(out, delta.membersRemoved);
+   }//end syncChat
+
+   private void syncUser (int userId, int version, DataOutputStream out) throws IOException, SQLException {
+      DeltaSync sync = _esql.getSync();
+      if (version < 0) {
+         out.writeInt(sync.userVersion(userId));
+         out.writeByte(0);
+         for (int i = 0; i < 6; ++i)
+            out.writeInt(0);
+         return;
+      }
+      DeltaSync.UserDelta delta = sync.user(userId, version);
+      out.writeInt(delta.version);
+      out.writeByte(delta.more ? 1 : 0);
+      writeInts(out, delta.chatsJoined);
+      writeInts(out, delta.chatsLeft);
+      writeInts(out, delta.contactsAdded);
+      writeInts(out, delta.contactsRemoved);
+      writeInts(out, delta.blocksAdded);
+      writeInts(out, delta.blocksRemoved);
+   }//end syncUser
+
+   private void requireMember (int chatId, int userId) throws SQLException, RequestException {
+      if (!_esql.getMembership().isMember(chatId, userId))
+         throw new RequestException("You are not a member of chat " + chatId + ".");
+   }
+
+   private void requireSender (int chatId, int msgId, int userId) throws SQLException, RequestException {
+      List<ChatMessage> found = _esql.getMessages().byIds(chatId, Collections.singletonList(msgId));
+      if (found.isEmpty())
+         throw new RequestException("Message " + msgId + " doesn't exist in chat " + chatId + ".");
+      if (found.get(0).senderId != userId)
+         throw new RequestException("You can only change your own messages.");
+   }//end requireSender
+
+   private static void writeMessage (DataOutputStream out, ChatMessage m) throws IOException {
+      out.writeInt(m.id);
+      out.writeInt(m.seq);
+      out.writeInt(m.senderId);
+      writeString(out, m.sender == null ? "" : m.sender);
+      writeString(out, m.timestamp);
+      writeString(out, m.text);
+   }//end writeMessage
+
+   private static void writeInts (DataOutputStream out, List<Integer> ints) throws IOException {
+      out.writeInt(ints.size());
+      for (Integer i : ints)
+         out.writeInt(i);
+   }
+
+   private static void writeString (DataOutputStream out, String s) throws IOException {
+      byte[] b = s.getBytes(UTF8);
+      int n = Math.min(b.length, 0xffff);
+      out.writeShort(n);
+      out.write(b, 0, n);
+   }
+
+   private static String readString (ByteBuffer in) {
+      int n = in.getShort() & 0xffff;
+      byte[] b = new byte[n];
+      in.get(b);
+      return new String(b, UTF8);
+   }
+
+   private static List<String> readStrings (ByteBuffer in) {
+      int n = in.getInt();
+      // every string takes at least its 2-byte length
+      if (n < 0 || n > in.remaining() / 2)
+         throw new BufferUnderflowException();
+      List<String> out = new ArrayList<String>(n);
+      for (int i = 0; i < n; ++i)
+         out.add(readString(in));
+      return out;
+   }
+
+}//end ServerProtocol
@@ -0,0 +1,120 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ * Lets several menu sessions run in one JVM, each talking to its own client.
+ *
+ * The menus read Messenger.in and write System.out / System.err. install()
+ * replaces all three with stand-ins that forward to whatever the current
+ * thread attached; a thread with nothing attached uses the original
+ * console. MessengerDaemon attaches each client's socket on the thread
+ * that runs its session.
+ */
+public class SessionConsole {
+
+   private static final ThreadLocal<BufferedReader> _input = new ThreadLocal<BufferedReader>();
+   private static final ThreadLocal<OutputStream> _output = new ThreadLocal<OutputStream>();
+
+   private static PrintStream _consoleOut = null;
+   private static BufferedReader _consoleIn = null;
+
+   /**
+    * Reads lines from the current thread's input.
+    */
+   private static class Input extends BufferedReader {
+      Input () {
+         super(new StringReader(""));
+      }
+
+      private static BufferedReader current () {
+         BufferedReader in = _input.get();
+         return in != null ? in : _consoleIn;
+      }
+
+      // a prompt has no newline, so it is still buffered when input is read
+      public String readLine () throws IOException {
+         System.out.flush();
+         return current().readLine();
+      }
+
+      public int read () throws IOException {
+         System.out.flush();
+         return current().read();
+      }
+
+      public int read (char[] buf, int off, int len) throws IOException {
+         System.out.flush();
+         return current().read(buf, off, len);
+      }
+
+      public boolean ready () throws IOException {
+         return current().ready();
+      }
+   }//end Input
+
+   /**
+    * Writes to the current thread's output.
+    */
+   private static class Output extends OutputStream {
+      private final OutputStream _console;
+
+      Output (OutputStream console) {
+         _console = console;
+      }
+
+      private OutputStream current () {
+         OutputStream out = _output.get();
+         return out != null ? out : _console;
+      }
+
+      public void write (int b) throws IOException {
+         current().write(b);
+      }
+
+      public void write (byte[] buf, int off, int len) throws IOException {
+         current().write(buf, off, len);
+      }
+
+      public void flush () throws IOException {
+         current().flush();
+      }
+   }//end Output
+
+   /**
+    * Swaps in the forwarding streams. Call once, before any session starts.
+    */
+   public static synchronized void install () {
+      if (_consoleOut != null)
+         return;
+      _consoleOut = System.out;
+      _consoleIn = Messenger.in;
+      PrintStream err = System.err;
+      System.setOut(new PrintStream(new Output(_consoleOut), true));
+      System.setErr(new PrintStream(new Output(err), true));
+      Messenger.in = new Input();
+   }//end install
+
+   /**
+    * @return the daemon's own console, for its log lines
+    */
+   public static PrintStream console () {
+      return _consoleOut != null ? _consoleOut : System.out;
+   }
+
+   /**
+    * Sends the current thread's menu input and output to a client.
+    */
+   public static void attach (BufferedReader in, OutputStream out) {
+      _input.set(in);
+      _output.set(out);
+   }
+
+   public static void detach () {
+      _input.remove();
+      _output.remove();
+   }
+
+}//end SessionConsole
@@ -0,0 +1,206 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Knows which database holds which chat when chats are spread over several.
+ *
+ * messenger.shards lists the chat shards as host:port/dbname, comma
+ * separated. CHAT, CHAT_LIST and MESSAGE rows of a chat all live on one
+ * shard; users, contact and block lists stay on the main database given on
+ * the command line. Each shard numbers its chats (and messages) with
+ * sequences stepping by the number of shards, starting at its own index + 1
+ * (see sql/src/create_shard.sql), so chat_id mod shards is where the chat
+ * lives and no id has to be asked for centrally. New chats go to the shards
+ * in turn.
+ *
+ * Every thread that issues routed statements gets its own connection to a
+ * shard the first time it needs one, kept until the thread calls release()
+ * or the router is closed. Statements for every shard at once
+ * (scatter) run in parallel on a pool with one thread per shard.
+ *
+ * The placement is fixed by the id, so the number of shards can't change
+ * without moving chats.
+ */
+public class ShardRouter {
+
+   private final String[] _urls;
+   private final String _user;
+   private final String _passwd;
+
+   // the current thread's connection to each shard, opened on first use
+   private final ThreadLocal<Connection[]> _connections = new ThreadLocal<Connection[]>();
+
+   // every connection opened, for close()
+   private final List<Connection> _opened = new ArrayList<Connection>();
+
+   private final ExecutorService _scatter;
+   private final AtomicInteger _nextShard = new AtomicInteger();
+
+   /**
+    * @return the router for messenger.shards, or null if it isn't set
+    */
+   public static ShardRouter fromProperties (String user, String passwd) {
+      String shards = System.getProperty("messenger.shards");
+      if (shards == null || shards.trim().length() == 0)
+         return null;
+      String[] hosts = shards.split(",");
+      String[] urls = new String[hosts.length];
+      for (int i = 0; i < hosts.length; ++i)
+         urls[i] = "jdbc:postgresql://" + hosts[i].trim();
+      return new ShardRouter(urls, user, passwd);
+   }//end fromProperties
+
+   public ShardRouter (String[] urls, String user, String passwd) {
+      _urls = urls;
+      _user = user;
+      _passwd = passwd;
+      _scatter = Executors.newFixedThreadPool(urls.length, new ThreadFactory() {
+         private int _next = 0;
+
+         public synchronized Thread newThread (Runnable r) {
+            Thread t = new Thread(r, "messenger-shard-" + _next++);
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end ShardRouter
+
+   public int count () {
+      return _urls.length;
+   }
+
+   /**
+    * @return the index of the shard holding the chat
+    */
+   public int shardOf (int chatId) {
+      return ((chatId - 1) % _urls.length + _urls.length) % _urls.length;
+   }
+
+   /**
+    * @return the shard the next new chat should be created on
+    */
+   public int shardForNewChat () {
+      return (_nextShard.getAndIncrement() & Integer.MAX_VALUE) % _urls.length;
+   }
+
+   /**
+    * @return the current thread's connection to the shard, opened on first use
+    */
+   public Connection connection (int shard) throws SQLException {
+      Connection[] mine = _connections.get();
+      if (mine == null) {
+         mine = new Connection[_urls.length];
+         _connections.set(mine);
+      }
+      if (mine[shard] == null || mine[shard].isClosed()) {
+         Connection opened = DriverManager.getConnection(_urls[shard], _user, _passwd);
+         synchronized (_opened) {
+            _opened.remove(mine[shard]);
+            _opened.add(opened);
+         }
+         mine[shard] = opened;
+      }
+      return mine[shard];
+   }//end connection
+
+   /**
+    * Runs work once per shard, all shards at once.
+    *
+    * @return each shard's result, in shard order
+    * @throws SQLException the first failure, once every shard is done
+    */
+   public <T> List<T> scatter (final ShardWork<T> work) throws SQLException {
+      List<Future<T>> pending = new ArrayList<Future<T>>(_urls.length);
+      for (int i = 0; i < _urls.length; ++i) {
+         final int shard = i;
+         pending.add(_scatter.submit(new Callable<T>() {
+            public T call () throws SQLException {
+               return work.run(shard);
+            }
+         }));
+      }
+
+      List<T> results = new ArrayList<T>(_urls.length);
+      SQLException failure = null;
+      for (Future<T> f : pending) {
+         try {
+            results.add(f.get());
+         }catch (ExecutionException e) {
+            if (failure == null)
+               failure = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                                              : new SQLException(e.getCause().toString());
+         }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the shards.");
+         }
+      }
+      if (failure != null)
+         throw failure;
+      return results;
+   }//end scatter
+
+   /**
+    * One shard's part of a scatter.
+    */
+   public interface ShardWork<T> {
+      T run (int shard) throws SQLException;
+   }
+
+   /**
+    * Closes the current thread's shard connections; its next statement for
+    * a shard opens new ones. A thread that ends without calling this keeps
+    * them open until close().
+    */
+   public void release () {
+      Connection[] mine = _connections.get();
+      _connections.remove();
+      if (mine == null)
+         return;
+      for (Connection c : mine) {
+         if (c == null)
+            continue;
+         synchronized (_opened) {
+            _opened.remove(c);
+         }
+         try {
+            c.close();
+         }catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end release
+
+   /**
+    * Stops the scatter pool and closes every shard connection.
+    */
+   public void close () {
+      _scatter.shutdown();
+      try {
+         _scatter.awaitTermination(5, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      synchronized (_opened) {
+         for (Connection c : _opened) {
+            try {
+               c.close();
+            }catch (SQLException e) {
+               // ignored.
+            }
+         }
+         _opened.clear();
+      }
+   }//end close
+
+}//end ShardRouter
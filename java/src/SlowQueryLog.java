@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes every Messenger statement slower than a threshold to a rotating log
+ * of JSON lines: operation, SQL template, bound parameters, session user,
+ * elapsed time and row count.
+ *
+ * A sample of the slow statements is explained on a separate connection
+ * to the database that ran them (the main one, a shard or a replica; a
+ * routed statement's entry also names it as "db") and the plan is written
+ * with the entry. Plain SELECTs are re-run with
+ * EXPLAIN (ANALYZE, BUFFERS) in a read-only transaction that is rolled
+ * back; everything else (INSERT, UPDATE, DELETE, and SELECTs that turn out
+ * to write, such as SELECT create_chat(...)) only gets a plain EXPLAIN,
+ * since running it again would use up sequence values, fire triggers and
+ * take the row locks the original statement's transaction may still hold. Plan capture runs on a background
+ * thread so it never adds to the latency the user sees.
+ *
+ * Configuration (system properties):
+ *   messenger.slowquery.ms          threshold in milliseconds (default 200, negative disables)
+ *   messenger.slowquery.file        log file (default slow_query.log)
+ *   messenger.slowquery.maxbytes    size at which the log rotates (default 10MB)
+ *   messenger.slowquery.keep        rotated files to keep (default 5)
+ *   messenger.slowquery.explain     fraction of slow queries to EXPLAIN (default 0.1)
+ */
+public class SlowQueryLog {
+
+   private final long _thresholdNanos;
+   private final File _file;
+   private final long _maxBytes;
+   private final int _keep;
+   private final double _explainRate;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   private final Random _random = new Random();
+   private final ExecutorService _explainer;
+
+   // URL -> side connection; only used on the explainer thread
+   private final Map<String, Connection> _sideConnections = new HashMap<String, Connection>();
+
+   public SlowQueryLog (String url, String user, String passwd) {
+      long ms = Long.getLong("messenger.slowquery.ms", 200L);
+      _thresholdNanos = ms < 0 ? Long.MAX_VALUE : ms * 1000000L;
+      _file = new File(System.getProperty("messenger.slowquery.file", "slow_query.log"));
+      _maxBytes = Long.getLong("messenger.slowquery.maxbytes", 10L * 1024 * 1024);
+      _keep = Integer.getInteger("messenger.slowquery.keep", 5);
+      _explainRate = Double.parseDouble(System.getProperty("messenger.slowquery.explain", "0.1"));
+
+      _url = url;
+      _user = user;
+      _passwd = passwd;
+
+      // one plan at a time; if plans back up, drop new ones rather than queue forever
+      _explainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(16), new ThreadFactory() {
+               public Thread newThread (Runnable r) {
+                  Thread t = new Thread(r, "slow-query-explain");
+                  t.setDaemon(true);
+                  return t;
+               }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+   }//end SlowQueryLog
+
+   /**
+    * Called after every statement. Cheap when the statement was fast.
+    *
+    * @param target the connection the statement ran on if it was routed to
+    *        a shard or replica, null for the main database
+    */
+   public void observe (final String operation, final String sql, final Object[] params, Connection target,
+                        final String sessionUser, long nanos, final int rows, final boolean failed) {
+      if (nanos < _thresholdNanos)
+         return;
+
+      final double elapsedMs = nanos / 1000000.0;
+      final long when = System.currentTimeMillis();
+      final String db = urlOf(target);
+
+      if (!failed && _random.nextDouble() < _explainRate) {
+         _explainer.execute(new Runnable() {
+            public void run () {
+               write(when, operation, sql, params, db, sessionUser, elapsedMs, rows, failed, explain(db, sql, params));
+            }
+         });
+      }else
+         write(when, operation, sql, params, db, sessionUser, elapsedMs, rows, failed, null);
+   }//end observe
+
+   /**
+    * @return the URL of a routed connection, or null for the main database
+    */
+   private static String urlOf (Connection target) {
+      if (target == null)
+         return null;
+      try {
+         return target.getMetaData().getURL();
+      }catch (SQLException e) {
+         return "?";
+      }
+   }//end urlOf
+
+   /**
+    * Explains the statement on a side connection to db (null: the main
+    * database): with ANALYZE for a plain SELECT, which is run again,
+    * read-only; without it for anything else.
+    */
+   private String explain (String db, String sql, Object[] params) {
+      if ("?".equals(db))
+         return "EXPLAIN skipped: unknown database";
+      try {
+         String url = db == null ? _url : db;
+         Connection side = _sideConnections.get(url);
+         if (side == null || side.isClosed()) {
+            side = DriverManager.getConnection(url, _user, _passwd);
+            side.setAutoCommit(false);
+            _sideConnections.put(url, side);
+         }
+
+         if (isPlainSelect(sql)) {
+            try {
+               return plan(side, "EXPLAIN (ANALYZE, BUFFERS) ", sql, params, true);
+            }catch (SQLException e) {
+               // e.g. a function that writes, refused by the read-only transaction
+            }
+         }
+         return plan(side, "EXPLAIN ", sql, params, false);
+      }catch (SQLException e) {
+         return "EXPLAIN failed: " + e.getMessage();
+      }
+   }//end explain
+
+   private static String plan (Connection side, String explain, String sql, Object[] params, boolean readOnly) throws SQLException {
+      try {
+         if (readOnly) {
+            Statement set = side.createStatement();
+            try {
+               // nextval, INSERT/UPDATE/DELETE and FOR UPDATE all fail here before they do anything
+               set.execute("SET TRANSACTION READ ONLY");
+            }finally {
+               set.close();
+            }
+         }
+
+         PreparedStatement stmt = side.prepareStatement(explain + sql);
+         try {
+            for (int i = 0; i < params.length; ++i)
+               stmt.setObject(i + 1, params[i]);
+
+            ResultSet rs = stmt.executeQuery();
+            StringBuilder plan = new StringBuilder();
+            while (rs.next())
+               plan.append(rs.getString(1)).append('\n');
+            return plan.toString();
+         }finally {
+            stmt.close();
+         }
+      }finally {
+         side.rollback();
+      }
+   }//end plan
+
+   /**
+    * @return true for a SELECT (or WITH ... SELECT) that takes no row locks
+    */
+   private static boolean isPlainSelect (String sql) {
+      String s = sql.trim().toUpperCase();
+      return (s.startsWith("SELECT") || s.startsWith("WITH"))
+             && s.indexOf(" FOR UPDATE") < 0 && s.indexOf(" FOR SHARE") < 0
+             && s.indexOf("INSERT ") < 0 && s.indexOf("UPDATE ") < 0 && s.indexOf("DELETE ") < 0;
+   }//end isPlainSelect
+
+   private synchronized void write (long when, String operation, String sql, Object[] params, String db,
+                                    String sessionUser, double elapsedMs, int rows, boolean failed, String plan) {
+      StringBuilder line = new StringBuilder(256);
+      line.append("{\"ts\":").append(quote(timestamp(when)));
+      line.append(",\"operation\":").append(quote(operation));
+      if (db != null)
+         line.append(",\"db\":").append(quote(db));
+      line.append(",\"user\":").append(sessionUser == null ? "null" : quote(sessionUser));
+      line.append(",\"elapsed_ms\":").append(String.format("%.3f", elapsedMs));
+      line.append(",\"rows\":").append(rows);
+      line.append(",\"failed\":").append(failed);
+      line.append(",\"sql\":").append(quote(sql));
+      line.append(",\"params\":[");
+      for (int i = 0; i < params.length; ++i) {
+         if (i > 0)
+            line.append(',');
+         line.append(params[i] == null ? "null" : quote(params[i].toString()));
+      }
+      line.append(']');
+      if (plan != null)
+         line.append(",\"plan\":").append(quote(plan));
+      line.append("}\n");
+
+      try {
+         rotateIfNeeded();
+         Writer w = new OutputStreamWriter(new FileOutputStream(_file, true), "UTF-8");
+         try {
+            w.write(line.toString());
+         }finally {
+            w.close();
+         }
+      }catch (IOException e) {
+         System.err.println("\tUnable to write slow query log: " + e.getMessage());
+      }
+   }//end write
+
+   private void rotateIfNeeded () {
+      if (_file.length() < _maxBytes)
+         return;
+
+      new File(_file.getPath() + "." + _keep).delete();
+      for (int i = _keep - 1; i >= 1; --i) {
+         File from = new File(_file.getPath() + "." + i);
+         if (from.exists())
+            from.renameTo(new File(_file.getPath() + "." + (i + 1)));
+      }
+      _file.renameTo(new File(_file.getPath() + ".1"));
+   }//end rotateIfNeeded
+
+   /**
+    * Stops plan capture and closes the side connections.
+    */
+   public void close () {
+      _explainer.shutdown();
+      try {
+         _explainer.awaitTermination(5, TimeUnit.SECONDS);
+         for (Connection side : _sideConnections.values())
+            side.close();
+      }catch (Exception e) {
+         // ignored.
+      }
+   }//end close
+
+   private static String timestamp (long when) {
+      SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+      f.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return f.format(new Date(when));
+   }
+
+   private static String quote (String s) {
+      StringBuilder b = new StringBuilder(s.length() + 2);
+      b.append('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': b.append("\\\""); break;
+            case '\\': b.append("\\\\"); break;
+            case '\n': b.append("\\n"); break;
+            case '\r': b.append("\\r"); break;
+            case '\t': b.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  b.append(String.format("\\u%04x", (int) c));
+               else
+                  b.append(c);
+         }
+      }
+      return b.append('"').toString();
+   }//end quote
+
+}//end SlowQueryLog
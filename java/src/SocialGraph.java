@@ -0,0 +1,477 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every user's contact and block lists, held in memory by user id.
+ *
+ * Each list is a sorted int[] of user ids, so "is X a contact of Y" is a
+ * binary search and "contacts of Y not in chat Z" is a merge of two sorted
+ * arrays. Both lists are loaded in bulk when the connection is opened; every
+ * write to USER_LIST_CONTAINS goes through this class and, once committed,
+ * replaces the affected array, so readers never need a lock.
+ *
+ * Each block list also has a Bloom filter, which is what message reads and
+ * deliveries consult: for the common case of a sender nobody blocked it
+ * answers with a few bit tests and no search.
+ *
+ * Every committed change is published as listsChanged on the ChatEventBus.
+ * Changes made by other clients are not seen until the next load(), unless
+ * they run ClusterSync or share a MessengerDaemon (EventRelay), which have
+ * the changed lists reread here.
+ */
+public class SocialGraph {
+
+   private static final int[] NONE = new int[0];
+
+   private static final String CONTACTS_QUERY =
+      "SELECT U.user_id, ULC.list_member_id FROM USR U, USER_LIST_CONTAINS ULC " +
+      "WHERE ULC.list_id = U.contact_list ORDER BY U.user_id, ULC.list_member_id";
+   private static final String BLOCKS_QUERY =
+      "SELECT U.user_id, ULC.list_member_id FROM USR U, USER_LIST_CONTAINS ULC " +
+      "WHERE ULC.list_id = U.block_list ORDER BY U.user_id, ULC.list_member_id";
+   private static final String USER_CONTACTS_QUERY =
+      "SELECT U.user_id, ULC.list_member_id FROM USR U, USER_LIST_CONTAINS ULC " +
+      "WHERE U.user_id = ? AND ULC.list_id = U.contact_list ORDER BY ULC.list_member_id";
+   private static final String USER_BLOCKS_QUERY =
+      "SELECT U.user_id, ULC.list_member_id FROM USR U, USER_LIST_CONTAINS ULC " +
+      "WHERE U.user_id = ? AND ULC.list_id = U.block_list ORDER BY ULC.list_member_id";
+
+   /**
+    * What importContacts did with one phone number.
+    */
+   public static class ImportOutcome {
+      public static final String ADDED = "added";
+      public static final String ALREADY_CONTACT = "contact";
+      public static final String BLOCKED = "blocked";
+      public static final String SELF = "self";
+      public static final String UNKNOWN = "unknown";
+      // no digits to match
+      public static final String INVALID = "invalid";
+
+      // as given by the caller
+      public final String phone;
+      // -1 if nobody has the number
+      public final int userId;
+      public final String outcome;
+
+      ImportOutcome (String phone, int userId, String outcome) {
+         this.phone = phone;
+         this.userId = userId;
+         this.outcome = outcome;
+      }
+
+      public boolean added () {
+         return outcome.equals(ADDED);
+      }
+   }//end ImportOutcome
+
+   private final Messenger _esql;
+
+   // user_id -> sorted ids on their contact / block list
+   private volatile Map<Integer, int[]> _contacts = new ConcurrentHashMap<Integer, int[]>();
+   private volatile Map<Integer, int[]> _blocks = new ConcurrentHashMap<Integer, int[]>();
+
+   // user_id -> filter over _blocks of that user; absent when the list is empty
+   private volatile Map<Integer, IntBloomFilter> _blockFilters = new ConcurrentHashMap<Integer, IntBloomFilter>();
+
+   public SocialGraph (Messenger esql) {
+      _esql = esql;
+   }
+
+   /**
+    * (Re)reads every contact and block list with one query each.
+    */
+   public void load () throws SQLException {
+      Map<Integer, int[]> contacts = loadLists("loadContacts", CONTACTS_QUERY);
+      Map<Integer, int[]> blocks = loadLists("loadBlocks", BLOCKS_QUERY);
+      Map<Integer, IntBloomFilter> filters = new ConcurrentHashMap<Integer, IntBloomFilter>();
+      for (Map.Entry<Integer, int[]> e : blocks.entrySet())
+         filters.put(e.getKey(), new IntBloomFilter(e.getValue()));
+      synchronized (this) {
+         _contacts = contacts;
+         _blocks = blocks;
+         _blockFilters = filters;
+      }
+   }//end load
+
+   /**
+    * Rereads one user's contact and block lists, e.g. after another node
+    * changed them.
+    */
+   public void reload (int userId) throws SQLException {
+      int[] contacts = listOf(loadLists("reloadContacts", USER_CONTACTS_QUERY, userId), userId);
+      int[] blocked = listOf(loadLists("reloadBlocks", USER_BLOCKS_QUERY, userId), userId);
+      synchronized (this) {
+         if (contacts.length == 0)
+            _contacts.remove(userId);
+         else
+            _contacts.put(userId, contacts);
+         setBlocks(userId, blocked);
+      }
+   }//end reload
+
+   private Map<Integer, int[]> loadLists (String operation, String sql, Object... params) throws SQLException {
+      List<List<String>> rows = _esql.executeQueryAndReturnResult(operation, sql, params);
+      Map<Integer, int[]> lists = new ConcurrentHashMap<Integer, int[]>();
+
+      // rows come ordered by owner, so each owner's ids are one sorted run
+      int[] run = new int[16];
+      int runLength = 0;
+      int owner = 0;
+      for (int i = 0; i <= rows.size(); ++i) {
+         int next = i < rows.size() ? Integer.parseInt(rows.get(i).get(0).trim()) : 0;
+         if (runLength > 0 && (i == rows.size() || next != owner)) {
+            lists.put(owner, Arrays.copyOf(run, runLength));
+            runLength = 0;
+         }
+         if (i == rows.size())
+            break;
+         owner = next;
+         if (runLength == run.length)
+            run = Arrays.copyOf(run, run.length * 2);
+         run[runLength++] = Integer.parseInt(rows.get(i).get(1).trim());
+      }
+      return lists;
+   }//end loadLists
+
+   public boolean isContact (int userId, int otherId) {
+      return Arrays.binarySearch(listOf(_contacts, userId), otherId) >= 0;
+   }
+
+   public boolean isBlocked (int userId, int otherId) {
+      return Arrays.binarySearch(listOf(_blocks, userId), otherId) >= 0;
+   }
+
+   /**
+    * @return true if recipientId has blocked senderId, i.e. messages from
+    *         senderId must not be shown or delivered to recipientId
+    */
+   public boolean hidesMessagesFrom (int recipientId, int senderId) {
+      IntBloomFilter filter = _blockFilters.get(recipientId);
+      if (filter == null || !filter.mightContain(senderId))
+         return false;
+      return isBlocked(recipientId, senderId);
+   }//end hidesMessagesFrom
+
+   /**
+    * @return the messages recipientId may see, in the given order; the list
+    *         itself when none are hidden
+    */
+   public List<ChatMessage> visibleTo (int recipientId, List<ChatMessage> messages) {
+      if (_blockFilters.get(recipientId) == null)
+         return messages;
+      List<ChatMessage> out = null;
+      for (int i = 0; i < messages.size(); ++i) {
+         ChatMessage m = messages.get(i);
+         boolean hidden = hidesMessagesFrom(recipientId, m.senderId);
+         if (hidden && out == null)
+            out = new ArrayList<ChatMessage>(messages.subList(0, i));
+         else if (!hidden && out != null)
+            out.add(m);
+      }
+      return out == null ? messages : out;
+   }//end visibleTo
+
+   /**
+    * @return the ids on the user's contact list, ascending
+    */
+   public int[] contactsOf (int userId) {
+      return listOf(_contacts, userId).clone();
+   }
+
+   /**
+    * @return the ids on the user's block list, ascending
+    */
+   public int[] blockedOf (int userId) {
+      return listOf(_blocks, userId).clone();
+   }
+
+   /**
+    * @return the ids of the user's contacts that are not in others, ascending
+    */
+   public int[] contactsNotIn (int userId, Collection<Integer> others) {
+      return difference(listOf(_contacts, userId), toSortedArray(others));
+   }
+
+   /**
+    * @return the logins on the user's contact list, in login order
+    */
+   public List<String> contactLogins (int userId) throws SQLException {
+      return loginsOf(listOf(_contacts, userId));
+   }
+
+   /**
+    * @return the logins on the user's block list, in login order
+    */
+   public List<String> blockedLogins (int userId) throws SQLException {
+      return loginsOf(listOf(_blocks, userId));
+   }
+
+   /**
+    * @return the logins of the given ids, in login order
+    */
+   public List<String> loginsOf (int[] ids) throws SQLException {
+      List<Integer> boxed = new ArrayList<Integer>(ids.length);
+      for (int id : ids)
+         boxed.add(id);
+      List<String> logins = new ArrayList<String>(_esql.getUsers().loginsOf(boxed).values());
+      Collections.sort(logins);
+      return logins;
+   }//end loginsOf
+
+   /**
+    * Puts otherId on the user's contact list, taking it off the block list
+    * first.
+    *
+    * @throws SQLException with the duplicate key error if otherId is
+    *         already a contact
+    */
+   public void addContact (final int userId, final int otherId) throws SQLException {
+      // a failed insert must not leave otherId unblocked
+      _esql.inTransaction("addContact", new TransactionWork<Void>() {
+         public Void run (Messenger esql) throws SQLException {
+            removeBlock(userId, otherId);
+            esql.executeUpdate("addContact",
+               "INSERT INTO USER_LIST_CONTAINS VALUES ((SELECT contact_list FROM USR WHERE user_id = ?), ?)",
+               userId, otherId);
+            esql.afterCommit(new Runnable() {
+               public void run () {
+                  synchronized (SocialGraph.this) {
+                     _contacts.put(userId, insert(listOf(_contacts, userId), otherId));
+                  }
+                  changed(userId);
+               }
+            });
+            return null;
+         }
+      });
+   }//end addContact
+
+   /**
+    * Puts otherId on the user's block list, taking it off the contact list
+    * first.
+    *
+    * @throws SQLException with the duplicate key error if otherId is
+    *         already blocked
+    */
+   public void addBlock (final int userId, final int otherId) throws SQLException {
+      _esql.inTransaction("blockUser", new TransactionWork<Void>() {
+         public Void run (Messenger esql) throws SQLException {
+            removeContact(userId, otherId);
+            esql.executeUpdate("blockUser",
+               "INSERT INTO USER_LIST_CONTAINS VALUES ((SELECT block_list FROM USR WHERE user_id = ?), ?)",
+               userId, otherId);
+            esql.afterCommit(new Runnable() {
+               public void run () {
+                  synchronized (SocialGraph.this) {
+                     setBlocks(userId, insert(listOf(_blocks, userId), otherId));
+                  }
+                  changed(userId);
+               }
+            });
+            return null;
+         }
+      });
+   }//end addBlock
+
+   /**
+    * Adds everyone whose phone number is among phones to the user's contact
+    * list (import_contacts): the numbers are normalized here and matched and
+    * inserted by one set-based statement, however many there are. Users the
+    * owner has blocked are left alone.
+    *
+    * @param phones numbers in any punctuation; numbers without a country
+    *        code get messenger.phone.country (default "1")
+    * @return one outcome per distinct number, in the order given
+    */
+   public List<ImportOutcome> importContacts (final int userId, Collection<String> phones) throws SQLException {
+      // normalized -> first raw spelling of it
+      Map<String, String> requested = new LinkedHashMap<String, String>();
+      List<ImportOutcome> invalid = new ArrayList<ImportOutcome>();
+      for (String raw : phones) {
+         String digits = normalizePhone(raw);
+         if (digits == null)
+            invalid.add(new ImportOutcome(raw, -1, ImportOutcome.INVALID));
+         else if (!requested.containsKey(digits))
+            requested.put(digits, raw);
+      }
+
+      Map<String, ImportOutcome> matched = new LinkedHashMap<String, ImportOutcome>();
+      if (!requested.isEmpty()) {
+         StringBuilder array = new StringBuilder("{");
+         for (String digits : requested.keySet())
+            array.append(array.length() > 1 ? "," : "").append(digits);
+         array.append('}');
+
+         List<List<String>> rows = _esql.executeQueryAndReturnResult("importContacts",
+            "SELECT req_phone, req_user_id, outcome FROM import_contacts(?, CAST(? AS text[]))",
+            userId, array.toString());
+         final List<Integer> added = new ArrayList<Integer>();
+         for (List<String> row : rows) {
+            String digits = row.get(0).trim();
+            int id = row.get(1) == null ? -1 : Integer.parseInt(row.get(1).trim());
+            ImportOutcome o = new ImportOutcome(requested.get(digits), id, row.get(2).trim());
+            if (o.added())
+               added.add(id);
+            matched.put(digits, o);
+         }
+
+         // one swap for the whole import
+         _esql.afterCommit(new Runnable() {
+            public void run () {
+               synchronized (SocialGraph.this) {
+                  int[] contacts = listOf(_contacts, userId);
+                  for (int id : added)
+                     contacts = insert(contacts, id);
+                  _contacts.put(userId, contacts);
+               }
+               changed(userId);
+            }
+         });
+      }
+
+      List<ImportOutcome> out = new ArrayList<ImportOutcome>(matched.size() + invalid.size());
+      for (String digits : requested.keySet())
+         out.add(matched.get(digits));
+      out.addAll(invalid);
+      return out;
+   }//end importContacts
+
+   /**
+    * @return the digits of a phone number with its country code, as
+    *         usrPhoneDigits indexes them, or null if it has no digits
+    */
+   static String normalizePhone (String raw) {
+      StringBuilder digits = new StringBuilder(raw.length());
+      for (int i = 0; i < raw.length(); ++i)
+         if (raw.charAt(i) >= '0' && raw.charAt(i) <= '9')
+            digits.append(raw.charAt(i));
+      if (digits.length() == 0)
+         return null;
+      // a bare national number, e.g. (180)393-1512
+      if (digits.length() == 10 && raw.trim().charAt(0) != '+')
+         digits.insert(0, System.getProperty("messenger.phone.country", "1"));
+      return digits.toString();
+   }//end normalizePhone
+
+   public void removeContact (final int userId, final int otherId) throws SQLException {
+      _esql.executeUpdate("removeContact",
+         "DELETE FROM USER_LIST_CONTAINS WHERE list_id = (SELECT contact_list FROM USR WHERE user_id = ?) AND list_member_id = ?",
+         userId, otherId);
+      _esql.afterCommit(new Runnable() {
+         public void run () {
+            synchronized (SocialGraph.this) {
+               _contacts.put(userId, delete(listOf(_contacts, userId), otherId));
+            }
+            changed(userId);
+         }
+      });
+   }//end removeContact
+
+   public void removeBlock (final int userId, final int otherId) throws SQLException {
+      _esql.executeUpdate("unblockUser",
+         "DELETE FROM USER_LIST_CONTAINS WHERE list_id = (SELECT block_list FROM USR WHERE user_id = ?) AND list_member_id = ?",
+         userId, otherId);
+      _esql.afterCommit(new Runnable() {
+         public void run () {
+            synchronized (SocialGraph.this) {
+               setBlocks(userId, delete(listOf(_blocks, userId), otherId));
+            }
+            changed(userId);
+         }
+      });
+   }//end removeBlock
+
+   /**
+    * Forgets a deleted user: their own lists, and their entries on everyone
+    * else's lists (removed in the database by ON DELETE CASCADE).
+    */
+   public synchronized void userDeleted (int userId) {
+      _contacts.remove(userId);
+      setBlocks(userId, NONE);
+      for (Map.Entry<Integer, int[]> e : _contacts.entrySet())
+         if (Arrays.binarySearch(e.getValue(), userId) >= 0)
+            e.setValue(delete(e.getValue(), userId));
+      for (Map.Entry<Integer, int[]> e : _blocks.entrySet())
+         if (Arrays.binarySearch(e.getValue(), userId) >= 0)
+            setBlocks(e.getKey(), delete(e.getValue(), userId));
+   }//end userDeleted
+
+   // lets the other nodes or pooled instances, if any, reread the user's lists
+   private void changed (int userId) {
+      _esql.getEvents().listsChanged(userId);
+   }
+
+   // callers hold the lock; the filter follows its list
+   private void setBlocks (int userId, int[] blocked) {
+      if (blocked.length == 0) {
+         _blocks.remove(userId);
+         _blockFilters.remove(userId);
+      }else {
+         _blocks.put(userId, blocked);
+         _blockFilters.put(userId, new IntBloomFilter(blocked));
+      }
+   }//end setBlocks
+
+   private static int[] listOf (Map<Integer, int[]> lists, int userId) {
+      int[] list = lists.get(userId);
+      return list == null ? NONE : list;
+   }
+
+   // the helpers below never modify their arguments; callers swap in the result
+
+   private static int[] insert (int[] sorted, int id) {
+      int at = Arrays.binarySearch(sorted, id);
+      if (at >= 0)
+         return sorted;
+      at = -at - 1;
+      int[] out = new int[sorted.length + 1];
+      System.arraycopy(sorted, 0, out, 0, at);
+      out[at] = id;
+      System.arraycopy(sorted, at, out, at + 1, sorted.length - at);
+      return out;
+   }//end insert
+
+   private static int[] delete (int[] sorted, int id) {
+      int at = Arrays.binarySearch(sorted, id);
+      if (at < 0)
+         return sorted;
+      int[] out = new int[sorted.length - 1];
+      System.arraycopy(sorted, 0, out, 0, at);
+      System.arraycopy(sorted, at + 1, out, at, sorted.length - at - 1);
+      return out;
+   }//end delete
+
+   /**
+    * @return the ids of a that are not in b; both sorted ascending
+    */
+   static int[] difference (int[] a, int[] b) {
+      int[] out = new int[a.length];
+      int n = 0;
+      int j = 0;
+      for (int i = 0; i < a.length; ++i) {
+         while (j < b.length && b[j] < a[i])
+            ++j;
+         if (j == b.length || b[j] != a[i])
+            out[n++] = a[i];
+      }
+      return Arrays.copyOf(out, n);
+   }//end difference
+
+   private static int[] toSortedArray (Collection<Integer> ids) {
+      int[] out = new int[ids.size()];
+      int n = 0;
+      for (Integer id : ids)
+         out[n++] = id;
+      Arrays.sort(out);
+      return out;
+   }
+
+}//end SocialGraph
@@ -0,0 +1,12 @@
+import java.sql.SQLException;
+
+/**
+ * A unit of work run by Messenger.inTransaction. It may be run more than
+ * once when the transaction is retried, so it should only talk to the
+ * database and leave other side effects until it has returned.
+ */
+public interface TransactionWork<T> {
+
+   T run (Messenger esql) throws SQLException;
+
+}//end TransactionWork
@@ -0,0 +1,121 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps logins to USR.user_id and back.
+ *
+ * Every table refers to users by their integer id; logins are only needed
+ * when reading input and when printing. Both directions are cached for the
+ * life of the process, so a login is resolved once per session and printing
+ * a member list or a chat history costs at most one lookup for the ids not
+ * seen before. A deleted account is forgotten on its userDeleted event, which
+ * ClusterSync and EventRelay pass on to the other processes and instances,
+ * so its login can't resolve to the old id there either.
+ */
+public class UserDirectory extends ChatEventListener.Adapter {
+
+   private final Messenger _esql;
+   private final Map<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+   private final Map<Integer, String> _logins = new ConcurrentHashMap<Integer, String>();
+
+   public UserDirectory (Messenger esql) {
+      _esql = esql;
+      esql.getEvents().subscribe(this);
+   }
+
+   /**
+    * @return the user_id of login, or -1 if there is no such user
+    */
+   public int idOf (String login) throws SQLException {
+      login = login.trim();
+      Integer id = _ids.get(login);
+      if (id != null)
+         return id;
+
+      // cast to the column's type, so the login index is used
+      List<List<String>> rows = _esql.executeQueryOnReplica("resolveLogin",
+         "SELECT user_id FROM USR WHERE login = CAST(? AS char(50))", login);
+      if (rows.size() == 0)
+         return -1;
+
+      int found = Integer.parseInt(rows.get(0).get(0).trim());
+      remember(found, login);
+      return found;
+   }//end idOf
+
+   /**
+    * @return the login of a user id, or null if there is no such user
+    */
+   public String loginOf (int id) throws SQLException {
+      String login = _logins.get(id);
+      if (login != null)
+         return login;
+
+      List<Integer> one = new ArrayList<Integer>(1);
+      one.add(id);
+      return loginsOf(one).get(id);
+   }//end loginOf
+
+   /**
+    * Resolves many ids with at most one query.
+    *
+    * @return id -> login for every id that exists
+    */
+   public Map<Integer, String> loginsOf (Collection<Integer> ids) throws SQLException {
+      Map<Integer, String> out = new HashMap<Integer, String>();
+      Set<Integer> missing = new LinkedHashSet<Integer>();
+      for (Integer id : ids) {
+         String login = _logins.get(id);
+         if (login != null)
+            out.put(id, login);
+         else
+            missing.add(id);
+      }
+      if (missing.isEmpty())
+         return out;
+
+      StringBuilder sql = new StringBuilder("SELECT user_id, login FROM USR WHERE user_id IN (");
+      for (int i = 0; i < missing.size(); ++i)
+         sql.append(i == 0 ? "?" : ", ?");
+      sql.append(')');
+
+      List<List<String>> rows = _esql.executeQueryOnReplica("resolveUserIds", sql.toString(), missing.toArray());
+      for (List<String> row : rows) {
+         int id = Integer.parseInt(row.get(0).trim());
+         String login = row.get(1).trim();
+         remember(id, login);
+         out.put(id, login);
+      }
+      return out;
+   }//end loginsOf
+
+   /**
+    * Records a mapping learned elsewhere, e.g. from the login query.
+    */
+   public void remember (int id, String login) {
+      _ids.put(login.trim(), id);
+      _logins.put(id, login.trim());
+   }
+
+   public void userDeleted (int userId) {
+      String login = _logins.remove(userId);
+      if (login != null)
+         _ids.remove(login);
+   }
+
+   /**
+    * Forgets every mapping, for deletes known only by their kind.
+    */
+   public void forgetAll () {
+      _ids.clear();
+      _logins.clear();
+   }
+
+}//end UserDirectory
@@ -0,0 +1,168 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Finds users by a partly typed or mistyped login.
+ *
+ * Prefix lookups are answered from memory: every login is loaded when the
+ * connection opens into a sorted map keyed by the lowercased login, so all
+ * logins starting with a prefix are one contiguous range of it. Fuzzy
+ * lookups, for when nothing starts with what was typed, go to the database
+ * and use the pg_trgm trigram index usrLoginTrgm.
+ *
+ * Either way the searching user's contacts come first, then everyone else
+ * in login order (prefix) or by similarity (fuzzy). Pages hold
+ * messenger.search.pagesize results (default 10).
+ */
+public class UserSearch {
+
+   // % is the operator usrLoginTrgm serves; it matches at the server's
+   // pg_trgm.similarity_threshold (0.3 unless configured)
+   private static final String FUZZY_QUERY =
+      "SELECT U.user_id, U.login, EXISTS (SELECT 1 FROM USR O, USER_LIST_CONTAINS C WHERE O.user_id = ? " +
+      "AND C.list_id = O.contact_list AND C.list_member_id = U.user_id) AS is_contact FROM USR U " +
+      "WHERE CAST(U.login AS text) % ? AND U.user_id <> ? " +
+      "ORDER BY is_contact DESC, similarity(CAST(U.login AS text), ?) DESC, U.login LIMIT ? OFFSET ?";
+
+   /**
+    * One page of matches.
+    */
+   public static class Page {
+      public final List<String> logins;
+      // how many of logins, from the front, are contacts of the searcher
+      public final int contacts;
+      // true if there is a next page
+      public final boolean more;
+
+      Page (List<String> logins, int contacts, boolean more) {
+         this.logins = logins;
+         this.contacts = contacts;
+         this.more = more;
+      }
+   }//end Page
+
+   private final Messenger _esql;
+   private final int _pageSize;
+
+   // lowercased login + '\0' + login -> user_id; the suffix keeps logins
+   // that differ only in case apart
+   private volatile ConcurrentSkipListMap<String, Integer> _logins = new ConcurrentSkipListMap<String, Integer>();
+
+   public UserSearch (Messenger esql) {
+      _esql = esql;
+      _pageSize = Integer.getInteger("messenger.search.pagesize", 10);
+   }
+
+   /**
+    * (Re)reads every login with one query.
+    */
+   public void load () throws SQLException {
+      List<List<String>> rows = _esql.executeQueryAndReturnResult("loadLogins", "SELECT user_id, login FROM USR");
+      ConcurrentSkipListMap<String, Integer> logins = new ConcurrentSkipListMap<String, Integer>();
+      for (List<String> row : rows) {
+         String login = row.get(1).trim();
+         logins.put(key(login), Integer.valueOf(row.get(0).trim()));
+      }
+      _logins = logins;
+   }//end load
+
+   public void userCreated (int userId, String login) {
+      _logins.put(key(login.trim()), userId);
+   }
+
+   public void userDeleted (String login) {
+      _logins.remove(key(login.trim()));
+   }
+
+   /**
+    * Prefix matches of typed if there are any, fuzzy matches otherwise.
+    *
+    * @param page 0 for the first page
+    */
+   public Page search (int userId, String typed, int page) throws SQLException {
+      // every page of one search comes from the same kind of match
+      Page first = prefix(userId, typed, 0);
+      if (first.logins.isEmpty())
+         return fuzzy(userId, typed, page);
+      return page == 0 ? first : prefix(userId, typed, page);
+   }//end search
+
+   /**
+    * @return the logins starting with prefix, ignoring case, other than the
+    *         user's own; contacts first, each part in login order
+    */
+   public Page prefix (int userId, String prefix, int page) throws SQLException {
+      String from = prefix.trim().toLowerCase();
+      if (from.length() == 0)
+         return new Page(new ArrayList<String>(), 0, false);
+      ConcurrentNavigableMap<String, Integer> range = _logins.subMap(from, true, from + Character.MAX_VALUE, false);
+
+      // contacts matching the prefix; a user has few, so filter them all
+      SocialGraph graph = _esql.getSocialGraph();
+      List<String> contacts = new ArrayList<String>();
+      for (String login : graph.contactLogins(userId))
+         if (login.toLowerCase().startsWith(from))
+            contacts.add(login);
+
+      int skip = page * _pageSize;
+      List<String> out = new ArrayList<String>(_pageSize);
+      int index = 0;
+      for (String login : contacts) {
+         if (index++ >= skip && out.size() < _pageSize + 1)
+            out.add(login);
+      }
+      int contactsOnPage = out.size();
+      // then everyone else, stopping one past the page to know if there's more
+      for (Map.Entry<String, Integer> e : range.entrySet()) {
+         if (out.size() > _pageSize)
+            break;
+         int id = e.getValue();
+         if (id == userId || graph.isContact(userId, id))
+            continue;
+         if (index++ >= skip)
+            out.add(loginOf(e.getKey()));
+      }
+      return page(out, contactsOnPage);
+   }//end prefix
+
+   /**
+    * @return the logins similar enough to typed by trigram similarity, other
+    *         than the user's own; contacts first, then the most similar
+    */
+   public Page fuzzy (int userId, String typed, int page) throws SQLException {
+      String text = typed.trim();
+      if (text.length() == 0)
+         return new Page(new ArrayList<String>(), 0, false);
+      List<List<String>> rows = _esql.executeQueryOnReplica("searchUsers", FUZZY_QUERY,
+         userId, text, userId, text, _pageSize + 1, page * _pageSize);
+      List<String> out = new ArrayList<String>(rows.size());
+      int contacts = 0;
+      for (List<String> row : rows) {
+         String login = row.get(1).trim();
+         _esql.getUsers().remember(Integer.parseInt(row.get(0).trim()), login);
+         out.add(login);
+         if (row.get(2).trim().startsWith("t"))
+            ++contacts;
+      }
+      return page(out, contacts);
+   }//end fuzzy
+
+   private Page page (List<String> upToOneMore, int contacts) {
+      boolean more = upToOneMore.size() > _pageSize;
+      return new Page(more ? new ArrayList<String>(upToOneMore.subList(0, _pageSize)) : upToOneMore,
+         Math.min(contacts, _pageSize), more);
+   }
+
+   private static String key (String login) {
+      return login.toLowerCase() + '\0' + login;
+   }
+
+   private static String loginOf (String key) {
+      return key.substring(key.indexOf('\0') + 1);
+   }
+
+}//end UserSearch
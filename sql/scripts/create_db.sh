@@ -2,4 +2,6 @@
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
\ No newline at end of file
+psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_functions.sql
\ No newline at end of file
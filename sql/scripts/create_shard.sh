@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+#Sets up chat shard $SHARD (0, 1, ...) of $SHARDS in database $DB_NAME on port $PGPORT
+#Run it once per shard, then start Messenger with CHAT_SHARDS listing them in order
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_functions.sql
+psql -p $PGPORT -v shard=$SHARD -v shards=$SHARDS $DB_NAME < $DIR/../src/create_shard.sql
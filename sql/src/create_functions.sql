@@ -0,0 +1,154 @@
+-- Chat operations that used to take several round trips from the client,
+-- each as one function call. A function runs inside the calling statement,
+-- so it is one transaction: if any step raises, none of it happens. The
+-- triggers in create_triggers.sql (member counts, chat type, read cursors,
+-- seq, change logs) fire as usual for the rows written here.
+
+-- Creates a chat owned by in_owner with a first message. Members are added
+-- afterwards with add_chat_members, in the same transaction. (Databases set
+-- up before had create_chat take the members too, and add_chat_member add
+-- them one at a time.)
+DROP FUNCTION IF EXISTS create_chat(integer, char(300), integer[]);
+DROP FUNCTION IF EXISTS add_chat_member(integer, integer, integer);
+
+CREATE OR REPLACE FUNCTION create_chat(in_owner integer, in_text char(300),
+	OUT new_chat_id integer, OUT new_msg_id integer, OUT new_seq integer,
+	OUT new_timestamp timestamp) AS
+$create_chat$
+BEGIN
+	INSERT INTO CHAT (chat_type, init_sender_id) VALUES ('private', in_owner)
+	RETURNING chat_id INTO new_chat_id;
+
+	INSERT INTO CHAT_LIST (chat_id, member_id) VALUES (new_chat_id, in_owner);
+
+	INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_id, chat_id)
+	VALUES (in_text, LOCALTIMESTAMP(0), in_owner, new_chat_id)
+	RETURNING msg_id, seq, msg_timestamp INTO new_msg_id, new_seq, new_timestamp;
+END $create_chat$ LANGUAGE plpgsql;
+
+-- Adds many users to a chat in_owner owns, by login, in one statement.
+-- Every login gets one row back saying what happened to it: 'added',
+-- 'member' (already in the chat), 'not_contact' (not on in_owner's contact
+-- list) or 'unknown' (no such user). Logins listed twice are reported once.
+CREATE OR REPLACE FUNCTION add_chat_members(in_chat integer, in_owner integer, in_logins text[])
+	RETURNS TABLE(req_login text, req_user_id integer, outcome text) AS
+$add_chat_members$
+BEGIN
+	PERFORM 1 FROM CHAT WHERE chat_id = in_chat AND init_sender_id = in_owner FOR UPDATE;
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'Only the owner of chat % can add users to it.', in_chat;
+	END IF;
+
+	-- resolved and its joins see the table as it was before ins, so
+	-- "member" means a member before this call
+	RETURN QUERY
+	WITH req AS (
+		SELECT DISTINCT btrim(l) AS login FROM unnest(in_logins) l WHERE btrim(l) <> ''),
+	resolved AS (
+		SELECT R.login, U.user_id,
+		       ULC.list_member_id IS NOT NULL AS is_contact,
+		       CL.member_id IS NOT NULL AS is_member
+		FROM req R
+		LEFT JOIN USR U ON U.login = CAST(R.login AS char(50))
+		LEFT JOIN USR O ON O.user_id = in_owner
+		LEFT JOIN USER_LIST_CONTAINS ULC ON ULC.list_id = O.contact_list AND ULC.list_member_id = U.user_id
+		LEFT JOIN CHAT_LIST CL ON CL.chat_id = in_chat AND CL.member_id = U.user_id),
+	ins AS (
+		INSERT INTO CHAT_LIST (chat_id, member_id)
+		SELECT in_chat, user_id FROM resolved WHERE is_contact AND NOT is_member
+		ON CONFLICT DO NOTHING
+		RETURNING member_id)
+	SELECT RS.login, RS.user_id,
+	       CASE WHEN RS.user_id IS NULL THEN 'unknown'
+	            WHEN RS.is_member THEN 'member'
+	            WHEN NOT RS.is_contact THEN 'not_contact'
+	            WHEN I.member_id IS NULL THEN 'member'
+	            ELSE 'added' END
+	FROM resolved RS LEFT JOIN ins I ON I.member_id = RS.user_id
+	ORDER BY RS.login;
+END $add_chat_members$ LANGUAGE plpgsql;
+
+-- Adds users to a chat in_owner owns, without checking them against the
+-- owner's contact list: for chat shards (create_shard.sql), which have no
+-- users or contact lists, once the caller has checked. Returns the users
+-- that were added; ones already in the chat are skipped.
+CREATE OR REPLACE FUNCTION add_chat_member_ids(in_chat integer, in_owner integer, in_members integer[])
+	RETURNS SETOF integer AS
+$add_chat_member_ids$
+BEGIN
+	PERFORM 1 FROM CHAT WHERE chat_id = in_chat AND init_sender_id = in_owner FOR UPDATE;
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'Only the owner of chat % can add users to it.', in_chat;
+	END IF;
+
+	RETURN QUERY
+	WITH ins AS (
+		INSERT INTO CHAT_LIST (chat_id, member_id)
+		SELECT DISTINCT in_chat, m FROM unnest(in_members) m
+		ON CONFLICT DO NOTHING
+		RETURNING member_id)
+	SELECT member_id FROM ins;
+END $add_chat_member_ids$ LANGUAGE plpgsql;
+
+-- Adds every user whose phone number is in in_phones to in_owner's contact
+-- list, in one statement. in_phones holds digits only, country code first,
+-- and is matched against the digits of USR.phoneNum (usrPhoneDigits). Each
+-- distinct number gets one row back: 'added', 'contact' (already one),
+-- 'blocked' (on in_owner's block list, left alone), 'self' or 'unknown'.
+CREATE OR REPLACE FUNCTION import_contacts(in_owner integer, in_phones text[])
+	RETURNS TABLE(req_phone text, req_user_id integer, outcome text) AS
+$import_contacts$
+BEGIN
+	RETURN QUERY
+	WITH req AS (
+		SELECT DISTINCT p AS phone FROM unnest(in_phones) p),
+	resolved AS (
+		SELECT R.phone, U.user_id,
+		       C.list_member_id IS NOT NULL AS is_contact,
+		       B.list_member_id IS NOT NULL AS is_blocked
+		FROM req R
+		LEFT JOIN USR U ON regexp_replace(U.phoneNum, '[^0-9]', '', 'g') = R.phone
+		LEFT JOIN USR O ON O.user_id = in_owner
+		LEFT JOIN USER_LIST_CONTAINS C ON C.list_id = O.contact_list AND C.list_member_id = U.user_id
+		LEFT JOIN USER_LIST_CONTAINS B ON B.list_id = O.block_list AND B.list_member_id = U.user_id),
+	ins AS (
+		INSERT INTO USER_LIST_CONTAINS (list_id, list_member_id)
+		SELECT DISTINCT O.contact_list, RS.user_id FROM resolved RS, USR O
+		WHERE O.user_id = in_owner AND RS.user_id <> in_owner
+		AND NOT RS.is_contact AND NOT RS.is_blocked
+		ON CONFLICT DO NOTHING
+		RETURNING list_member_id)
+	SELECT RS.phone, RS.user_id,
+	       CASE WHEN RS.user_id IS NULL THEN 'unknown'
+	            WHEN RS.user_id = in_owner THEN 'self'
+	            WHEN RS.is_contact THEN 'contact'
+	            WHEN RS.is_blocked THEN 'blocked'
+	            WHEN I.list_member_id IS NULL THEN 'contact'
+	            ELSE 'added' END
+	FROM resolved RS LEFT JOIN ins I ON I.list_member_id = RS.user_id
+	ORDER BY RS.phone;
+END $import_contacts$ LANGUAGE plpgsql;
+
+-- Removes a member other than the owner from a chat in_owner owns and
+-- returns the new member count.
+CREATE OR REPLACE FUNCTION remove_chat_member(in_chat integer, in_owner integer, in_member integer) RETURNS integer AS
+$remove_chat_member$
+DECLARE
+	members integer;
+BEGIN
+	PERFORM 1 FROM CHAT WHERE chat_id = in_chat AND init_sender_id = in_owner FOR UPDATE;
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'Only the owner of chat % can remove users from it.', in_chat;
+	END IF;
+	IF in_member = in_owner THEN
+		RAISE EXCEPTION 'The owner cannot be removed from chat %.', in_chat;
+	END IF;
+
+	DELETE FROM CHAT_LIST WHERE chat_id = in_chat AND member_id = in_member;
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'User % is not a member of chat %.', in_member, in_chat;
+	END IF;
+
+	SELECT member_count INTO members FROM CHAT WHERE chat_id = in_chat;
+	RETURN members;
+END $remove_chat_member$ LANGUAGE plpgsql;
@@ -14,4 +14,23 @@ END  $new_index$ LANGUAGE plpgsql;
 SELECT insert_index();
 DROP FUNCTION insert_index();*/
 
-CREATE INDEX msgTimestamp ON MESSAGE USING BTREE(msg_timestamp);
\ No newline at end of file
+CREATE INDEX msgTimestamp ON MESSAGE USING BTREE(msg_timestamp);
+
+-- member -> chats lookups (EnterChat, ListChats); (chat_id, member_id) is already the primary key
+CREATE INDEX chatListMember ON CHAT_LIST USING BTREE(member_id);
+
+-- history in send order, newest message of a chat, messages after a read
+-- cursor or sync point: all are range scans of (chat_id, seq)
+CREATE UNIQUE INDEX msgChatSeq ON MESSAGE USING BTREE(chat_id, seq);
+
+-- owner of a USER_LIST_CONTAINS row (user_list_change trigger)
+CREATE INDEX usrContactList ON USR USING BTREE(contact_list);
+CREATE INDEX usrBlockList ON USR USING BTREE(block_list);
+
+-- contact import matches phone numbers by their digits alone, whatever
+-- punctuation they were stored with
+CREATE INDEX usrPhoneDigits ON USR USING BTREE(regexp_replace(phoneNum, '[^0-9]', '', 'g'));
+
+-- fuzzy login search (UserSearch.fuzzy); prefix search is answered from memory
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX usrLoginTrgm ON USR USING GIN((CAST(login AS text)) gin_trgm_ops);
\ No newline at end of file
@@ -0,0 +1,20 @@
+-- Turns a database set up with create_tables.sql, create_indexes.sql,
+-- create_triggers.sql and create_functions.sql into chat shard :shard
+-- (0, 1, ...) of :shards, for Messenger run with messenger.shards.
+--
+--    psql -v shard=1 -v shards=2 -f create_shard.sql <dbname>
+--
+-- A shard holds the CHAT, CHAT_LIST and MESSAGE rows of its chats; users
+-- and their contact and block lists stay on the main database, so the
+-- foreign keys to USR go. Chat and message ids step by :shards from
+-- :shard + 1, which keeps them unique across the shards and makes
+-- chat_id mod :shards the shard a chat lives on (ShardRouter.shardOf).
+
+ALTER TABLE CHAT DROP CONSTRAINT IF EXISTS chat_init_sender_id_fkey;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT IF EXISTS chat_list_member_id_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT IF EXISTS message_sender_id_fkey;
+
+ALTER SEQUENCE chat_chat_id_seq INCREMENT BY :shards;
+SELECT setval('chat_chat_id_seq', :shard + 1, false);
+ALTER SEQUENCE message_msg_id_seq INCREMENT BY :shards;
+SELECT setval('message_msg_id_seq', :shard + 1, false);
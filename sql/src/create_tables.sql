@@ -1,3 +1,5 @@
+DROP TABLE CHAT_CHANGE;
+DROP TABLE USER_CHANGE;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
@@ -11,45 +13,75 @@ CREATE TABLE USER_LIST(
 	PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
-	login char(50), 
+	user_id serial,
+	login char(50) UNIQUE NOT NULL, 
 	phoneNum CHAR(16) UNIQUE NOT NULL, 
 	password char(50) NOT NULL,
 	status char(140),
 	block_list integer,
 	contact_list integer,
-	Primary Key(login),
+	change_version integer NOT NULL DEFAULT 0,
+	Primary Key(user_id),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
 
 CREATE TABLE USER_LIST_CONTAINS(
 	list_id integer,
-	list_member char(50),
-	PRIMARY KEY(list_id,list_member), 
+	list_member_id integer,
+	PRIMARY KEY(list_id,list_member_id), 
 	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
-	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
+	FOREIGN KEY(list_member_id) REFERENCES USR(user_id) ON DELETE CASCADE);
 
 CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
-	init_sender char(50),
+	init_sender_id integer,
+	member_count integer NOT NULL DEFAULT 0,
+	last_seq integer NOT NULL DEFAULT 0,
+	change_version integer NOT NULL DEFAULT 0,
+	-- days messages stay in MESSAGE before MessageRetention archives them;
+	-- NULL for the default (messenger.retention.days), 0 to keep them all
+	retention_days integer,
 	PRIMARY KEY(chat_id), 
-	FOREIGN KEY(init_sender) REFERENCES USR(login));
+	FOREIGN KEY(init_sender_id) REFERENCES USR(user_id));
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
-	member char(50),
-	PRIMARY KEY(chat_id,member), 
-	FOREIGN KEY(member) REFERENCES USR(login), 
+	member_id integer,
+	last_read_seq integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(chat_id,member_id), 
+	FOREIGN KEY(member_id) REFERENCES USR(user_id), 
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
 CREATE TABLE MESSAGE(
 	msg_id serial, 
 	msg_text char(300) NOT NULL, 
 	msg_timestamp timestamp NOT NULL,
-	sender_login char(50),
+	sender_id integer,
 	chat_id integer,
+	seq integer NOT NULL,
 	PRIMARY KEY(msg_id), 
-	FOREIGN KEY(sender_login) REFERENCES USR(login),
+	FOREIGN KEY(sender_id) REFERENCES USR(user_id),
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
+-- Change logs for delta sync (create_triggers.sql writes them). A chat's
+-- messages and members are versioned by CHAT.change_version, a user's
+-- chats, contacts and blocks by USR.change_version. op is 'U' for an
+-- insert or update and 'D' for a delete (a tombstone).
+CREATE TABLE CHAT_CHANGE(
+	chat_id integer,
+	version integer,
+	entity char(10) NOT NULL,
+	op char(1) NOT NULL,
+	item_id integer NOT NULL,
+	PRIMARY KEY(chat_id, version));
+
+CREATE TABLE USER_CHANGE(
+	user_id integer,
+	version integer,
+	entity char(10) NOT NULL,
+	op char(1) NOT NULL,
+	item_id integer NOT NULL,
+	PRIMARY KEY(user_id, version));
+
 
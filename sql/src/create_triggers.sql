@@ -0,0 +1,202 @@
+-- Keeps CHAT.member_count in step with CHAT_LIST and derives chat_type from it:
+-- a chat with more than two members is a 'group', otherwise it is 'private'.
+-- The UPDATE takes the CHAT row lock, so concurrent membership edits of the
+-- same chat are serialized and the count can't drift.
+CREATE OR REPLACE FUNCTION chat_list_count() RETURNS trigger AS
+$chat_list_count$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		UPDATE CHAT
+		SET member_count = member_count + 1,
+		    chat_type = CASE WHEN member_count + 1 > 2 THEN 'group' ELSE 'private' END
+		WHERE chat_id = NEW.chat_id;
+		RETURN NEW;
+	ELSE
+		UPDATE CHAT
+		SET member_count = member_count - 1,
+		    chat_type = CASE WHEN member_count - 1 > 2 THEN 'group' ELSE 'private' END
+		WHERE chat_id = OLD.chat_id;
+		RETURN OLD;
+	END IF;
+END $chat_list_count$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_count ON CHAT_LIST;
+CREATE TRIGGER chat_list_count
+	AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE chat_list_count();
+
+-- A member's unread count is CHAT.last_seq - CHAT_LIST.last_read_seq,
+-- worked out when the chat list is read, so a new message writes no row per
+-- member. Marking a chat read is done by the client, on the CHAT_LIST
+-- primary key; sending a message moves the sender's own cursor past it,
+-- which is one row whatever the size of the chat. (Databases set up before
+-- kept a counter per member, updated by message_unread_count.)
+DROP TRIGGER IF EXISTS message_unread_count ON MESSAGE;
+DROP FUNCTION IF EXISTS message_unread_count();
+
+CREATE OR REPLACE FUNCTION message_read_by_sender() RETURNS trigger AS
+$message_read_by_sender$
+BEGIN
+	UPDATE CHAT_LIST
+	SET last_read_seq = NEW.seq
+	WHERE chat_id = NEW.chat_id AND member_id = NEW.sender_id AND last_read_seq < NEW.seq;
+	RETURN NEW;
+END $message_read_by_sender$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_read_by_sender ON MESSAGE;
+CREATE TRIGGER message_read_by_sender
+	AFTER INSERT ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE message_read_by_sender();
+
+-- A member who joins an existing chat starts with its whole history unread.
+CREATE OR REPLACE FUNCTION chat_list_unread() RETURNS trigger AS
+$chat_list_unread$
+BEGIN
+	NEW.last_read_seq := 0;
+	RETURN NEW;
+END $chat_list_unread$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_unread ON CHAT_LIST;
+CREATE TRIGGER chat_list_unread
+	BEFORE INSERT ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE chat_list_unread();
+
+-- Numbers the messages of each chat 1, 2, 3, ... in the order they are
+-- inserted. Bumping CHAT.last_seq takes the chat's row lock, so concurrent
+-- senders to one chat queue up and get consecutive numbers, and a rolled
+-- back insert gives its number back. Deleted messages leave holes.
+CREATE OR REPLACE FUNCTION message_seq() RETURNS trigger AS
+$message_seq$
+BEGIN
+	UPDATE CHAT SET last_seq = last_seq + 1
+	WHERE chat_id = NEW.chat_id
+	RETURNING last_seq INTO NEW.seq;
+	RETURN NEW;
+END $message_seq$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_seq ON MESSAGE;
+CREATE TRIGGER message_seq
+	BEFORE INSERT ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE message_seq();
+
+-- Change logs for delta sync. Every change to a chat's messages or members
+-- is appended to CHAT_CHANGE under the next CHAT.change_version; every
+-- change to a user's chats, contacts or blocks to USER_CHANGE under the
+-- next USR.change_version. Bumping the version holds that row's lock until
+-- commit, so one chat's (or user's) versions become visible in order and a
+-- client that has seen version N only needs the rows after N.
+CREATE OR REPLACE FUNCTION log_chat_change(target integer, kind char(10), change char(1), item integer) RETURNS void AS
+$log_chat_change$
+DECLARE
+	v integer;
+BEGIN
+	UPDATE CHAT SET change_version = change_version + 1
+	WHERE chat_id = target
+	RETURNING change_version INTO v;
+	IF FOUND THEN
+		INSERT INTO CHAT_CHANGE (chat_id, version, entity, op, item_id) VALUES (target, v, kind, change, item);
+	END IF;
+END $log_chat_change$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION log_user_change(target integer, kind char(10), change char(1), item integer) RETURNS void AS
+$log_user_change$
+DECLARE
+	v integer;
+BEGIN
+	UPDATE USR SET change_version = change_version + 1
+	WHERE user_id = target
+	RETURNING change_version INTO v;
+	IF FOUND THEN
+		INSERT INTO USER_CHANGE (user_id, version, entity, op, item_id) VALUES (target, v, kind, change, item);
+	END IF;
+END $log_user_change$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION message_change() RETURNS trigger AS
+$message_change$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		-- an archived message still exists; clients keep their copy
+		IF current_setting('messenger.archiving', true) IS DISTINCT FROM 'on' THEN
+			PERFORM log_chat_change(OLD.chat_id, 'message', 'D', OLD.msg_id);
+		END IF;
+		RETURN OLD;
+	END IF;
+	PERFORM log_chat_change(NEW.chat_id, 'message', 'U', NEW.msg_id);
+	RETURN NEW;
+END $message_change$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_change ON MESSAGE;
+CREATE TRIGGER message_change
+	AFTER INSERT OR DELETE OR UPDATE OF msg_text ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE message_change();
+
+-- read cursor updates don't change membership, so only
+-- inserts and deletes are logged
+CREATE OR REPLACE FUNCTION chat_list_change() RETURNS trigger AS
+$chat_list_change$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		PERFORM log_chat_change(OLD.chat_id, 'member', 'D', OLD.member_id);
+		PERFORM log_user_change(OLD.member_id, 'chat', 'D', OLD.chat_id);
+		RETURN OLD;
+	END IF;
+	PERFORM log_chat_change(NEW.chat_id, 'member', 'U', NEW.member_id);
+	PERFORM log_user_change(NEW.member_id, 'chat', 'U', NEW.chat_id);
+	RETURN NEW;
+END $chat_list_change$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_change ON CHAT_LIST;
+CREATE TRIGGER chat_list_change
+	AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE chat_list_change();
+
+CREATE OR REPLACE FUNCTION user_list_change() RETURNS trigger AS
+$user_list_change$
+DECLARE
+	list integer;
+	member integer;
+	change char(1);
+	owner integer;
+	kind char(10);
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		list := OLD.list_id; member := OLD.list_member_id; change := 'D';
+	ELSE
+		list := NEW.list_id; member := NEW.list_member_id; change := 'U';
+	END IF;
+
+	SELECT user_id, CASE WHEN block_list = list THEN 'block' ELSE 'contact' END
+	INTO owner, kind
+	FROM USR WHERE contact_list = list OR block_list = list;
+
+	IF FOUND THEN
+		PERFORM log_user_change(owner, kind, change, member);
+	END IF;
+	RETURN NULL;
+END $user_list_change$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS user_list_change ON USER_LIST_CONTAINS;
+CREATE TRIGGER user_list_change
+	AFTER INSERT OR DELETE ON USER_LIST_CONTAINS
+	FOR EACH ROW EXECUTE PROCEDURE user_list_change();
+
+-- a deleted chat or user takes its change log with it
+CREATE OR REPLACE FUNCTION change_log_cleanup() RETURNS trigger AS
+$change_log_cleanup$
+BEGIN
+	IF TG_TABLE_NAME = 'chat' THEN
+		DELETE FROM CHAT_CHANGE WHERE chat_id = OLD.chat_id;
+	ELSE
+		DELETE FROM USER_CHANGE WHERE user_id = OLD.user_id;
+	END IF;
+	RETURN OLD;
+END $change_log_cleanup$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS change_log_cleanup ON CHAT;
+CREATE TRIGGER change_log_cleanup
+	AFTER DELETE ON CHAT
+	FOR EACH ROW EXECUTE PROCEDURE change_log_cleanup();
+DROP TRIGGER IF EXISTS change_log_cleanup ON USR;
+CREATE TRIGGER change_log_cleanup
+	AFTER DELETE ON USR
+	FOR EACH ROW EXECUTE PROCEDURE change_log_cleanup();
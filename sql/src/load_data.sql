@@ -3,24 +3,40 @@ FROM 'usr_list.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
-COPY USR
+-- user_id is assigned by the USR sequence
+COPY USR (login, phoneNum, password, status, block_list, contact_list)
 FROM 'usr.csv'
 WITH DELIMITER ';';
 
-COPY USER_LIST_CONTAINS
+-- The remaining files reference users by login. They are loaded into
+-- staging tables and the logins are swapped for user_id on the way in.
+CREATE TEMP TABLE USER_LIST_CONTAINS_CSV(list_id integer, list_member char(50));
+COPY USER_LIST_CONTAINS_CSV
 FROM 'usr_list_contains.csv'
 WITH DELIMITER ';';
+INSERT INTO USER_LIST_CONTAINS (list_id, list_member_id)
+SELECT S.list_id, U.user_id
+FROM USER_LIST_CONTAINS_CSV S JOIN USR U ON U.login = S.list_member;
 
-COPY CHAT
+CREATE TEMP TABLE CHAT_CSV(chat_id integer, chat_type char(50), init_sender char(50));
+COPY CHAT_CSV
 FROM 'chat.csv'
 WITH DELIMITER ';';
+INSERT INTO CHAT (chat_id, chat_type, init_sender_id)
+SELECT S.chat_id, S.chat_type, U.user_id
+FROM CHAT_CSV S LEFT JOIN USR U ON U.login = S.init_sender;
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
 
-COPY CHAT_LIST
+CREATE TEMP TABLE CHAT_LIST_CSV(chat_id integer, member char(50));
+COPY CHAT_LIST_CSV
 FROM 'chat_list.csv'
 WITH DELIMITER ';';
+INSERT INTO CHAT_LIST (chat_id, member_id)
+SELECT S.chat_id, U.user_id
+FROM CHAT_LIST_CSV S JOIN USR U ON U.login = S.member;
 
-COPY MESSAGE
+CREATE TEMP TABLE MESSAGE_CSV(msg_id integer, msg_text char(300), msg_timestamp timestamp, sender_login char(50), chat_id integer);
+COPY MESSAGE_CSV
 	(msg_id, 
 	msg_text, 
 	msg_timestamp, 
@@ -28,5 +44,21 @@ COPY MESSAGE
 	chat_id)
 FROM 'message.csv'
 WITH DELIMITER ';';
+INSERT INTO MESSAGE (msg_id, msg_text, msg_timestamp, sender_id, chat_id, seq)
+SELECT S.msg_id, S.msg_text, S.msg_timestamp, U.user_id, S.chat_id,
+	row_number() OVER (PARTITION BY S.chat_id ORDER BY S.msg_timestamp, S.msg_id)
+FROM MESSAGE_CSV S LEFT JOIN USR U ON U.login = S.sender_login;
 ALTER SEQUENCE message_msg_id_seq RESTART 50000;
 
+-- member_count and chat_type are maintained by triggers from here on
+-- (create_triggers.sql); compute them once for the bulk-loaded rows.
+UPDATE CHAT C
+SET member_count = (SELECT COUNT(*) FROM CHAT_LIST CL WHERE CL.chat_id = C.chat_id),
+    last_seq = COALESCE((SELECT MAX(M.seq) FROM MESSAGE M WHERE M.chat_id = C.chat_id), 0);
+UPDATE CHAT
+SET chat_type = CASE WHEN member_count > 2 THEN 'group' ELSE 'private' END;
+
+-- the loaded history counts as read.
+UPDATE CHAT_LIST CL
+SET last_read_seq = (SELECT C.last_seq FROM CHAT C WHERE C.chat_id = CL.chat_id);
+
@@ -0,0 +1,229 @@
+-- Moves an existing database from char(50) logins to integer user_id as the
+-- key of USR and as the foreign key in CHAT, CHAT_LIST, MESSAGE and
+-- USER_LIST_CONTAINS, and brings it up to the rest of the current schema
+-- (member counts, message seq, read cursors, change logs, retention). New
+-- databases get this schema from create_tables.sql.
+--
+-- The migration is online: old clients keep working until step 5, and the
+-- only long scans (backfills, index builds, constraint validation) run
+-- without blocking writes. It needs PostgreSQL 12 or later. Run the file
+-- with psql in autocommit mode from this directory (CREATE INDEX
+-- CONCURRENTLY cannot run inside a transaction block):
+--     psql -p $PGPORT $DB_NAME < migrate_user_ids.sql
+
+-- 1. Surrogate key on USR. New rows get an id from the sequence at once,
+--    existing rows are numbered below.
+CREATE SEQUENCE usr_user_id_seq;
+ALTER TABLE USR ADD COLUMN user_id integer;
+ALTER TABLE USR ALTER COLUMN user_id SET DEFAULT nextval('usr_user_id_seq');
+ALTER SEQUENCE usr_user_id_seq OWNED BY USR.user_id;
+UPDATE USR SET user_id = nextval('usr_user_id_seq') WHERE user_id IS NULL;
+CREATE UNIQUE INDEX CONCURRENTLY usr_user_id_key ON USR(user_id);
+
+-- 2. Integer columns next to the login columns, kept in step for rows that
+--    old clients write while the backfill runs.
+ALTER TABLE USER_LIST_CONTAINS ADD COLUMN list_member_id integer;
+ALTER TABLE CHAT ADD COLUMN init_sender_id integer;
+ALTER TABLE CHAT_LIST ADD COLUMN member_id integer;
+ALTER TABLE MESSAGE ADD COLUMN sender_id integer;
+
+CREATE OR REPLACE FUNCTION user_id_of(char(50)) RETURNS integer AS
+$user_id_of$
+	SELECT user_id FROM USR WHERE login = $1;
+$user_id_of$ LANGUAGE sql STABLE;
+
+CREATE OR REPLACE FUNCTION sync_user_ids() RETURNS trigger AS
+$sync_user_ids$
+BEGIN
+	IF TG_TABLE_NAME = 'user_list_contains' THEN
+		NEW.list_member_id := user_id_of(NEW.list_member);
+	ELSIF TG_TABLE_NAME = 'chat' THEN
+		NEW.init_sender_id := user_id_of(NEW.init_sender);
+	ELSIF TG_TABLE_NAME = 'chat_list' THEN
+		NEW.member_id := user_id_of(NEW.member);
+	ELSIF TG_TABLE_NAME = 'message' THEN
+		NEW.sender_id := user_id_of(NEW.sender_login);
+	END IF;
+	RETURN NEW;
+END $sync_user_ids$ LANGUAGE plpgsql;
+
+CREATE TRIGGER sync_user_ids BEFORE INSERT OR UPDATE ON USER_LIST_CONTAINS
+	FOR EACH ROW EXECUTE PROCEDURE sync_user_ids();
+CREATE TRIGGER sync_user_ids BEFORE INSERT OR UPDATE ON CHAT
+	FOR EACH ROW EXECUTE PROCEDURE sync_user_ids();
+CREATE TRIGGER sync_user_ids BEFORE INSERT OR UPDATE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE sync_user_ids();
+CREATE TRIGGER sync_user_ids BEFORE INSERT OR UPDATE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE sync_user_ids();
+
+--    The columns and tables of the current schema that old clients don't
+--    know about. A constant default is stored in the catalog, so none of
+--    these rewrites its table; seq is filled in below and in step 5.
+ALTER TABLE USR ADD COLUMN change_version integer NOT NULL DEFAULT 0;
+ALTER TABLE CHAT ADD COLUMN member_count integer NOT NULL DEFAULT 0;
+ALTER TABLE CHAT ADD COLUMN last_seq integer NOT NULL DEFAULT 0;
+ALTER TABLE CHAT ADD COLUMN change_version integer NOT NULL DEFAULT 0;
+ALTER TABLE CHAT ADD COLUMN retention_days integer;
+ALTER TABLE CHAT_LIST ADD COLUMN last_read_seq integer NOT NULL DEFAULT 0;
+ALTER TABLE MESSAGE ADD COLUMN seq integer;
+
+CREATE TABLE CHAT_CHANGE(
+	chat_id integer,
+	version integer,
+	entity char(10) NOT NULL,
+	op char(1) NOT NULL,
+	item_id integer NOT NULL,
+	PRIMARY KEY(chat_id, version));
+
+CREATE TABLE USER_CHANGE(
+	user_id integer,
+	version integer,
+	entity char(10) NOT NULL,
+	op char(1) NOT NULL,
+	item_id integer NOT NULL,
+	PRIMARY KEY(user_id, version));
+
+-- 3. Backfill. Each statement is its own short transaction; MESSAGE is the
+--    big one and is done in chat_id ranges, committing after each range so
+--    no row lock is held for long (procedures with COMMIT need 11+).
+UPDATE USER_LIST_CONTAINS ULC SET list_member_id = U.user_id
+FROM USR U WHERE U.login = ULC.list_member AND ULC.list_member_id IS NULL;
+UPDATE CHAT C SET init_sender_id = U.user_id
+FROM USR U WHERE U.login = C.init_sender AND C.init_sender_id IS NULL;
+UPDATE CHAT_LIST CL SET member_id = U.user_id
+FROM USR U WHERE U.login = CL.member AND CL.member_id IS NULL;
+
+-- Numbers the not yet numbered messages of chats lo <= chat_id < hi after
+-- the ones already numbered, in send order, and moves the chats' last_seq
+-- along.
+CREATE OR REPLACE FUNCTION number_messages(lo integer, hi integer) RETURNS void AS
+$number_messages$
+	UPDATE MESSAGE M SET seq = N.seq
+	FROM (SELECT M1.msg_id,
+	             COALESCE((SELECT MAX(M2.seq) FROM MESSAGE M2 WHERE M2.chat_id = M1.chat_id), 0)
+	             + row_number() OVER (PARTITION BY M1.chat_id ORDER BY M1.msg_timestamp, M1.msg_id) AS seq
+	      FROM MESSAGE M1
+	      WHERE M1.seq IS NULL AND M1.chat_id >= lo AND M1.chat_id < hi) N
+	WHERE M.msg_id = N.msg_id;
+	UPDATE CHAT C SET last_seq = S.last_seq
+	FROM (SELECT chat_id, MAX(seq) AS last_seq FROM MESSAGE
+	      WHERE chat_id >= lo AND chat_id < hi GROUP BY chat_id) S
+	WHERE C.chat_id = S.chat_id AND C.last_seq < S.last_seq;
+$number_messages$ LANGUAGE sql;
+
+CREATE OR REPLACE PROCEDURE backfill_messages(step integer) AS
+$backfill$
+DECLARE
+	lo integer := 0;
+	hi integer;
+BEGIN
+	SELECT COALESCE(MAX(chat_id), 0) INTO hi FROM MESSAGE;
+	WHILE lo <= hi LOOP
+		UPDATE MESSAGE M SET sender_id = U.user_id
+		FROM USR U
+		WHERE U.login = M.sender_login AND M.sender_id IS NULL
+		AND M.chat_id >= lo AND M.chat_id < lo + step;
+		PERFORM number_messages(lo, lo + step);
+		-- the history there is now counts as read
+		UPDATE CHAT_LIST CL SET last_read_seq = C.last_seq
+		FROM CHAT C WHERE C.chat_id = CL.chat_id AND C.chat_id >= lo AND C.chat_id < lo + step;
+		lo := lo + step;
+		COMMIT;
+	END LOOP;
+END $backfill$ LANGUAGE plpgsql;
+CALL backfill_messages(500);
+DROP PROCEDURE backfill_messages(integer);
+
+-- 4. Indexes on the new columns, built without blocking writes, and the
+--    NOT NULL checks step 5 needs, validated without blocking writes too.
+CREATE UNIQUE INDEX CONCURRENTLY user_list_contains_id_key ON USER_LIST_CONTAINS(list_id, list_member_id);
+CREATE UNIQUE INDEX CONCURRENTLY chat_list_id_key ON CHAT_LIST(chat_id, member_id);
+CREATE INDEX CONCURRENTLY chatListMemberId ON CHAT_LIST(member_id);
+CREATE UNIQUE INDEX CONCURRENTLY usr_login_uniq ON USR(login);
+CREATE UNIQUE INDEX CONCURRENTLY msgChatSeq ON MESSAGE USING BTREE(chat_id, seq);
+-- the messages old clients send from here on, for step 5
+CREATE INDEX CONCURRENTLY msgUnnumbered ON MESSAGE(chat_id) WHERE seq IS NULL;
+CREATE INDEX CONCURRENTLY usrContactList ON USR USING BTREE(contact_list);
+CREATE INDEX CONCURRENTLY usrBlockList ON USR USING BTREE(block_list);
+CREATE INDEX CONCURRENTLY usrPhoneDigits ON USR USING BTREE(regexp_replace(phoneNum, '[^0-9]', '', 'g'));
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX CONCURRENTLY usrLoginTrgm ON USR USING GIN((CAST(login AS text)) gin_trgm_ops);
+
+ALTER TABLE USR ADD CONSTRAINT usr_user_id_not_null CHECK (user_id IS NOT NULL) NOT VALID;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT ulc_member_id_not_null CHECK (list_member_id IS NOT NULL) NOT VALID;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_member_id_not_null CHECK (member_id IS NOT NULL) NOT VALID;
+ALTER TABLE USR VALIDATE CONSTRAINT usr_user_id_not_null;
+ALTER TABLE USER_LIST_CONTAINS VALIDATE CONSTRAINT ulc_member_id_not_null;
+ALTER TABLE CHAT_LIST VALIDATE CONSTRAINT chat_list_member_id_not_null;
+
+-- 5. Switch over. From here on only clients built with user ids work.
+--    Of MESSAGE only the rows written since the backfill are touched here,
+--    and the foreign keys are added NOT VALID, so the one scan while the
+--    locks are held is the member count over the CHAT_LIST primary key.
+BEGIN;
+LOCK TABLE USR, USER_LIST_CONTAINS, CHAT, CHAT_LIST, MESSAGE IN SHARE ROW EXCLUSIVE MODE;
+DROP TRIGGER sync_user_ids ON USER_LIST_CONTAINS;
+DROP TRIGGER sync_user_ids ON CHAT;
+DROP TRIGGER sync_user_ids ON CHAT_LIST;
+DROP TRIGGER sync_user_ids ON MESSAGE;
+DROP FUNCTION sync_user_ids();
+DROP FUNCTION user_id_of(char(50));
+
+-- the messages sent since the backfill, then the member counts, which old
+-- clients' joins and leaves have changed all along
+SELECT number_messages(chat_id, chat_id + 1) FROM (SELECT DISTINCT chat_id FROM MESSAGE WHERE seq IS NULL) S;
+DROP FUNCTION number_messages(integer, integer);
+DROP INDEX msgUnnumbered;
+UPDATE CHAT C SET member_count = N.members,
+                  chat_type = CASE WHEN N.members > 2 THEN 'group' ELSE 'private' END
+FROM (SELECT chat_id, COUNT(*) AS members FROM CHAT_LIST GROUP BY chat_id) N
+WHERE C.chat_id = N.chat_id;
+
+-- dropping the login columns drops the foreign keys and indexes on them
+ALTER TABLE USER_LIST_CONTAINS DROP COLUMN list_member;
+ALTER TABLE CHAT DROP COLUMN init_sender;
+ALTER TABLE CHAT_LIST DROP COLUMN member;
+ALTER TABLE MESSAGE DROP COLUMN sender_login;
+
+-- with the checks validated, SET NOT NULL doesn't scan the table
+ALTER TABLE USR DROP CONSTRAINT usr_pkey;
+ALTER TABLE USR ALTER COLUMN user_id SET NOT NULL;
+ALTER TABLE USR DROP CONSTRAINT usr_user_id_not_null;
+ALTER TABLE USR ADD CONSTRAINT usr_pkey PRIMARY KEY USING INDEX usr_user_id_key;
+ALTER TABLE USR ADD CONSTRAINT usr_login_key UNIQUE USING INDEX usr_login_uniq;
+
+ALTER TABLE USER_LIST_CONTAINS ALTER COLUMN list_member_id SET NOT NULL;
+ALTER TABLE USER_LIST_CONTAINS DROP CONSTRAINT ulc_member_id_not_null;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_pkey PRIMARY KEY USING INDEX user_list_contains_id_key;
+ALTER TABLE USER_LIST_CONTAINS ADD CONSTRAINT user_list_contains_list_member_id_fkey
+	FOREIGN KEY (list_member_id) REFERENCES USR(user_id) ON DELETE CASCADE NOT VALID;
+
+ALTER TABLE CHAT ADD CONSTRAINT chat_init_sender_id_fkey
+	FOREIGN KEY (init_sender_id) REFERENCES USR(user_id) NOT VALID;
+
+ALTER TABLE CHAT_LIST ALTER COLUMN member_id SET NOT NULL;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT chat_list_member_id_not_null;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_pkey PRIMARY KEY USING INDEX chat_list_id_key;
+ALTER TABLE CHAT_LIST ADD CONSTRAINT chat_list_member_id_fkey
+	FOREIGN KEY (member_id) REFERENCES USR(user_id) NOT VALID;
+ALTER INDEX chatListMemberId RENAME TO chatListMember;
+
+ALTER TABLE MESSAGE ADD CONSTRAINT message_sender_id_fkey
+	FOREIGN KEY (sender_id) REFERENCES USR(user_id) NOT VALID;
+-- every message is numbered now; checked in step 6
+ALTER TABLE MESSAGE ADD CONSTRAINT message_seq_not_null CHECK (seq IS NOT NULL) NOT VALID;
+
+-- the triggers and functions of the current schema, seq numbering included
+\ir create_triggers.sql
+\ir create_functions.sql
+COMMIT;
+
+-- 6. Validate what step 5 added. Each scan only takes a SHARE UPDATE
+--    EXCLUSIVE lock, so reads and writes go on meanwhile.
+ALTER TABLE USER_LIST_CONTAINS VALIDATE CONSTRAINT user_list_contains_list_member_id_fkey;
+ALTER TABLE CHAT VALIDATE CONSTRAINT chat_init_sender_id_fkey;
+ALTER TABLE CHAT_LIST VALIDATE CONSTRAINT chat_list_member_id_fkey;
+ALTER TABLE MESSAGE VALIDATE CONSTRAINT message_sender_id_fkey;
+ALTER TABLE MESSAGE VALIDATE CONSTRAINT message_seq_not_null;
+ALTER TABLE MESSAGE ALTER COLUMN seq SET NOT NULL;
+ALTER TABLE MESSAGE DROP CONSTRAINT message_seq_not_null;